@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2015 Zlianjie Inc. All rights reserved.
+ */
+package com.zlianjie.coolwifi.speedtest;
+
+import android.os.Debug;
+
+import com.zlianjie.android.util.AsyncTaskAssistant;
+import com.zlianjie.android.util.log.Log;
+import com.zlianjie.coolwifi.CoolWifi;
+import com.zlianjie.coolwifi.util.TrafficStatsUtils;
+import com.zlianjie.coolwifi.util.Utility;
+import com.zlianjie.coolwifi.wifi.AccessPoint;
+import com.zlianjie.coolwifi.wifi.WifiControlManager;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 应用内的运行平台: 测速地址从assets/speed_test读取, 网络标识为当前接入点的BSSID, 流量按WiFi网卡统计,
+ * 默认使用{@link ApacheTransport}。配置在进程内只解析一次, 由测速线程或{@link #preload()}在后台读取, 不占用UI线程
+ *
+ * @author kzw
+ * @since 2015-09-03
+ */
+class AndroidSpeedTestPlatform implements SpeedTestPlatform {
+    /** debug switch */
+    private static final boolean DEBUG = CoolWifi.GLOBAL_DEBUG;
+    /** log tag */
+    private static final String TAG = "SpeedTestTask";
+    /** 镜像地址配置文件 */
+    private static final String SPEED_URL_ASSET = "speed_test";
+
+    /** 进程内缓存的配置 */
+    private static volatile SpeedTestConfig sConfig;
+    /** 读取配置的锁, 同时只有一个线程读取 */
+    private static final Object sConfigLock = new Object();
+
+    /**
+     * 在后台线程提前读取配置, 已经读取过时不做任何事
+     */
+    static void preload() {
+        if (sConfig != null) {
+            return;
+        }
+        AsyncTaskAssistant.executeOnThreadPool(new Runnable() {
+            @Override
+            public void run() {
+                getConfig();
+            }
+        });
+    }
+
+    /**
+     * 获取配置, 第一次调用时读取, 之后使用缓存, 会执行I/O, 不要在UI线程调用
+     * @return {@link SpeedTestConfig}, 读取失败时返回null, 下次调用会重新读取
+     */
+    private static SpeedTestConfig getConfig() {
+        SpeedTestConfig config = sConfig;
+        if (config == null) {
+            synchronized (sConfigLock) {
+                config = sConfig;
+                if (config == null) {
+                    config = readConfig();
+                    sConfig = config;
+                }
+            }
+        }
+        return config;
+    }
+
+    /**
+     * 从assets读取配置
+     * @return {@link SpeedTestConfig}, 读取失败时返回null
+     */
+    private static SpeedTestConfig readConfig() {
+        InputStream inStream = null;
+        try {
+            inStream = CoolWifi.getAppContext().getAssets().open(SPEED_URL_ASSET);
+            return SpeedTestConfig.load(inStream);
+        } catch (IOException e) {
+            if (DEBUG) {
+                Log.w(TAG, "speed_test file load error", e);
+            }
+            return null;
+        } finally {
+            Utility.closeSafely(inStream);
+        }
+    }
+
+    @Override
+    public SpeedTestConfig loadConfig() {
+        return getConfig();
+    }
+
+    @Override
+    public String getNetworkKey() {
+        WifiControlManager manager = WifiControlManager.getInstance();
+        AccessPoint ap = manager != null ? manager.getActiveAp() : null;
+        return ap != null ? ap.getBssId() : null;
+    }
+
+    @Override
+    public long getInterfaceTotalBytes() {
+        return TrafficStatsUtils.getWifiTotalBytes();
+    }
+
+    @Override
+    public long threadCpuTimeNanos() {
+        return Debug.threadCpuTimeNanos();
+    }
+
+    @Override
+    public void executeInBackground(Runnable runnable) {
+        AsyncTaskAssistant.executeOnThreadPool(runnable);
+    }
+
+    @Override
+    public SpeedTestTransport createTransport(int transportType, int maxConnections, int connectTimeoutMillis,
+            int readTimeoutMillis) {
+        switch (transportType) {
+            case SpeedTestEngine.TRANSPORT_URL_CONNECTION:
+                return new UrlConnectionTransport(connectTimeoutMillis, readTimeoutMillis);
+            case SpeedTestEngine.TRANSPORT_RAW_SOCKET:
+                return new RawSocketTransport(connectTimeoutMillis, readTimeoutMillis);
+            default:
+                // 应用已经依赖HttpClient, 默认使用带连接池的Apache传输层
+                return new ApacheTransport(maxConnections, connectTimeoutMillis, readTimeoutMillis);
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2015 Zlianjie Inc. All rights reserved.
+ */
+package com.zlianjie.coolwifi.speedtest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import cz.msebera.android.httpclient.HttpConnection;
+import cz.msebera.android.httpclient.HttpEntity;
+import cz.msebera.android.httpclient.HttpResponse;
+import cz.msebera.android.httpclient.client.config.RequestConfig;
+import cz.msebera.android.httpclient.client.methods.HttpGet;
+import cz.msebera.android.httpclient.client.methods.HttpPost;
+import cz.msebera.android.httpclient.client.methods.HttpRequestBase;
+import cz.msebera.android.httpclient.client.protocol.HttpClientContext;
+import cz.msebera.android.httpclient.entity.AbstractHttpEntity;
+import cz.msebera.android.httpclient.impl.client.CloseableHttpClient;
+import cz.msebera.android.httpclient.impl.client.HttpClientBuilder;
+import cz.msebera.android.httpclient.impl.conn.PoolingHttpClientConnectionManager;
+
+/**
+ * 基于cz.msebera Apache HttpClient的传输层, 所有请求共享一个keep-alive连接池
+ *
+ * @author kzw
+ * @since 2015-08-31
+ */
+class ApacheTransport implements SpeedTestTransport {
+
+    /** 连接池中空闲连接复用前需要重新校验的时长(毫秒) */
+    private static final int VALIDATE_AFTER_INACTIVITY_MILLIS = 1000;
+
+    /** 所有请求共享的{@link CloseableHttpClient} */
+    private final CloseableHttpClient mHttpClient;
+
+    /**
+     * 构造方法
+     * @param maxConnections 连接池的最大连接数
+     * @param connectTimeoutMillis 默认连接超时
+     * @param readTimeoutMillis 默认读取超时
+     */
+    ApacheTransport(int maxConnections, int connectTimeoutMillis, int readTimeoutMillis) {
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnections);
+        connectionManager.setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY_MILLIS);
+        RequestConfig config = RequestConfig.custom()
+                .setConnectTimeout(connectTimeoutMillis)
+                .setSocketTimeout(readTimeoutMillis)
+                .build();
+        mHttpClient = HttpClientBuilder.create()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(config)
+                .build();
+    }
+
+    @Override
+    public String getName() {
+        return "apache";
+    }
+
+    @Override
+    public Request get(String url) {
+        return new ApacheRequest(new HttpGet(url));
+    }
+
+    @Override
+    public Request post(String url, BodyWriter body) {
+        HttpPost request = new HttpPost(url);
+        request.setEntity(new BodyEntity(body));
+        return new ApacheRequest(request);
+    }
+
+    @Override
+    public void release() {
+        try {
+            mHttpClient.close();
+        } catch (Throwable t) {
+        }
+    }
+
+    /**
+     * 包装{@link HttpGet}或{@link HttpPost}
+     */
+    private class ApacheRequest implements Request {
+        /** 请求 */
+        private final HttpRequestBase mRequest;
+
+        ApacheRequest(HttpRequestBase request) {
+            mRequest = request;
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+            mRequest.setHeader(name, value);
+        }
+
+        @Override
+        public void setTimeout(int connectTimeoutMillis, int readTimeoutMillis) {
+            mRequest.setConfig(RequestConfig.custom()
+                    .setConnectTimeout(connectTimeoutMillis)
+                    .setSocketTimeout(readTimeoutMillis)
+                    .build());
+        }
+
+        @Override
+        public Response execute() throws IOException {
+            HttpClientContext context = HttpClientContext.create();
+            HttpResponse httpResponse = mHttpClient.execute(mRequest, context);
+            return new ApacheResponse(this, httpResponse, context);
+        }
+
+        @Override
+        public void abort() {
+            // 已读完的连接已经归还连接池, abort不会影响其复用
+            try {
+                mRequest.abort();
+            } catch (Throwable t) {
+            }
+        }
+    }
+
+    /**
+     * 包装{@link HttpResponse}
+     */
+    private static class ApacheResponse implements Response {
+        /** 所属的请求 */
+        private final ApacheRequest mRequest;
+        /** 响应 */
+        private final HttpResponse mResponse;
+        /** 本次请求的上下文, 用于获取连接信息 */
+        private final HttpClientContext mContext;
+        /** 响应体, 只能获取一次 */
+        private InputStream mBody;
+
+        ApacheResponse(ApacheRequest request, HttpResponse response, HttpClientContext context) {
+            mRequest = request;
+            mResponse = response;
+            mContext = context;
+        }
+
+        @Override
+        public int getStatusCode() {
+            return mResponse != null && mResponse.getStatusLine() != null
+                    ? mResponse.getStatusLine().getStatusCode() : -1;
+        }
+
+        @Override
+        public InputStream getBody() throws IOException {
+            if (mBody == null && mResponse != null) {
+                HttpEntity entity = mResponse.getEntity();
+                mBody = entity != null ? entity.getContent() : null;
+            }
+            return mBody;
+        }
+
+        @Override
+        public int getConnectionState() {
+            HttpConnection connection = mContext.getConnection();
+            if (connection == null || connection.getMetrics() == null) {
+                return CONNECTION_UNKNOWN;
+            }
+            // 连接上发出的请求数大于1, 说明该连接之前已经被使用过
+            return connection.getMetrics().getRequestCount() > 1 ? CONNECTION_REUSED : CONNECTION_NEW;
+        }
+
+        @Override
+        public void close() {
+            // 先abort再关闭流, 否则关闭未读完的流会把剩余的数据读完
+            mRequest.abort();
+            SpeedTestUtils.closeSafely(mBody);
+        }
+    }
+
+    /**
+     * 以chunked方式写出{@link BodyWriter}的请求体
+     */
+    private static class BodyEntity extends AbstractHttpEntity {
+        /** 请求体 */
+        private final BodyWriter mBody;
+
+        BodyEntity(BodyWriter body) {
+            mBody = body;
+            setChunked(true);
+            setContentType("application/octet-stream");
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return false;
+        }
+
+        @Override
+        public long getContentLength() {
+            return -1;
+        }
+
+        @Override
+        public InputStream getContent() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return true;
+        }
+
+        @Override
+        public void writeTo(OutputStream outStream) throws IOException {
+            mBody.writeTo(outStream);
+            outStream.flush();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2015 Zlianjie Inc. All rights reserved.
+ */
+package com.zlianjie.coolwifi.speedtest;
+
+/**
+ * 单个测速地址的熔断器。
+ * <pre>
+ *     关闭: 正常请求, 连续失败达到阈值后打开
+ *     打开: 冷却期内跳过该地址
+ *     半开: 冷却期过后放行一次试探请求, 成功则关闭, 失败则重新打开
+ * </pre>
+ *
+ * @author kzw
+ * @since 2015-08-24
+ */
+class CircuitBreaker {
+
+    /** 打开熔断需要的连续失败次数 */
+    private final int mFailureThreshold;
+    /** 熔断打开后的冷却时长 */
+    private final long mOpenMillis;
+    /** 连续失败次数 */
+    private int mFailureCount;
+    /** 冷却结束时间 */
+    private long mOpenUntil;
+
+    /**
+     * 构造方法
+     * @param failureThreshold 打开熔断需要的连续失败次数
+     * @param openMillis 熔断打开后的冷却时长
+     */
+    CircuitBreaker(int failureThreshold, long openMillis) {
+        mFailureThreshold = failureThreshold;
+        mOpenMillis = openMillis;
+    }
+
+    /**
+     * 是否允许请求, 半开状态下只放行一次试探请求, 在结果返回之前其他请求仍被跳过
+     * @param currentTime 当前时间
+     * @return 是否允许
+     */
+    synchronized boolean allowRequest(long currentTime) {
+        if (mFailureCount < mFailureThreshold) {
+            return true;
+        }
+        if (currentTime < mOpenUntil) {
+            return false;
+        }
+        // 试探请求被中断没有结果时, 下一个冷却期过后再次试探
+        mOpenUntil = currentTime + mOpenMillis;
+        return true;
+    }
+
+    /**
+     * 请求成功, 关闭熔断
+     */
+    synchronized void onSuccess() {
+        mFailureCount = 0;
+        mOpenUntil = 0;
+    }
+
+    /**
+     * 请求失败, 达到阈值时打开熔断
+     * @param currentTime 当前时间
+     */
+    synchronized void onFailure(long currentTime) {
+        mFailureCount++;
+        if (mFailureCount >= mFailureThreshold) {
+            mOpenUntil = currentTime + mOpenMillis;
+        }
+    }
+
+    /**
+     * 熔断是否处于打开状态
+     * @param currentTime 当前时间
+     * @return 是否打开
+     */
+    synchronized boolean isOpen(long currentTime) {
+        return mFailureCount >= mFailureThreshold && currentTime < mOpenUntil;
+    }
+}
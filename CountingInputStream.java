@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2015 Zlianjie Inc. All rights reserved.
+ */
+package com.zlianjie.coolwifi.speedtest;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 统计读取字节数的输入流, 多个下载连接可以共享同一个计数器
+ *
+ * @author kzw
+ * @since 2015-08-10
+ */
+class CountingInputStream extends FilterInputStream {
+
+    /** 共享的字节计数器 */
+    private final AtomicLong mCounter;
+
+    /**
+     * 构造方法
+     * @param in 被包装的输入流
+     * @param counter 共享的字节计数器
+     */
+    CountingInputStream(InputStream in, AtomicLong counter) {
+        super(in);
+        mCounter = counter;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b != -1) {
+            mCounter.incrementAndGet();
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+        int n = super.read(buffer, offset, count);
+        if (n > 0) {
+            mCounter.addAndGet(n);
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long byteCount) throws IOException {
+        long n = super.skip(byteCount);
+        if (n > 0) {
+            mCounter.addAndGet(n);
+        }
+        return n;
+    }
+
+    @Override
+    public boolean markSupported() {
+        // reset后会重复计数, 不支持mark
+        return false;
+    }
+}
@@ -34,8 +34,7 @@ import com.zlianjie.coolwifi.util.UIUtils;
     private static final String MB = "M";
 
     /** 刻度值 */
-    private static final float[] SCALE_VALUES = new float[] {0, power2(1), power2(3), power2(5),
-            power2(7), power2(9), power2(11), power2(13)};
+    private static final float[] SCALE_VALUES = DialScale.SCALE_VALUES;
     
     /** 需要绘制的刻度文字 */
     private static final String[] SCALE_LABELS = new String[] {
@@ -113,12 +112,10 @@ import com.zlianjie.coolwifi.util.UIUtils;
     /** 阴影开始角度 */
     private static final float SHADOW_START_ANGLE = START_ANGLE - 360.0f - 5;
 
-    /** 表盘单元格角度值 */
-    private static final float CELL_ANGLE = 30.0f;
     /** 最小角度 */
-    public static final float MIN_ANGLE = -15.0f;
+    public static final float MIN_ANGLE = DialScale.MIN_ANGLE;
     /** 最大角度 */
-    public static final float MAX_ANGLE = 195.0f;
+    public static final float MAX_ANGLE = DialScale.MAX_ANGLE;
     /** 当前指针角度 */
     private float mCurrAngle = MIN_ANGLE;
 
@@ -413,57 +410,13 @@ import com.zlianjie.coolwifi.util.UIUtils;
     }
 
     /**
-     * 计算2的指数
-     * @param n
-     * @return
-     */
-    private static float power2(int n) {
-        return (float) Math.pow(2, n);
-    }
-
-    /**
-     * 根据网速计算角度
+     * 根据网速计算角度, 计算由{@link DialScale}完成
      *
      * @param speed
      * @return
      */
-    float calculateAngle(int speed) {
-        float speedValue;
-        // speedValue的单位是kb
-        speedValue = (float) speed / Constant.KB_IN_BYTES;
-        if (speedValue <= SCALE_VALUES[0]) {
-            return MIN_ANGLE;
-        } else if (speedValue > SCALE_VALUES[SCALE_VALUES.length - 1]) {
-            return MAX_ANGLE;
-        }
-        int lower = SCALE_VALUES.length;
-        int upper = lower;
-        for (int i = 0; i < SCALE_VALUES.length; i++) {
-            if (speedValue < SCALE_VALUES[i]) {
-                lower = i - 1;
-                upper = i;
-                break;
-            }
-        }
-        return linearFitting(speedValue, lower, upper);
-    }
-    
-    /**
-     * 根据网速计算角度，为了计算效率，采用线段拟合近似的方式。
-     * @param speedValue
-     * @param start
-     * @param end
-     * @return
-     */
-    private float linearFitting(float speedValue, int start, int end) {
-        if (start < 0) {
-            start = 0;
-        }
-        if (end >= SCALE_VALUES.length) {
-            end = SCALE_VALUES.length - 1;
-        }
-        return CELL_ANGLE * (end - 1) + (speedValue - SCALE_VALUES[start]) / (SCALE_VALUES[end]
-                - SCALE_VALUES[start]) * CELL_ANGLE - Math.abs(MIN_ANGLE);
+    static float calculateAngle(int speed) {
+        return DialScale.calculateAngle(speed);
     }
 
     /**
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2015 Zlianjie Inc. All rights reserved.
+ */
+package com.zlianjie.coolwifi.speedtest;
+
+/**
+ * 表盘刻度和指针角度的计算, 不依赖Android, {@link DialChartView}绘制时使用, 也可以在JVM上做基准测试
+ *
+ * @author kzw
+ * @since 2015-09-09
+ */
+final class DialScale {
+
+    /** 刻度值(KB/s) */
+    static final float[] SCALE_VALUES = new float[] {0, power2(1), power2(3), power2(5),
+            power2(7), power2(9), power2(11), power2(13)};
+
+    /** 表盘单元格角度值 */
+    private static final float CELL_ANGLE = 30.0f;
+    /** 最小角度 */
+    static final float MIN_ANGLE = -15.0f;
+    /** 最大角度 */
+    static final float MAX_ANGLE = 195.0f;
+
+    private DialScale() {
+    }
+
+    /**
+     * 计算2的指数
+     * @param n
+     * @return
+     */
+    private static float power2(int n) {
+        return (float) Math.pow(2, n);
+    }
+
+    /**
+     * 根据网速计算角度, 只依赖静态的刻度值, 每帧调用
+     *
+     * @param speed
+     * @return
+     */
+    static float calculateAngle(int speed) {
+        float speedValue;
+        // speedValue的单位是kb
+        speedValue = (float) speed / SpeedTestUtils.KB_IN_BYTES;
+        if (speedValue <= SCALE_VALUES[0]) {
+            return MIN_ANGLE;
+        } else if (speedValue > SCALE_VALUES[SCALE_VALUES.length - 1]) {
+            return MAX_ANGLE;
+        }
+        int lower = SCALE_VALUES.length;
+        int upper = lower;
+        for (int i = 0; i < SCALE_VALUES.length; i++) {
+            if (speedValue < SCALE_VALUES[i]) {
+                lower = i - 1;
+                upper = i;
+                break;
+            }
+        }
+        return linearFitting(speedValue, lower, upper);
+    }
+
+    /**
+     * 根据网速计算角度，为了计算效率，采用线段拟合近似的方式。
+     * @param speedValue
+     * @param start
+     * @param end
+     * @return
+     */
+    private static float linearFitting(float speedValue, int start, int end) {
+        if (start < 0) {
+            start = 0;
+        }
+        if (end >= SCALE_VALUES.length) {
+            end = SCALE_VALUES.length - 1;
+        }
+        return CELL_ANGLE * (end - 1) + (speedValue - SCALE_VALUES[start]) / (SCALE_VALUES[end]
+                - SCALE_VALUES[start]) * CELL_ANGLE - Math.abs(MIN_ANGLE);
+    }
+}
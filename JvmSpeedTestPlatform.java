@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2015 Zlianjie Inc. All rights reserved.
+ */
+package com.zlianjie.coolwifi.speedtest;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * 纯JVM上的运行平台, 测速地址由调用方传入, 不统计网卡流量。
+ * 默认使用{@link RawSocketTransport}, 不依赖HttpClient; 指定Apache传输层时只有classpath中有HttpClient才使用,
+ * 否则同样使用{@link RawSocketTransport}
+ *
+ * @author kzw
+ * @since 2015-09-03
+ */
+public class JvmSpeedTestPlatform implements SpeedTestPlatform {
+    /** log tag */
+    private static final String TAG = "JvmSpeedTestPlatform";
+    /** Apache传输层的类名, 按类名加载, 编译引擎时不需要HttpClient */
+    private static final String APACHE_TRANSPORT_CLASS = "com.zlianjie.coolwifi.speedtest.ApacheTransport";
+
+    /** 测速地址配置 */
+    private final SpeedTestConfig mConfig;
+    /** 网络标识 */
+    private final String mNetworkKey;
+    /** 线程CPU时间, 不支持时为null */
+    private final ThreadMXBean mThreadBean;
+
+    /**
+     * 构造方法, 不指定镜像时使用引擎的默认地址
+     */
+    public JvmSpeedTestPlatform() {
+        this((SpeedTestConfig) null, null);
+    }
+
+    /**
+     * 构造方法
+     * @param speedUrls 镜像地址, null时使用引擎的默认地址
+     * @param networkKey 网络标识, 用于缓存镜像选择结果, 可以为null
+     */
+    public JvmSpeedTestPlatform(String[] speedUrls, String networkKey) {
+        this(speedUrls != null ? SpeedTestConfig.fromUrls(speedUrls) : null, networkKey);
+    }
+
+    /**
+     * 构造方法
+     * @param config 测速地址配置, 可以由{@link SpeedTestConfig#load}从文件解析, null时使用引擎的默认地址
+     * @param networkKey 网络标识, 用于缓存镜像选择结果, 可以为null
+     */
+    public JvmSpeedTestPlatform(SpeedTestConfig config, String networkKey) {
+        mConfig = config;
+        mNetworkKey = networkKey;
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        mThreadBean = bean.isCurrentThreadCpuTimeSupported() ? bean : null;
+    }
+
+    @Override
+    public SpeedTestConfig loadConfig() {
+        return mConfig;
+    }
+
+    @Override
+    public String getNetworkKey() {
+        return mNetworkKey;
+    }
+
+    @Override
+    public long getInterfaceTotalBytes() {
+        return 0;
+    }
+
+    @Override
+    public long threadCpuTimeNanos() {
+        return mThreadBean != null ? mThreadBean.getCurrentThreadCpuTime() : 0;
+    }
+
+    @Override
+    public void executeInBackground(Runnable runnable) {
+        SpeedTestUtils.newThread(runnable, "speed_test_background").start();
+    }
+
+    @Override
+    public SpeedTestTransport createTransport(int transportType, int maxConnections, int connectTimeoutMillis,
+            int readTimeoutMillis) {
+        switch (transportType) {
+            case SpeedTestEngine.TRANSPORT_URL_CONNECTION:
+                return new UrlConnectionTransport(connectTimeoutMillis, readTimeoutMillis);
+            case SpeedTestEngine.TRANSPORT_APACHE:
+                SpeedTestTransport transport = newApacheTransport(maxConnections, connectTimeoutMillis,
+                        readTimeoutMillis);
+                if (transport != null) {
+                    return transport;
+                }
+                break;
+            default:
+                break;
+        }
+        return new RawSocketTransport(connectTimeoutMillis, readTimeoutMillis);
+    }
+
+    /**
+     * 按类名创建Apache传输层
+     * @param maxConnections 连接池的最大连接数
+     * @param connectTimeoutMillis 默认连接超时
+     * @param readTimeoutMillis 默认读取超时
+     * @return {@link SpeedTestTransport}, classpath中没有HttpClient时返回null
+     */
+    private static SpeedTestTransport newApacheTransport(int maxConnections, int connectTimeoutMillis,
+            int readTimeoutMillis) {
+        try {
+            return (SpeedTestTransport) Class.forName(APACHE_TRANSPORT_CLASS)
+                    .getDeclaredConstructor(int.class, int.class, int.class)
+                    .newInstance(maxConnections, connectTimeoutMillis, readTimeoutMillis);
+        } catch (ReflectiveOperationException | LinkageError e) {
+            if (SpeedTestLog.isEnabled()) {
+                SpeedTestLog.w(TAG, "apache transport unavailable, use raw socket, " + e);
+            }
+            return null;
+        }
+    }
+}
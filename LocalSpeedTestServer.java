@@ -0,0 +1,419 @@
+/*
+ * Copyright (C) 2015 Zlianjie Inc. All rights reserved.
+ */
+package com.zlianjie.coolwifi.speedtest;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 本地测速服务, 监听回环地址, 用于离线测试测速Task和测量引擎本身的吞吐上限。
+ * <pre>
+ *     GET: 返回{@link #setDownloadSize(long)}大小的生成数据, 支持"Range: bytes=a-b", 充当下载测速的镜像
+ *     POST: 读完并丢弃请求体(支持Content-Length和chunked), 返回200, 充当上传测速的接收端
+ * </pre>
+ * 同一连接上可以处理多个keep-alive请求。
+ * 设置{@link #setRateLimit(long)}后所有连接发送数据的总速率不超过限速值, 用于检验测得速率的准确性。
+ *
+ * @author kzw
+ * @since 2015-08-12
+ */
+public class LocalSpeedTestServer {
+
+    /** 丢弃数据用的缓存大小 */
+    private static final int BUFFER_SIZE = 16 * 1024;
+    /** 请求行、头部的最大长度 */
+    private static final int MAX_LINE_LENGTH = 8 * 1024;
+    /** 默认的下载文件大小 */
+    private static final long DEFAULT_DOWNLOAD_SIZE = 64 * 1024 * 1024;
+    /** 生成数据的大小, 发送时循环使用 */
+    private static final int PAYLOAD_SIZE = 64 * 1024;
+    /** 限速时每次发送的最小数据量 */
+    private static final int MIN_PACED_WRITE_SIZE = 1024;
+    /** 限速时每秒最多发送的次数, 次数越多速率越平滑 */
+    private static final int PACED_WRITES_PER_SECOND = 100;
+    /** 限速时允许积累的发送额度, 避免空闲之后突发 */
+    private static final long MAX_PACE_CREDIT_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    /** 下载返回的数据, 不可压缩 */
+    private static final byte[] PAYLOAD = new byte[PAYLOAD_SIZE];
+
+    static {
+        new Random(0).nextBytes(PAYLOAD);
+    }
+
+    /** 监听socket */
+    private ServerSocket mServerSocket;
+    /** 是否正在运行 */
+    private volatile boolean isRunning = false;
+    /** 接收到的请求体字节数 */
+    private final AtomicLong mReceivedBytes = new AtomicLong();
+    /** 发送的下载数据字节数 */
+    private final AtomicLong mSentBytes = new AtomicLong();
+    /** 下载文件大小 */
+    private volatile long mDownloadSize = DEFAULT_DOWNLOAD_SIZE;
+    /** 发送限速(字节/秒), 0表示不限速 */
+    private volatile long mRateLimit;
+    /** 限速时下一次允许发送的时间(纳秒), 所有连接共享 */
+    private long mNextSendNanos;
+    /** {@link #mNextSendNanos}的锁 */
+    private final Object mPaceLock = new Object();
+
+    /**
+     * 在回环地址的随机端口上启动服务
+     * @throws IOException 端口监听失败
+     */
+    public synchronized void start() throws IOException {
+        if (isRunning) {
+            return;
+        }
+        mServerSocket = new ServerSocket(0, 0, InetAddress.getByName("127.0.0.1"));
+        isRunning = true;
+        SpeedTestUtils.newThread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "speed_test_server").start();
+    }
+
+    /**
+     * 停止服务
+     */
+    public synchronized void stop() {
+        isRunning = false;
+        SpeedTestUtils.closeSafely(mServerSocket);
+    }
+
+    /**
+     * 服务监听的端口
+     * @return 端口
+     */
+    public int getPort() {
+        return mServerSocket != null ? mServerSocket.getLocalPort() : -1;
+    }
+
+    /**
+     * 设置下载文件大小, 测速会在文件之间切换, 文件越大连接切换越少
+     * @param size 字节数
+     */
+    public void setDownloadSize(long size) {
+        mDownloadSize = Math.max(1, size);
+    }
+
+    /**
+     * 设置所有连接发送数据的总速率上限
+     * @param bytesPerSecond 字节/秒, 0表示不限速
+     */
+    public void setRateLimit(long bytesPerSecond) {
+        mRateLimit = Math.max(0, bytesPerSecond);
+    }
+
+    /**
+     * 发送限速
+     * @return 字节/秒, 0表示不限速
+     */
+    public long getRateLimit() {
+        return mRateLimit;
+    }
+
+    /**
+     * 下载测速的镜像地址
+     * @return url
+     */
+    public String getDownloadUrl() {
+        return "http://127.0.0.1:" + getPort() + "/download";
+    }
+
+    /**
+     * 上传测速的接收地址
+     * @return url
+     */
+    public String getUploadUrl() {
+        return "http://127.0.0.1:" + getPort() + "/upload";
+    }
+
+    /**
+     * 接收到的请求体字节数
+     * @return 字节数
+     */
+    public long getReceivedBytes() {
+        return mReceivedBytes.get();
+    }
+
+    /**
+     * 发送的下载数据字节数
+     * @return 字节数
+     */
+    public long getSentBytes() {
+        return mSentBytes.get();
+    }
+
+    /**
+     * 接受连接, 每个连接一个线程
+     */
+    private void accept() {
+        while (isRunning) {
+            final Socket socket;
+            try {
+                socket = mServerSocket.accept();
+            } catch (IOException e) {
+                break;
+            }
+            SpeedTestUtils.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    serve(socket);
+                }
+            }, "speed_test_server_conn").start();
+        }
+    }
+
+    /**
+     * 处理一个连接上的所有请求
+     * @param socket 客户端连接
+     */
+    private void serve(Socket socket) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE);
+            OutputStream out = socket.getOutputStream();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (isRunning) {
+                String requestLine = readLine(in);
+                if (requestLine == null) {
+                    break;
+                }
+                if (requestLine.length() == 0) {
+                    continue;
+                }
+                boolean get = requestLine.startsWith("GET ");
+                long contentLength = 0;
+                boolean chunked = false;
+                boolean close = false;
+                String range = null;
+                String header;
+                while ((header = readLine(in)) != null && header.length() > 0) {
+                    int colon = header.indexOf(':');
+                    if (colon <= 0) {
+                        continue;
+                    }
+                    String name = header.substring(0, colon).trim().toLowerCase(Locale.US);
+                    String value = header.substring(colon + 1).trim();
+                    if ("content-length".equals(name)) {
+                        contentLength = Long.parseLong(value);
+                    } else if ("transfer-encoding".equals(name)) {
+                        chunked = value.toLowerCase(Locale.US).contains("chunked");
+                    } else if ("connection".equals(name)) {
+                        close = "close".equalsIgnoreCase(value);
+                    } else if ("range".equals(name)) {
+                        range = value;
+                    }
+                }
+                if (header == null) {
+                    break;
+                }
+                if (chunked) {
+                    discardChunked(in, buffer);
+                } else {
+                    discard(in, buffer, contentLength);
+                }
+                if (get) {
+                    sendDownload(out, range);
+                } else {
+                    out.write("HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n".getBytes("US-ASCII"));
+                }
+                out.flush();
+                if (close) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            // 客户端中断连接
+        } catch (NumberFormatException e) {
+            // 非法请求
+        } finally {
+            SpeedTestUtils.closeSafely(socket);
+        }
+    }
+
+    /**
+     * 返回下载数据, 有合法的Range时只返回该范围
+     * @param out 输出流
+     * @param range Range请求头, 没有时为null
+     * @throws IOException 写入失败
+     */
+    private void sendDownload(OutputStream out, String range) throws IOException {
+        final long size = mDownloadSize;
+        long start = 0;
+        long end = size - 1;
+        boolean partial = false;
+        if (range != null && range.startsWith("bytes=")) {
+            int dash = range.indexOf('-');
+            if (dash > 0) {
+                String first = range.substring("bytes=".length(), dash).trim();
+                String last = range.substring(dash + 1).trim();
+                if (first.length() > 0) {
+                    start = Long.parseLong(first);
+                    if (last.length() > 0) {
+                        end = Math.min(end, Long.parseLong(last));
+                    }
+                } else if (last.length() > 0) {
+                    // bytes=-n, 最后n个字节
+                    start = Math.max(0, size - Long.parseLong(last));
+                }
+                partial = start <= end;
+            }
+        }
+        if (!partial) {
+            start = 0;
+            end = size - 1;
+        }
+        final long length = end - start + 1;
+        StringBuilder head = new StringBuilder(128);
+        if (partial) {
+            head.append("HTTP/1.1 206 Partial Content\r\n");
+            head.append("Content-Range: bytes ").append(start).append('-').append(end)
+                    .append('/').append(size).append("\r\n");
+        } else {
+            head.append("HTTP/1.1 200 OK\r\n");
+        }
+        head.append("Content-Type: application/octet-stream\r\n");
+        head.append("Content-Length: ").append(length).append("\r\n\r\n");
+        out.write(head.toString().getBytes("US-ASCII"));
+
+        long remaining = length;
+        int offset = (int) (start % PAYLOAD_SIZE);
+        while (remaining > 0 && isRunning) {
+            int count = (int) Math.min(remaining, Math.min(getWriteSize(), PAYLOAD_SIZE - offset));
+            pace(count);
+            out.write(PAYLOAD, offset, count);
+            mSentBytes.addAndGet(count);
+            remaining -= count;
+            offset = (offset + count) % PAYLOAD_SIZE;
+        }
+    }
+
+    /**
+     * 每次发送的数据量, 限速时按限速值拆小, 使速率更平滑
+     * @return 字节数
+     */
+    private int getWriteSize() {
+        final long rate = mRateLimit;
+        if (rate <= 0) {
+            return PAYLOAD_SIZE;
+        }
+        return (int) Math.max(MIN_PACED_WRITE_SIZE, Math.min(PAYLOAD_SIZE, rate / PACED_WRITES_PER_SECOND));
+    }
+
+    /**
+     * 限速时等到允许发送count个字节为止, 所有连接共享同一个额度
+     * @param count 将要发送的字节数
+     * @throws IOException 等待时线程被中断
+     */
+    private void pace(int count) throws IOException {
+        final long rate = mRateLimit;
+        if (rate <= 0) {
+            return;
+        }
+        long waitNanos;
+        synchronized (mPaceLock) {
+            long now = System.nanoTime();
+            if (mNextSendNanos < now - MAX_PACE_CREDIT_NANOS) {
+                mNextSendNanos = now - MAX_PACE_CREDIT_NANOS;
+            }
+            waitNanos = mNextSendNanos - now;
+            mNextSendNanos += count * TimeUnit.SECONDS.toNanos(1) / rate;
+        }
+        if (waitNanos <= 0) {
+            return;
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    /**
+     * 丢弃chunked编码的请求体
+     * @param in 输入流
+     * @param buffer 缓存
+     * @throws IOException 读取失败
+     */
+    private void discardChunked(InputStream in, byte[] buffer) throws IOException {
+        while (true) {
+            String sizeLine = readLine(in);
+            if (sizeLine == null) {
+                throw new IOException("unexpected end of chunked body");
+            }
+            int extension = sizeLine.indexOf(';');
+            if (extension >= 0) {
+                sizeLine = sizeLine.substring(0, extension);
+            }
+            long size = Long.parseLong(sizeLine.trim(), 16);
+            if (size == 0) {
+                // 跳过trailer
+                String trailer;
+                while ((trailer = readLine(in)) != null && trailer.length() > 0) {
+                }
+                return;
+            }
+            discard(in, buffer, size);
+            // chunk后面的CRLF
+            readLine(in);
+        }
+    }
+
+    /**
+     * 丢弃指定长度的数据
+     * @param in 输入流
+     * @param buffer 缓存
+     * @param length 长度
+     * @throws IOException 读取失败
+     */
+    private void discard(InputStream in, byte[] buffer, long length) throws IOException {
+        while (length > 0) {
+            int n = in.read(buffer, 0, (int) Math.min(buffer.length, length));
+            if (n == -1) {
+                throw new IOException("unexpected end of body");
+            }
+            length -= n;
+            mReceivedBytes.addAndGet(n);
+        }
+    }
+
+    /**
+     * 读取一行, 去掉行尾的CRLF
+     * @param in 输入流
+     * @return 行内容, 流结束时返回null
+     * @throws IOException 读取失败
+     */
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                int length = sb.length();
+                if (length > 0 && sb.charAt(length - 1) == '\r') {
+                    sb.setLength(length - 1);
+                }
+                return sb.toString();
+            }
+            if (sb.length() >= MAX_LINE_LENGTH) {
+                throw new IOException("line too long");
+            }
+            sb.append((char) c);
+        }
+        return sb.length() > 0 ? sb.toString() : null;
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2015 Zlianjie Inc. All rights reserved.
+ */
+package com.zlianjie.coolwifi.speedtest;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 测速进度从测速线程到UI线程的单生产者/单消费者无锁通道。
+ * 进度记录按字段保存在预先分配的基本类型环形数组中, 写入和读取都不分配内存:
+ * <pre>
+ *     生产者: 负责刷新速率的测速线程, 调用{@link #offer}, 由引擎的锁保证同一时刻只有一个线程写入
+ *     消费者: UI线程, 每帧调用{@link #poll}读完所有记录
+ * </pre>
+ * 写指针在记录的所有字段写完之后才发布, 读到的每条记录都是完整一致的。
+ * 通道写满时丢弃新的记录, 消费者每帧都会读空, 正常情况下不会写满
+ *
+ * @author kzw
+ * @since 2015-08-28
+ */
+class ProgressChannel {
+
+    /** 环形数组下标掩码 */
+    private final int mMask;
+    /** 记录时间 */
+    private final long[] mTimes;
+    /** 测速类型 */
+    private final int[] mTestTypes;
+    /** 任务状态 */
+    private final int[] mStates;
+    /** 瞬时速率 */
+    private final int[] mCurrentSpeeds;
+    /** 平均速率 */
+    private final int[] mAvgSpeeds;
+    /** 从第一个字节开始计算的平均速率 */
+    private final int[] mRawAvgSpeeds;
+    /** 按WiFi网卡总流量计算的平均速率 */
+    private final int[] mInterfaceAvgSpeeds;
+    /** 累计字节数 */
+    private final long[] mBytes;
+    /** 下一条要读取的记录序号, 只由消费者写入 */
+    private final AtomicLong mHead = new AtomicLong();
+    /** 下一条要写入的记录序号, 只由生产者写入 */
+    private final AtomicLong mTail = new AtomicLong();
+    /** 写满时丢弃的记录数 */
+    private volatile long mDroppedCount;
+
+    /**
+     * 构造方法
+     * @param capacity 容量, 向上取2的幂
+     */
+    ProgressChannel(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        mMask = size - 1;
+        mTimes = new long[size];
+        mTestTypes = new int[size];
+        mStates = new int[size];
+        mCurrentSpeeds = new int[size];
+        mAvgSpeeds = new int[size];
+        mRawAvgSpeeds = new int[size];
+        mInterfaceAvgSpeeds = new int[size];
+        mBytes = new long[size];
+    }
+
+    /**
+     * 写入一条进度记录, 只能由生产者线程调用
+     * @param time 记录时间
+     * @param testType 测速类型
+     * @param state 任务状态
+     * @param currentSpeed 瞬时速率
+     * @param avgSpeed 平均速率
+     * @param rawAvgSpeed 从第一个字节开始计算的平均速率
+     * @param interfaceAvgSpeed 按WiFi网卡总流量计算的平均速率
+     * @param bytes 累计字节数
+     * @return 是否写入, 通道已满时返回false
+     */
+    boolean offer(long time, int testType, int state, int currentSpeed, int avgSpeed,
+            int rawAvgSpeed, int interfaceAvgSpeed, long bytes) {
+        final long tail = mTail.get();
+        if (tail - mHead.get() > mMask) {
+            mDroppedCount++;
+            return false;
+        }
+        final int index = (int) tail & mMask;
+        mTimes[index] = time;
+        mTestTypes[index] = testType;
+        mStates[index] = state;
+        mCurrentSpeeds[index] = currentSpeed;
+        mAvgSpeeds[index] = avgSpeed;
+        mRawAvgSpeeds[index] = rawAvgSpeed;
+        mInterfaceAvgSpeeds[index] = interfaceAvgSpeed;
+        mBytes[index] = bytes;
+        // 字段写完之后再发布
+        mTail.lazySet(tail + 1);
+        return true;
+    }
+
+    /**
+     * 读取一条进度记录, 只能由消费者线程调用
+     * @param out 读取到的记录写入该对象, 由消费者复用
+     * @return 是否读到, 通道为空时返回false
+     */
+    boolean poll(SpeedTestEngine.SpeedTest out) {
+        final long head = mHead.get();
+        if (head >= mTail.get()) {
+            return false;
+        }
+        final int index = (int) head & mMask;
+        out.set(mTimes[index], mTestTypes[index], mStates[index], mCurrentSpeeds[index], mAvgSpeeds[index],
+                mRawAvgSpeeds[index], mInterfaceAvgSpeeds[index], mBytes[index]);
+        // 字段读完之后才释放该位置
+        mHead.lazySet(head + 1);
+        return true;
+    }
+
+    /**
+     * 丢弃所有未读的记录, 只能由消费者线程调用
+     */
+    void clear() {
+        mHead.lazySet(mTail.get());
+    }
+
+    /**
+     * 写满时丢弃的记录数
+     * @return 记录数
+     */
+    long getDroppedCount() {
+        return mDroppedCount;
+    }
+}
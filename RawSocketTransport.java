@@ -0,0 +1,588 @@
+/*
+ * Copyright (C) 2015 Zlianjie Inc. All rights reserved.
+ */
+package com.zlianjie.coolwifi.speedtest;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * 直接在socket上收发HTTP/1.1请求的最简传输层, 用于衡量HTTP客户端本身的开销。
+ * <pre>
+ *     只支持http, 不支持https、重定向、代理和压缩
+ *     响应体支持Content-Length、chunked和读到连接关闭三种方式
+ *     请求体以chunked方式发送
+ * </pre>
+ * 读完响应体的连接按host:port保留在空闲连接池中复用。
+ *
+ * @author kzw
+ * @since 2015-08-31
+ */
+class RawSocketTransport implements SpeedTestTransport {
+
+    /** 响应头的读缓存大小, 读响应体时缓存为空且读取长度大于缓存时直接读socket */
+    private static final int INPUT_BUFFER_SIZE = 8 * 1024;
+    /** 请求头和chunk的写缓存大小 */
+    private static final int OUTPUT_BUFFER_SIZE = 16 * 1024;
+    /** 响应头一行的最大长度 */
+    private static final int MAX_LINE_LENGTH = 8 * 1024;
+    /** 每个host:port最多保留的空闲连接数 */
+    private static final int MAX_IDLE_PER_ROUTE = 8;
+    /** http默认端口 */
+    private static final int DEFAULT_PORT = 80;
+
+    /** 默认连接超时 */
+    private final int mConnectTimeoutMillis;
+    /** 默认读取超时 */
+    private final int mReadTimeoutMillis;
+    /** host:port -> 空闲连接 */
+    private final Map<String, LinkedList<Connection>> mIdleConnections = new HashMap<>();
+    /** 是否已释放 */
+    private volatile boolean isReleased = false;
+
+    /**
+     * 构造方法
+     * @param connectTimeoutMillis 默认连接超时
+     * @param readTimeoutMillis 默认读取超时
+     */
+    RawSocketTransport(int connectTimeoutMillis, int readTimeoutMillis) {
+        mConnectTimeoutMillis = connectTimeoutMillis;
+        mReadTimeoutMillis = readTimeoutMillis;
+    }
+
+    @Override
+    public String getName() {
+        return "socket";
+    }
+
+    @Override
+    public Request get(String url) {
+        return new RawRequest(url, null);
+    }
+
+    @Override
+    public Request post(String url, BodyWriter body) {
+        return new RawRequest(url, body);
+    }
+
+    @Override
+    public void release() {
+        isReleased = true;
+        synchronized (mIdleConnections) {
+            for (LinkedList<Connection> connections : mIdleConnections.values()) {
+                for (Connection connection : connections) {
+                    connection.close();
+                }
+            }
+            mIdleConnections.clear();
+        }
+    }
+
+    /**
+     * 取出一个空闲连接
+     * @param route host:port
+     * @return 连接, 没有可用的空闲连接时返回null
+     */
+    private Connection takeIdleConnection(String route) {
+        synchronized (mIdleConnections) {
+            LinkedList<Connection> connections = mIdleConnections.get(route);
+            while (connections != null && !connections.isEmpty()) {
+                Connection connection = connections.removeLast();
+                if (!connection.mSocket.isClosed()) {
+                    return connection;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * 归还空闲连接, 超过上限或已释放时直接关闭
+     * @param connection 连接
+     */
+    private void putIdleConnection(Connection connection) {
+        synchronized (mIdleConnections) {
+            LinkedList<Connection> connections = mIdleConnections.get(connection.mRoute);
+            if (connections == null) {
+                connections = new LinkedList<>();
+                mIdleConnections.put(connection.mRoute, connections);
+            }
+            if (!isReleased && connections.size() < MAX_IDLE_PER_ROUTE) {
+                connections.addLast(connection);
+                return;
+            }
+        }
+        connection.close();
+    }
+
+    /**
+     * 一个socket连接
+     */
+    private static class Connection {
+        /** host:port */
+        private final String mRoute;
+        /** socket */
+        private final Socket mSocket;
+        /** 带缓存的输入流 */
+        private final InputStream mIn;
+        /** 带缓存的输出流 */
+        private final OutputStream mOut;
+
+        Connection(String route, Socket socket) throws IOException {
+            mRoute = route;
+            mSocket = socket;
+            mIn = new BufferedInputStream(socket.getInputStream(), INPUT_BUFFER_SIZE);
+            mOut = new BufferedOutputStream(socket.getOutputStream(), OUTPUT_BUFFER_SIZE);
+        }
+
+        void close() {
+            SpeedTestUtils.closeSafely(mSocket);
+        }
+    }
+
+    /**
+     * 一次请求
+     */
+    private class RawRequest implements Request {
+        /** 地址 */
+        private final String mUrl;
+        /** 请求体, GET请求为null */
+        private final BodyWriter mBody;
+        /** 请求头, 名称和值交替保存 */
+        private final List<String> mHeaders = new ArrayList<>();
+        /** 连接超时 */
+        private int mConnectTimeoutMillis = RawSocketTransport.this.mConnectTimeoutMillis;
+        /** 读取超时 */
+        private int mReadTimeoutMillis = RawSocketTransport.this.mReadTimeoutMillis;
+        /** 正在使用的socket */
+        private volatile Socket mSocket;
+        /** 是否已中断 */
+        private volatile boolean isAborted = false;
+        /** 连接是否已归还连接池, 归还后中断不再关闭socket */
+        private volatile boolean isReleased = false;
+
+        RawRequest(String url, BodyWriter body) {
+            mUrl = url;
+            mBody = body;
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+            mHeaders.add(name);
+            mHeaders.add(value);
+        }
+
+        @Override
+        public void setTimeout(int connectTimeoutMillis, int readTimeoutMillis) {
+            mConnectTimeoutMillis = connectTimeoutMillis;
+            mReadTimeoutMillis = readTimeoutMillis;
+        }
+
+        @Override
+        public Response execute() throws IOException {
+            URL url = new URL(mUrl);
+            if (!"http".equalsIgnoreCase(url.getProtocol())) {
+                throw new IOException("unsupported scheme: " + url.getProtocol());
+            }
+            String host = url.getHost();
+            int port = url.getPort() != -1 ? url.getPort() : DEFAULT_PORT;
+            String route = host + ":" + port;
+            String path = url.getFile().length() > 0 ? url.getFile() : "/";
+            byte[] head = buildHead(host, port, path);
+
+            Connection connection = takeIdleConnection(route);
+            if (connection != null) {
+                try {
+                    return send(connection, head, true);
+                } catch (IOException e) {
+                    // 空闲连接可能已被服务器关闭, 请求体还没有写出时换新连接重试
+                    connection.close();
+                    if (isAborted || mBody != null) {
+                        throw e;
+                    }
+                }
+            }
+            Socket socket = new Socket();
+            mSocket = socket;
+            if (isAborted) {
+                SpeedTestUtils.closeSafely(socket);
+                throw new IOException("request aborted");
+            }
+            try {
+                socket.setTcpNoDelay(true);
+                socket.connect(new InetSocketAddress(host, port), mConnectTimeoutMillis);
+                connection = new Connection(route, socket);
+            } catch (IOException e) {
+                SpeedTestUtils.closeSafely(socket);
+                throw e;
+            }
+            return send(connection, head, false);
+        }
+
+        /**
+         * 生成请求行和请求头
+         * @param host 主机
+         * @param port 端口
+         * @param path 路径
+         * @return 请求头的字节
+         * @throws IOException 编码失败
+         */
+        private byte[] buildHead(String host, int port, String path) throws IOException {
+            StringBuilder sb = new StringBuilder(256);
+            sb.append(mBody != null ? "POST " : "GET ").append(path).append(" HTTP/1.1\r\n");
+            sb.append("Host: ").append(host);
+            if (port != DEFAULT_PORT) {
+                sb.append(':').append(port);
+            }
+            sb.append("\r\n");
+            sb.append("Accept-Encoding: identity\r\n");
+            sb.append("Connection: keep-alive\r\n");
+            if (mBody != null) {
+                sb.append("Content-Type: application/octet-stream\r\n");
+                sb.append("Transfer-Encoding: chunked\r\n");
+            }
+            for (int i = 0; i + 1 < mHeaders.size(); i += 2) {
+                sb.append(mHeaders.get(i)).append(": ").append(mHeaders.get(i + 1)).append("\r\n");
+            }
+            sb.append("\r\n");
+            return sb.toString().getBytes("US-ASCII");
+        }
+
+        /**
+         * 在连接上发送请求并读取响应头
+         * @param connection 连接
+         * @param head 请求头
+         * @param reused 是否为复用的连接
+         * @return {@link Response}
+         * @throws IOException 发送或读取失败
+         */
+        private Response send(Connection connection, byte[] head, boolean reused) throws IOException {
+            mSocket = connection.mSocket;
+            if (isAborted) {
+                connection.close();
+                throw new IOException("request aborted");
+            }
+            connection.mSocket.setSoTimeout(mReadTimeoutMillis);
+            connection.mOut.write(head);
+            if (mBody != null) {
+                ChunkedOutputStream chunked = new ChunkedOutputStream(connection.mOut);
+                mBody.writeTo(chunked);
+                chunked.finish();
+            }
+            connection.mOut.flush();
+
+            String statusLine = readLine(connection.mIn);
+            if (statusLine == null) {
+                throw new IOException("connection closed before response");
+            }
+            int statusCode = parseStatusCode(statusLine);
+            long contentLength = -1;
+            boolean chunked = false;
+            boolean keepAlive = statusLine.startsWith("HTTP/1.1");
+            String header;
+            while ((header = readLine(connection.mIn)) != null && header.length() > 0) {
+                int colon = header.indexOf(':');
+                if (colon <= 0) {
+                    continue;
+                }
+                String name = header.substring(0, colon).trim().toLowerCase(Locale.US);
+                String value = header.substring(colon + 1).trim();
+                if ("content-length".equals(name)) {
+                    contentLength = Long.parseLong(value);
+                } else if ("transfer-encoding".equals(name)) {
+                    chunked = value.toLowerCase(Locale.US).contains("chunked");
+                } else if ("connection".equals(name)) {
+                    keepAlive = !"close".equalsIgnoreCase(value);
+                }
+            }
+            if (header == null) {
+                throw new IOException("connection closed in response headers");
+            }
+            BodyInputStream body;
+            if (chunked) {
+                body = new BodyInputStream(connection.mIn, BodyInputStream.MODE_CHUNKED, 0);
+            } else if (contentLength >= 0) {
+                body = new BodyInputStream(connection.mIn, BodyInputStream.MODE_FIXED, contentLength);
+            } else {
+                // 没有长度信息, 读到连接关闭为止, 连接不能复用
+                body = new BodyInputStream(connection.mIn, BodyInputStream.MODE_UNTIL_CLOSE, 0);
+                keepAlive = false;
+            }
+            return new RawResponse(this, connection, statusCode, body, reused, keepAlive);
+        }
+
+        @Override
+        public void abort() {
+            isAborted = true;
+            Socket socket = mSocket;
+            if (socket != null && !isReleased) {
+                SpeedTestUtils.closeSafely(socket);
+            }
+        }
+    }
+
+    /**
+     * 解析状态行中的状态码
+     * @param statusLine 状态行
+     * @return 状态码
+     * @throws IOException 格式错误
+     */
+    private static int parseStatusCode(String statusLine) throws IOException {
+        int start = statusLine.indexOf(' ');
+        if (start < 0 || start + 4 > statusLine.length()) {
+            throw new IOException("bad status line: " + statusLine);
+        }
+        try {
+            return Integer.parseInt(statusLine.substring(start + 1, start + 4));
+        } catch (NumberFormatException e) {
+            throw new IOException("bad status line: " + statusLine);
+        }
+    }
+
+    /**
+     * 读取一行, 去掉行尾的CRLF
+     * @param in 输入流
+     * @return 行内容, 流结束时返回null
+     * @throws IOException 读取失败
+     */
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                int length = sb.length();
+                if (length > 0 && sb.charAt(length - 1) == '\r') {
+                    sb.setLength(length - 1);
+                }
+                return sb.toString();
+            }
+            if (sb.length() >= MAX_LINE_LENGTH) {
+                throw new IOException("line too long");
+            }
+            sb.append((char) c);
+        }
+        return sb.length() > 0 ? sb.toString() : null;
+    }
+
+    /**
+     * 一次请求的响应
+     */
+    private class RawResponse implements Response {
+        /** 所属的请求 */
+        private final RawRequest mRequest;
+        /** 连接 */
+        private final Connection mConnection;
+        /** 状态码 */
+        private final int mStatusCode;
+        /** 响应体 */
+        private final BodyInputStream mBody;
+        /** 是否为复用的连接 */
+        private final boolean mReused;
+        /** 读完响应体后连接是否可以复用 */
+        private final boolean mKeepAlive;
+
+        RawResponse(RawRequest request, Connection connection, int statusCode, BodyInputStream body,
+                boolean reused, boolean keepAlive) {
+            mRequest = request;
+            mConnection = connection;
+            mStatusCode = statusCode;
+            mBody = body;
+            mReused = reused;
+            mKeepAlive = keepAlive;
+        }
+
+        @Override
+        public int getStatusCode() {
+            return mStatusCode;
+        }
+
+        @Override
+        public InputStream getBody() {
+            return mBody;
+        }
+
+        @Override
+        public int getConnectionState() {
+            return mReused ? CONNECTION_REUSED : CONNECTION_NEW;
+        }
+
+        @Override
+        public void close() {
+            if (mKeepAlive && mBody.isEof() && !mRequest.isAborted) {
+                mRequest.isReleased = true;
+                putIdleConnection(mConnection);
+            } else {
+                mConnection.close();
+            }
+        }
+    }
+
+    /**
+     * 响应体输入流, 按长度、chunked或连接关闭确定结束位置, 关闭时不关闭socket
+     */
+    private static class BodyInputStream extends InputStream {
+        /** 固定长度 */
+        static final int MODE_FIXED = 0;
+        /** chunked编码 */
+        static final int MODE_CHUNKED = 1;
+        /** 读到连接关闭 */
+        static final int MODE_UNTIL_CLOSE = 2;
+
+        /** 连接的输入流 */
+        private final InputStream mIn;
+        /** 结束方式 */
+        private final int mMode;
+        /** 当前chunk或整个响应体剩余的字节数 */
+        private long mRemaining;
+        /** 是否已读到末尾 */
+        private boolean isEof;
+
+        BodyInputStream(InputStream in, int mode, long length) {
+            mIn = in;
+            mMode = mode;
+            mRemaining = length;
+            isEof = mode == MODE_FIXED && length == 0;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int n = read(b, 0, 1);
+            return n == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (isEof) {
+                return -1;
+            }
+            if (count == 0) {
+                return 0;
+            }
+            if (mMode == MODE_UNTIL_CLOSE) {
+                int n = mIn.read(buffer, offset, count);
+                if (n == -1) {
+                    isEof = true;
+                }
+                return n;
+            }
+            if (mMode == MODE_CHUNKED && mRemaining == 0) {
+                mRemaining = readChunkSize();
+                if (mRemaining == 0) {
+                    // 跳过trailer
+                    String trailer;
+                    while ((trailer = readLine(mIn)) != null && trailer.length() > 0) {
+                    }
+                    isEof = true;
+                    return -1;
+                }
+            }
+            int n = mIn.read(buffer, offset, (int) Math.min(count, mRemaining));
+            if (n == -1) {
+                throw new IOException("unexpected end of body");
+            }
+            mRemaining -= n;
+            if (mRemaining == 0) {
+                if (mMode == MODE_FIXED) {
+                    isEof = true;
+                } else {
+                    // chunk后面的CRLF
+                    readLine(mIn);
+                }
+            }
+            return n;
+        }
+
+        /**
+         * 读取下一个chunk的长度
+         * @return 长度
+         * @throws IOException 读取失败或格式错误
+         */
+        private long readChunkSize() throws IOException {
+            String sizeLine = readLine(mIn);
+            if (sizeLine == null) {
+                throw new IOException("unexpected end of chunked body");
+            }
+            int extension = sizeLine.indexOf(';');
+            if (extension >= 0) {
+                sizeLine = sizeLine.substring(0, extension);
+            }
+            try {
+                return Long.parseLong(sizeLine.trim(), 16);
+            } catch (NumberFormatException e) {
+                throw new IOException("bad chunk size: " + sizeLine);
+            }
+        }
+
+        @Override
+        public int available() throws IOException {
+            if (isEof) {
+                return 0;
+            }
+            int available = mIn.available();
+            return mMode == MODE_UNTIL_CLOSE ? available : (int) Math.min(available, mRemaining);
+        }
+
+        boolean isEof() {
+            return isEof;
+        }
+    }
+
+    /**
+     * chunked编码的请求体输出流, 每次写入作为一个chunk
+     */
+    private static class ChunkedOutputStream extends OutputStream {
+        /** CRLF */
+        private static final byte[] CRLF = {'\r', '\n'};
+        /** 最后一个chunk */
+        private static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+
+        /** 连接的输出流 */
+        private final OutputStream mOut;
+
+        ChunkedOutputStream(OutputStream out) {
+            mOut = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) throws IOException {
+            if (count == 0) {
+                return;
+            }
+            mOut.write(Integer.toHexString(count).getBytes("US-ASCII"));
+            mOut.write(CRLF);
+            mOut.write(buffer, offset, count);
+            mOut.write(CRLF);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            mOut.flush();
+        }
+
+        /**
+         * 写出最后一个chunk
+         * @throws IOException 写入失败
+         */
+        void finish() throws IOException {
+            mOut.write(LAST_CHUNK);
+        }
+    }
+}
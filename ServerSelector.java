@@ -0,0 +1,329 @@
+/*
+ * Copyright (C) 2015 Zlianjie Inc. All rights reserved.
+ */
+package com.zlianjie.coolwifi.speedtest;
+
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 测速服务器选择, 并发探测所有镜像的延迟和起始吞吐量, 按得分排序。
+ * 排序结果按接入点缓存, 同一接入点重复测速时不再探测
+ *
+ * @author kzw
+ * @since 2015-08-17
+ */
+class ServerSelector {
+    /** log tag */
+    private static final String TAG = "ServerSelector";
+
+    /** 探测的总时间预算 */
+    private static final long PROBE_BUDGET_MILLIS = 1500;
+    /** 收到响应后读取数据估算吞吐量的时长 */
+    private static final long PROBE_READ_MILLIS = 300;
+    /** 延迟对得分的影响, 延迟每增加该值得分减半 */
+    private static final double LATENCY_WEIGHT_MILLIS = 100;
+    /** 缓存大小 */
+    private static final int BUFFER_SIZE = 8 * 1024;
+    /** 排序结果缓存的有效期 */
+    private static final long CACHE_EXPIRE_MILLIS = 30 * SpeedTestUtils.MINUTE_IN_MILLIS;
+
+    /** 接入点 -> 排序结果 */
+    private static final Map<String, Ranking> sRankingCache = new HashMap<>();
+
+    /** 探测使用的传输层 */
+    private final SpeedTestTransport mTransport;
+    /** 执行探测的线程池, 由引擎提供, 探测线程计入测速线程数 */
+    private final Executor mExecutor;
+    /** 所有镜像的探测 */
+    private volatile Probe[] mProbes;
+    /** 是否已中断 */
+    private volatile boolean isAborted = false;
+
+    /**
+     * 构造方法
+     * @param transport 探测使用的传输层。探测只读下载文件开头的一段数据, 结束时连接没有读完, 直接断开,
+     *                  不会留给测速复用
+     * @param executor 执行探测的线程池, 已满时抛出{@link RejectedExecutionException}, 该镜像按探测失败处理
+     */
+    ServerSelector(SpeedTestTransport transport, Executor executor) {
+        mTransport = transport;
+        mExecutor = executor;
+    }
+
+    /**
+     * 对镜像排序, 优先使用接入点的缓存结果
+     * @param apKey 接入点标识, 为空时不缓存
+     * @param urls 所有镜像地址
+     * @return 按得分从高到低排序的地址, 探测失败的排在最后
+     */
+    String[] rank(String apKey, String[] urls) {
+        if (urls == null || urls.length <= 1) {
+            return urls;
+        }
+        String[] cached = getCachedRanking(apKey, urls);
+        if (cached != null) {
+            if (SpeedTestLog.isEnabled()) {
+                SpeedTestLog.i(TAG, "use cached ranking for " + apKey);
+            }
+            return cached;
+        }
+
+        final Probe[] probes = new Probe[urls.length];
+        for (int i = 0; i < urls.length; i++) {
+            probes[i] = new Probe(urls[i]);
+        }
+        mProbes = probes;
+        final CountDownLatch latch = new CountDownLatch(urls.length);
+        final long deadline = System.currentTimeMillis() + PROBE_BUDGET_MILLIS;
+        for (final Probe probe : probes) {
+            try {
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            probe.run(deadline);
+                        } finally {
+                            latch.countDown();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // 线程池已满, 该镜像按探测失败处理
+                latch.countDown();
+            }
+        }
+        try {
+            latch.await(PROBE_BUDGET_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // 超出预算的探测直接中断, 按已读到的数据计算得分
+        final double[] scores = new double[probes.length];
+        for (int i = 0; i < probes.length; i++) {
+            probes[i].abort();
+            scores[i] = probes[i].getScore();
+            if (SpeedTestLog.isEnabled()) {
+                SpeedTestLog.i(TAG, probes[i].mUrl + ": latency=" + probes[i].mLatencyMillis
+                        + ", bytes=" + probes[i].mBytes + ", score=" + scores[i]);
+            }
+        }
+
+        Integer[] order = new Integer[probes.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                return Double.compare(scores[rhs], scores[lhs]);
+            }
+        });
+        String[] ranked = new String[urls.length];
+        for (int i = 0; i < order.length; i++) {
+            ranked[i] = urls[order[i]];
+        }
+        // 全部失败或被中断时不缓存, 下次重新探测
+        if (scores[order[0]] > 0 && !isAborted) {
+            putCachedRanking(apKey, ranked);
+        }
+        return ranked;
+    }
+
+    /**
+     * 中断所有探测, {@link #rank(String, String[])}会在探测线程退出后尽快返回
+     */
+    void abort() {
+        isAborted = true;
+        Probe[] probes = mProbes;
+        if (probes != null) {
+            for (Probe probe : probes) {
+                probe.abort();
+            }
+        }
+    }
+
+    /**
+     * 获取接入点缓存的排序结果, 过期或镜像配置变化时无效
+     * @param apKey 接入点标识
+     * @param urls 所有镜像地址
+     * @return 排序结果, 无有效缓存时返回null
+     */
+    private static String[] getCachedRanking(String apKey, String[] urls) {
+        if (SpeedTestUtils.isEmpty(apKey)) {
+            return null;
+        }
+        synchronized (sRankingCache) {
+            Ranking ranking = sRankingCache.get(apKey);
+            if (ranking == null) {
+                return null;
+            }
+            if (System.currentTimeMillis() - ranking.mTime > CACHE_EXPIRE_MILLIS
+                    || !ranking.hasSameUrls(urls)) {
+                sRankingCache.remove(apKey);
+                return null;
+            }
+            return ranking.mUrls.clone();
+        }
+    }
+
+    /**
+     * 缓存接入点的排序结果
+     * @param apKey 接入点标识
+     * @param ranked 排序结果
+     */
+    private static void putCachedRanking(String apKey, String[] ranked) {
+        if (SpeedTestUtils.isEmpty(apKey)) {
+            return;
+        }
+        synchronized (sRankingCache) {
+            sRankingCache.put(apKey, new Ranking(ranked));
+        }
+    }
+
+    /**
+     * 清除所有接入点的排序缓存
+     */
+    static void clearCache() {
+        synchronized (sRankingCache) {
+            sRankingCache.clear();
+        }
+    }
+
+    /**
+     * 一个接入点的排序结果
+     */
+    private static class Ranking {
+        /** 排序后的地址 */
+        private final String[] mUrls;
+        /** 探测时间 */
+        private final long mTime;
+
+        Ranking(String[] urls) {
+            mUrls = urls;
+            mTime = System.currentTimeMillis();
+        }
+
+        /**
+         * 镜像配置是否与排序时一致
+         * @param urls 当前的镜像地址
+         * @return 是否一致
+         */
+        boolean hasSameUrls(String[] urls) {
+            String[] lhs = mUrls.clone();
+            String[] rhs = urls.clone();
+            Arrays.sort(lhs);
+            Arrays.sort(rhs);
+            return Arrays.equals(lhs, rhs);
+        }
+    }
+
+    /**
+     * 对一个镜像的探测
+     */
+    private class Probe {
+        /** 镜像地址 */
+        private final String mUrl;
+        /** 探测请求 */
+        private volatile SpeedTestTransport.Request mRequest;
+        /** 收到响应头的耗时, -1表示还未收到或失败 */
+        private volatile long mLatencyMillis = -1;
+        /** 已读到的字节数 */
+        private volatile long mBytes;
+        /** 开始读数据的时间 */
+        private volatile long mReadStartTime;
+        /** 读数据结束的时间, 0表示还在读 */
+        private volatile long mReadEndTime;
+
+        Probe(String url) {
+            mUrl = url;
+        }
+
+        /**
+         * 执行探测, 读取{@link #PROBE_READ_MILLIS}的数据或到达截止时间为止
+         * @param deadline 截止时间
+         */
+        void run(long deadline) {
+            // 在线程池中排队时已超出预算或已被中断
+            if (isAborted || System.currentTimeMillis() >= deadline) {
+                return;
+            }
+            int timeout = (int) Math.max(1, deadline - System.currentTimeMillis());
+            SpeedTestTransport.Request request = mTransport.get(mUrl);
+            request.setTimeout(timeout, timeout);
+            mRequest = request;
+            if (isAborted) {
+                return;
+            }
+            SpeedTestTransport.Response response = null;
+            try {
+                long startTime = System.currentTimeMillis();
+                response = request.execute();
+                if (response.getStatusCode() != HttpURLConnection.HTTP_OK) {
+                    return;
+                }
+                InputStream inStream = response.getBody();
+                if (inStream == null) {
+                    return;
+                }
+                mReadStartTime = System.currentTimeMillis();
+                mLatencyMillis = mReadStartTime - startTime;
+                final long readEnd = Math.min(deadline, mReadStartTime + PROBE_READ_MILLIS);
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int n;
+                while ((n = inStream.read(buffer)) != -1) {
+                    mBytes += n;
+                    if (System.currentTimeMillis() >= readEnd) {
+                        break;
+                    }
+                }
+                mReadEndTime = System.currentTimeMillis();
+            } catch (Exception e) {
+                if (SpeedTestLog.isEnabled()) {
+                    SpeedTestLog.w(TAG, "probe " + mUrl + " failed, " + e);
+                }
+            } finally {
+                // 没有读完的连接直接断开
+                if (response != null) {
+                    response.close();
+                } else {
+                    abort();
+                }
+            }
+        }
+
+        /**
+         * 中断探测
+         */
+        void abort() {
+            SpeedTestTransport.Request request = mRequest;
+            if (request != null) {
+                request.abort();
+            }
+        }
+
+        /**
+         * 得分: 起始吞吐量按延迟指数衰减, 延迟每增加{@link #LATENCY_WEIGHT_MILLIS}得分减半, 未收到响应的得分为0
+         * @return 得分
+         */
+        double getScore() {
+            long latency = mLatencyMillis;
+            if (latency < 0) {
+                return 0;
+            }
+            long end = mReadEndTime > 0 ? mReadEndTime : System.currentTimeMillis();
+            long readMillis = Math.max(1, end - mReadStartTime);
+            double throughput = (double) mBytes * SpeedTestUtils.SECOND_IN_MILLIS / readMillis;
+            // 数据太少时至少保证比失败的镜像得分高
+            return (throughput + 1) * Math.pow(0.5, latency / LATENCY_WEIGHT_MILLIS);
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2015 Zlianjie Inc. All rights reserved.
+ */
+package com.zlianjie.coolwifi.speedtest;
+
+/**
+ * 速率分位数的流式估计, 使用P²算法, 每个分位数只保存5个标记点, 不保存样本。
+ * 记录样本不分配内存, 只能由一个线程写入
+ *
+ * @author kzw
+ * @since 2015-08-27
+ */
+class SpeedPercentiles {
+
+    /** P10 */
+    private final P2Quantile mP10 = new P2Quantile(0.10);
+    /** P50 */
+    private final P2Quantile mP50 = new P2Quantile(0.50);
+    /** P90 */
+    private final P2Quantile mP90 = new P2Quantile(0.90);
+    /** P99 */
+    private final P2Quantile mP99 = new P2Quantile(0.99);
+
+    /**
+     * 清空样本
+     */
+    void reset() {
+        mP10.reset();
+        mP50.reset();
+        mP90.reset();
+        mP99.reset();
+    }
+
+    /**
+     * 记录一个速率样本
+     * @param speed 速率
+     */
+    void add(double speed) {
+        mP10.add(speed);
+        mP50.add(speed);
+        mP90.add(speed);
+        mP99.add(speed);
+    }
+
+    /**
+     * @return P10速率, 没有样本时为0
+     */
+    long getP10() {
+        return (long) mP10.get();
+    }
+
+    /**
+     * @return P50速率, 没有样本时为0
+     */
+    long getP50() {
+        return (long) mP50.get();
+    }
+
+    /**
+     * @return P90速率, 没有样本时为0
+     */
+    long getP90() {
+        return (long) mP90.get();
+    }
+
+    /**
+     * @return P99速率, 没有样本时为0
+     */
+    long getP99() {
+        return (long) mP99.get();
+    }
+
+    /**
+     * 单个分位数的P²估计器
+     * (R. Jain, I. Chlamtac, The P² algorithm for dynamic calculation of quantiles
+     * and histograms without storing observations, 1985)
+     */
+    private static class P2Quantile {
+        /** 标记点数 */
+        private static final int MARKERS = 5;
+
+        /** 要估计的分位数 */
+        private final double mQuantile;
+        /** 标记点的高度, 中间一个即为估计值 */
+        private final double[] mHeights = new double[MARKERS];
+        /** 标记点的实际位置 */
+        private final int[] mPositions = new int[MARKERS];
+        /** 标记点的期望位置 */
+        private final double[] mDesired = new double[MARKERS];
+        /** 每个样本期望位置的增量 */
+        private final double[] mIncrements;
+        /** 样本数 */
+        private int mCount;
+
+        P2Quantile(double quantile) {
+            mQuantile = quantile;
+            mIncrements = new double[] {0, quantile / 2, quantile, (1 + quantile) / 2, 1};
+        }
+
+        void reset() {
+            mCount = 0;
+        }
+
+        void add(double x) {
+            if (mCount < MARKERS) {
+                // 前5个样本按插入排序保存
+                int i = mCount++;
+                while (i > 0 && mHeights[i - 1] > x) {
+                    mHeights[i] = mHeights[i - 1];
+                    i--;
+                }
+                mHeights[i] = x;
+                if (mCount == MARKERS) {
+                    for (int j = 0; j < MARKERS; j++) {
+                        mPositions[j] = j;
+                    }
+                    mDesired[0] = 0;
+                    mDesired[1] = 2 * mQuantile;
+                    mDesired[2] = 4 * mQuantile;
+                    mDesired[3] = 2 + 2 * mQuantile;
+                    mDesired[4] = 4;
+                }
+                return;
+            }
+            mCount++;
+
+            // 找到样本所在的区间, 超出两端时更新极值
+            int k;
+            if (x < mHeights[0]) {
+                mHeights[0] = x;
+                k = 0;
+            } else if (x >= mHeights[MARKERS - 1]) {
+                mHeights[MARKERS - 1] = x;
+                k = MARKERS - 2;
+            } else {
+                k = 0;
+                while (x >= mHeights[k + 1]) {
+                    k++;
+                }
+            }
+            for (int i = k + 1; i < MARKERS; i++) {
+                mPositions[i]++;
+            }
+            for (int i = 0; i < MARKERS; i++) {
+                mDesired[i] += mIncrements[i];
+            }
+
+            // 调整中间3个标记点的高度
+            for (int i = 1; i < MARKERS - 1; i++) {
+                double d = mDesired[i] - mPositions[i];
+                if ((d >= 1 && mPositions[i + 1] - mPositions[i] > 1)
+                        || (d <= -1 && mPositions[i - 1] - mPositions[i] < -1)) {
+                    int s = d > 0 ? 1 : -1;
+                    double height = parabolic(i, s);
+                    if (mHeights[i - 1] < height && height < mHeights[i + 1]) {
+                        mHeights[i] = height;
+                    } else {
+                        mHeights[i] = linear(i, s);
+                    }
+                    mPositions[i] += s;
+                }
+            }
+        }
+
+        private double parabolic(int i, int s) {
+            double n0 = mPositions[i - 1];
+            double n1 = mPositions[i];
+            double n2 = mPositions[i + 1];
+            return mHeights[i] + s / (n2 - n0)
+                    * ((n1 - n0 + s) * (mHeights[i + 1] - mHeights[i]) / (n2 - n1)
+                    + (n2 - n1 - s) * (mHeights[i] - mHeights[i - 1]) / (n1 - n0));
+        }
+
+        private double linear(int i, int s) {
+            return mHeights[i] + s * (mHeights[i + s] - mHeights[i]) / (mPositions[i + s] - mPositions[i]);
+        }
+
+        /**
+         * 当前估计值, 样本少于5个时取已排序样本中对应位置的值
+         * @return 估计值, 没有样本时返回0
+         */
+        double get() {
+            if (mCount == 0) {
+                return 0;
+            }
+            if (mCount < MARKERS) {
+                int index = (int) Math.round(mQuantile * (mCount - 1));
+                return mHeights[index];
+            }
+            return mHeights[2];
+        }
+    }
+}
@@ -0,0 +1,418 @@
+/*
+ * Copyright (C) 2015 Zlianjie Inc. All rights reserved.
+ */
+package com.zlianjie.coolwifi.speedtest;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * 测速结果的紧凑二进制编码, 用于上报, 包含接入点、位置和完整的速率曲线。
+ * 整数使用varint, 有符号数先zigzag; 样本时间记录相邻间隔的差值, 采样间隔稳定时每个样本只占1字节,
+ * 累计字节数记录与前一个样本的差值:
+ * <pre>
+ *     版本         1字节, {@link #VERSION}
+ *     标志         varint, 是否为MAC格式的BSSID、是否有SSID、是否有位置
+ *     BSSID        FLAG_MAC时为6字节, 否则为长度+UTF-8
+ *     SSID         FLAG_SSID时为长度+UTF-8
+ *     位置         FLAG_LOCATION时为纬度、经度, 单位为百万分之一度, zigzag
+ *     测速时间     varint, 毫秒
+ *     类型, 状态   zigzag
+ *     速率         平均值; P10, P50-P10, P90-P50, P99-P90 (zigzag)
+ *     样本数       varint
+ *     样本         第一个为时间和累计字节数(zigzag), 之后为间隔的差值和字节数的差值(zigzag)
+ * </pre>
+ * 同一版本只在末尾追加字段, 解码时忽略末尾未知的内容; 不兼容的修改需要增加版本号, 解码时拒绝未知版本
+ *
+ * @author kzw
+ * @since 2015-09-08
+ */
+public final class SpeedResultCodec {
+
+    /** 当前编码版本 */
+    public static final int VERSION = 1;
+
+    /** BSSID为6字节的MAC地址 */
+    private static final int FLAG_MAC = 1;
+    /** 包含SSID */
+    private static final int FLAG_SSID = 1 << 1;
+    /** 包含位置 */
+    private static final int FLAG_LOCATION = 1 << 2;
+    /** MAC地址的字节数 */
+    private static final int MAC_LENGTH = 6;
+    /** 经纬度的精度, 百万分之一度约为0.1米 */
+    private static final double LOCATION_SCALE = 1e6;
+    /** 字符串编码 */
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private SpeedResultCodec() {
+    }
+
+    /**
+     * 编码一条测速结果
+     * @param report 测速结果
+     * @return 编码后的字节
+     */
+    public static byte[] encode(Report report) {
+        final SpeedTestResult result = report.getResult();
+        final int count = result.getSampleCount();
+        final byte[] mac = parseMac(report.getBssid());
+        int flags = 0;
+        if (mac != null) {
+            flags |= FLAG_MAC;
+        }
+        if (report.getSsid() != null) {
+            flags |= FLAG_SSID;
+        }
+        if (report.hasLocation()) {
+            flags |= FLAG_LOCATION;
+        }
+        // 每个样本一般不超过4字节, 预估后基本不用扩容
+        Writer out = new Writer(64 + count * 4);
+        out.writeByte(VERSION);
+        out.writeVarint(flags);
+        if (mac != null) {
+            out.writeBytes(mac);
+        } else {
+            out.writeString(report.getBssid());
+        }
+        if ((flags & FLAG_SSID) != 0) {
+            out.writeString(report.getSsid());
+        }
+        if ((flags & FLAG_LOCATION) != 0) {
+            out.writeSigned(Math.round(report.getLatitude() * LOCATION_SCALE));
+            out.writeSigned(Math.round(report.getLongitude() * LOCATION_SCALE));
+        }
+        out.writeVarint(report.getTimeMillis());
+        out.writeSigned(result.getTestType());
+        out.writeSigned(result.getTaskState());
+        out.writeVarint(result.getAvgSpeed());
+        out.writeSigned(result.getP10Speed());
+        out.writeSigned(result.getP50Speed() - result.getP10Speed());
+        out.writeSigned(result.getP90Speed() - result.getP50Speed());
+        out.writeSigned(result.getP99Speed() - result.getP90Speed());
+        out.writeVarint(count);
+        long prevTime = 0;
+        long prevInterval = 0;
+        long prevBytes = 0;
+        for (int i = 0; i < count; i++) {
+            final long time = result.getTimeAt(i);
+            final long bytes = result.getBytesAt(i);
+            if (i == 0) {
+                out.writeSigned(time);
+            } else {
+                final long interval = time - prevTime;
+                out.writeSigned(interval - prevInterval);
+                prevInterval = interval;
+            }
+            out.writeSigned(bytes - prevBytes);
+            prevTime = time;
+            prevBytes = bytes;
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * 解码一条测速结果
+     * @param data {@link #encode}的结果
+     * @return 测速结果
+     * @throws IOException 版本未知或数据损坏
+     */
+    public static Report decode(byte[] data) throws IOException {
+        Reader in = new Reader(data);
+        final int version = in.readByte();
+        if (version != VERSION) {
+            throw new IOException("unsupported version " + version);
+        }
+        final int flags = (int) in.readVarint();
+        final String bssid = (flags & FLAG_MAC) != 0 ? formatMac(in.readBytes(MAC_LENGTH)) : in.readString();
+        final String ssid = (flags & FLAG_SSID) != 0 ? in.readString() : null;
+        double latitude = Double.NaN;
+        double longitude = Double.NaN;
+        if ((flags & FLAG_LOCATION) != 0) {
+            latitude = in.readSigned() / LOCATION_SCALE;
+            longitude = in.readSigned() / LOCATION_SCALE;
+        }
+        final long timeMillis = in.readVarint();
+        final int testType = (int) in.readSigned();
+        final int taskState = (int) in.readSigned();
+        final long avgSpeed = in.readVarint();
+        final long p10 = in.readSigned();
+        final long p50 = p10 + in.readSigned();
+        final long p90 = p50 + in.readSigned();
+        final long p99 = p90 + in.readSigned();
+        final long count = in.readVarint();
+        // 每个样本至少2字节, 防止损坏的数据分配过大的数组
+        if (count < 0 || count > in.remaining() / 2) {
+            throw new IOException("invalid sample count " + count);
+        }
+        final long[] times = new long[(int) count];
+        final long[] bytes = new long[(int) count];
+        long interval = 0;
+        for (int i = 0; i < count; i++) {
+            if (i == 0) {
+                times[0] = in.readSigned();
+                bytes[0] = in.readSigned();
+            } else {
+                interval += in.readSigned();
+                times[i] = times[i - 1] + interval;
+                bytes[i] = bytes[i - 1] + in.readSigned();
+            }
+        }
+        return new Report(bssid, ssid, latitude, longitude, timeMillis, new SpeedTestResult(testType, taskState,
+                avgSpeed, p10, p50, p90, p99, times, bytes));
+    }
+
+    /**
+     * 解析"xx:xx:xx:xx:xx:xx"格式的MAC地址, 只接受小写, 保证解码后与原字符串相同
+     * @return 6字节, 格式不符时为null
+     */
+    private static byte[] parseMac(String bssid) {
+        if (bssid == null || bssid.length() != MAC_LENGTH * 3 - 1) {
+            return null;
+        }
+        final byte[] mac = new byte[MAC_LENGTH];
+        for (int i = 0; i < MAC_LENGTH; i++) {
+            final int pos = i * 3;
+            if (i > 0 && bssid.charAt(pos - 1) != ':') {
+                return null;
+            }
+            final int high = hexValue(bssid.charAt(pos));
+            final int low = hexValue(bssid.charAt(pos + 1));
+            if (high < 0 || low < 0) {
+                return null;
+            }
+            mac[i] = (byte) (high << 4 | low);
+        }
+        return mac;
+    }
+
+    private static int hexValue(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        return -1;
+    }
+
+    private static String formatMac(byte[] mac) {
+        final char[] digits = "0123456789abcdef".toCharArray();
+        final char[] chars = new char[MAC_LENGTH * 3 - 1];
+        for (int i = 0; i < MAC_LENGTH; i++) {
+            final int pos = i * 3;
+            if (i > 0) {
+                chars[pos - 1] = ':';
+            }
+            chars[pos] = digits[(mac[i] >> 4) & 0xf];
+            chars[pos + 1] = digits[mac[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * 一条上报的测速结果: 接入点、位置、测速时间和{@link SpeedTestResult}, 不可变
+     */
+    public static final class Report {
+        /** 接入点的BSSID */
+        private final String mBssid;
+        /** 接入点的SSID, 可能为null */
+        private final String mSsid;
+        /** 纬度, 未知时为NaN */
+        private final double mLatitude;
+        /** 经度, 未知时为NaN */
+        private final double mLongitude;
+        /** 测速时间 */
+        private final long mTimeMillis;
+        /** 测速结果 */
+        private final SpeedTestResult mResult;
+
+        /**
+         * 构造方法
+         * @param bssid 接入点的BSSID, 不能为null
+         * @param ssid 接入点的SSID, 可以为null
+         * @param latitude 纬度, 未知时为NaN
+         * @param longitude 经度, 未知时为NaN
+         * @param timeMillis 测速时间
+         * @param result 测速结果
+         */
+        public Report(String bssid, String ssid, double latitude, double longitude, long timeMillis,
+                SpeedTestResult result) {
+            mBssid = bssid;
+            mSsid = ssid;
+            mLatitude = latitude;
+            mLongitude = longitude;
+            mTimeMillis = timeMillis;
+            mResult = result;
+        }
+
+        /**
+         * @return 接入点的BSSID
+         */
+        public String getBssid() {
+            return mBssid;
+        }
+
+        /**
+         * @return 接入点的SSID, 可能为null
+         */
+        public String getSsid() {
+            return mSsid;
+        }
+
+        /**
+         * 是否有位置
+         * @return 经纬度都已知时为true
+         */
+        public boolean hasLocation() {
+            return !Double.isNaN(mLatitude) && !Double.isNaN(mLongitude);
+        }
+
+        /**
+         * @return 纬度, 未知时为NaN
+         */
+        public double getLatitude() {
+            return mLatitude;
+        }
+
+        /**
+         * @return 经度, 未知时为NaN
+         */
+        public double getLongitude() {
+            return mLongitude;
+        }
+
+        /**
+         * @return 测速时间
+         */
+        public long getTimeMillis() {
+            return mTimeMillis;
+        }
+
+        /**
+         * @return 测速结果
+         */
+        public SpeedTestResult getResult() {
+            return mResult;
+        }
+    }
+
+    /**
+     * 写入可扩容的字节数组, 比DataOutputStream少一层流和同步
+     */
+    private static final class Writer {
+        private byte[] mBuffer;
+        private int mSize;
+
+        Writer(int capacity) {
+            mBuffer = new byte[capacity];
+        }
+
+        private void ensureCapacity(int extra) {
+            if (mSize + extra > mBuffer.length) {
+                mBuffer = Arrays.copyOf(mBuffer, Math.max(mBuffer.length * 2, mSize + extra));
+            }
+        }
+
+        void writeByte(int value) {
+            ensureCapacity(1);
+            mBuffer[mSize++] = (byte) value;
+        }
+
+        void writeBytes(byte[] bytes) {
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, mBuffer, mSize, bytes.length);
+            mSize += bytes.length;
+        }
+
+        /**
+         * 无符号varint, 每字节7位, 最高位表示后面还有字节
+         */
+        void writeVarint(long value) {
+            ensureCapacity(10);
+            while ((value & ~0x7fL) != 0) {
+                mBuffer[mSize++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            mBuffer[mSize++] = (byte) value;
+        }
+
+        /**
+         * zigzag后写varint, 绝对值小的负数也只占很少的字节
+         */
+        void writeSigned(long value) {
+            writeVarint((value << 1) ^ (value >> 63));
+        }
+
+        void writeString(String value) {
+            final byte[] bytes = value.getBytes(UTF_8);
+            writeVarint(bytes.length);
+            writeBytes(bytes);
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(mBuffer, mSize);
+        }
+    }
+
+    /**
+     * 从字节数组读取, 越界时抛出IOException
+     */
+    private static final class Reader {
+        private final byte[] mData;
+        private int mPosition;
+
+        Reader(byte[] data) {
+            mData = data;
+        }
+
+        int remaining() {
+            return mData.length - mPosition;
+        }
+
+        int readByte() throws IOException {
+            if (mPosition >= mData.length) {
+                throw new IOException("unexpected end of data");
+            }
+            return mData[mPosition++] & 0xff;
+        }
+
+        byte[] readBytes(int length) throws IOException {
+            if (length < 0 || length > remaining()) {
+                throw new IOException("invalid length " + length);
+            }
+            final byte[] bytes = Arrays.copyOfRange(mData, mPosition, mPosition + length);
+            mPosition += length;
+            return bytes;
+        }
+
+        long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                final int b = readByte();
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("malformed varint");
+        }
+
+        long readSigned() throws IOException {
+            final long value = readVarint();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        String readString() throws IOException {
+            final long length = readVarint();
+            if (length < 0 || length > remaining()) {
+                throw new IOException("invalid string length " + length);
+            }
+            final String value = new String(mData, mPosition, (int) length, UTF_8);
+            mPosition += (int) length;
+            return value;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2015 Zlianjie Inc. All rights reserved.
+ */
+package com.zlianjie.coolwifi.speedtest;
+
+/**
+ * 速率采样器, 用固定大小的环形数组记录(时间, 累计字节数)样本, 计算最近一个时间窗口内的瞬时速率。
+ * 记录样本不分配内存, 只能由一个线程写入
+ *
+ * @author kzw
+ * @since 2015-08-19
+ */
+class SpeedSampler {
+
+    /** 样本时间(毫秒) */
+    private final long[] mTimes;
+    /** 样本对应的累计字节数 */
+    private final long[] mBytes;
+    /** 下一个样本写入的位置 */
+    private int mHead;
+    /** 已记录的样本数 */
+    private int mSize;
+
+    /**
+     * 构造方法
+     * @param capacity 最多保留的样本数
+     */
+    SpeedSampler(int capacity) {
+        mTimes = new long[capacity];
+        mBytes = new long[capacity];
+    }
+
+    /**
+     * 清空样本
+     */
+    void reset() {
+        mHead = 0;
+        mSize = 0;
+    }
+
+    /**
+     * 记录一个样本, 数组写满后覆盖最旧的样本
+     * @param time 时间(毫秒)
+     * @param totalBytes 累计字节数
+     */
+    void add(long time, long totalBytes) {
+        mTimes[mHead] = time;
+        mBytes[mHead] = totalBytes;
+        mHead = (mHead + 1) % mTimes.length;
+        if (mSize < mTimes.length) {
+            mSize++;
+        }
+    }
+
+    /**
+     * 计算最近一个时间窗口内的速率, 以最新样本为终点, 往前找到第一个超出窗口的样本为起点。
+     * 样本不足一个窗口时使用最旧的样本
+     * @param windowMillis 窗口时长(毫秒)
+     * @return 速率(字节/秒)
+     */
+    long getRate(long windowMillis) {
+        if (mSize < 2) {
+            return 0;
+        }
+        final int capacity = mTimes.length;
+        final int newest = (mHead - 1 + capacity) % capacity;
+        int start = newest;
+        for (int i = 1; i < mSize; i++) {
+            start = (newest - i + capacity) % capacity;
+            if (mTimes[newest] - mTimes[start] >= windowMillis) {
+                break;
+            }
+        }
+        long millis = mTimes[newest] - mTimes[start];
+        if (millis <= 0) {
+            return 0;
+        }
+        return (mBytes[newest] - mBytes[start]) * SpeedTestUtils.SECOND_IN_MILLIS / millis;
+    }
+}
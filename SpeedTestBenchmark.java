@@ -0,0 +1,288 @@
+/*
+ * Copyright (C) 2015 Zlianjie Inc. All rights reserved.
+ */
+package com.zlianjie.coolwifi.speedtest;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 测速引擎的吞吐上限基准测试。
+ * 在回环地址上启动{@link LocalSpeedTestServer}, 让{@link SpeedTestEngine}对其测速, 网络不再是瓶颈,
+ * 测得的速率就是当前设备或JVM上引擎能测出的最高速率。
+ * <pre>
+ *     不限速: 测得的速率是引擎的上限, 真实网络的结果接近该值时说明瓶颈在测速代码本身
+ *     限速: 测得的速率与限速值的偏差就是引擎的测量误差
+ * </pre>
+ * 运行期间会阻塞调用线程, 不要在UI线程调用。
+ *
+ * @author kzw
+ * @since 2015-09-01
+ */
+public class SpeedTestBenchmark {
+
+    /** 默认测速时长 */
+    private static final long DEFAULT_DURATION_MILLIS = 5 * SpeedTestUtils.SECOND_IN_MILLIS;
+    /** 最短测速时长 */
+    private static final long MIN_DURATION_MILLIS = SpeedTestUtils.SECOND_IN_MILLIS;
+    /** 超过测速时长多久仍未结束视为卡住 */
+    private static final long FINISH_TIME_OUT_MILLIS = 5 * SpeedTestUtils.SECOND_IN_MILLIS;
+    /** 结束后等待测速线程退出的时间 */
+    private static final long SHUTDOWN_TIME_OUT_MILLIS = 2 * SpeedTestUtils.SECOND_IN_MILLIS;
+    /** 寻找上限时并发模式使用的连接数 */
+    private static final int CEILING_PARALLEL_COUNT = 4;
+    /** 寻找上限时尝试的传输层, classpath中没有HttpClient时Apache一项实际使用raw socket */
+    private static final int[] CEILING_TRANSPORTS = {
+        SpeedTestEngine.TRANSPORT_APACHE,
+        SpeedTestEngine.TRANSPORT_URL_CONNECTION,
+        SpeedTestEngine.TRANSPORT_RAW_SOCKET,
+    };
+
+    /** 测速类型 */
+    private int mTestType = SpeedTestEngine.TEST_TYPE_DOWNLOAD;
+    /** 测速模式 */
+    private int mTestMode = SpeedTestEngine.TEST_MODE_SINGLE;
+    /** 并发模式下的连接数 */
+    private int mParallelCount = CEILING_PARALLEL_COUNT;
+    /** 传输层类型 */
+    private int mTransport = SpeedTestEngine.TRANSPORT_DEFAULT;
+    /** 测速时长 */
+    private long mDurationMillis = DEFAULT_DURATION_MILLIS;
+    /** 服务端发送限速(字节/秒), 0表示不限速 */
+    private long mRateLimit;
+
+    /**
+     * 设置测速类型, 上传时限速不生效
+     * @param testType {@link SpeedTestEngine#TEST_TYPE_DOWNLOAD} 或 {@link SpeedTestEngine#TEST_TYPE_UPLOAD}
+     */
+    public void setTestType(int testType) {
+        mTestType = testType;
+    }
+
+    /**
+     * 设置测速模式
+     * @param testMode {@link SpeedTestEngine#TEST_MODE_SINGLE} 或 {@link SpeedTestEngine#TEST_MODE_PARALLEL}
+     * @param parallelCount 并发模式下的连接数
+     */
+    public void setTestMode(int testMode, int parallelCount) {
+        mTestMode = testMode;
+        mParallelCount = parallelCount;
+    }
+
+    /**
+     * 设置传输层
+     * @param transport {@link SpeedTestEngine#TRANSPORT_DEFAULT}等, 默认为运行平台的默认传输层
+     */
+    public void setTransport(int transport) {
+        mTransport = transport;
+    }
+
+    /**
+     * 设置测速时长
+     * @param durationMillis 毫秒
+     */
+    public void setDurationMillis(long durationMillis) {
+        mDurationMillis = Math.max(MIN_DURATION_MILLIS, durationMillis);
+    }
+
+    /**
+     * 设置服务端的发送限速, 用于检验测量误差
+     * @param bytesPerSecond 字节/秒, 0表示不限速
+     */
+    public void setRateLimit(long bytesPerSecond) {
+        mRateLimit = Math.max(0, bytesPerSecond);
+    }
+
+    /**
+     * 启动本地服务并执行一次测速, 阻塞到测速结束
+     * @return {@link Result}
+     * @throws IOException 本地服务启动失败
+     * @throws InterruptedException 等待时线程被中断
+     */
+    public Result run() throws IOException, InterruptedException {
+        final LocalSpeedTestServer server = new LocalSpeedTestServer();
+        server.setRateLimit(mRateLimit);
+        server.start();
+        final CountDownLatch finished = new CountDownLatch(1);
+        final SpeedTestEngine task = new SpeedTestEngine(
+                new JvmSpeedTestPlatform(new String[] {server.getDownloadUrl()}, null),
+                new SpeedTestEngine.SpeedTestTaskListener() {
+                    @Override
+                    public void onPingFinished(SpeedTestEngine.PingResult ping) {
+                    }
+
+                    @Override
+                    public void onStateChange(int newState) {
+                        if (newState != SpeedTestEngine.TASK_STATE_START) {
+                            finished.countDown();
+                        }
+                    }
+                });
+        try {
+            task.setUploadUrl(server.getUploadUrl());
+            task.setServerSelection(false, 1);
+            task.setPingCount(0);
+            task.setTransport(mTransport);
+            task.setTestMode(mTestMode, mParallelCount);
+            // 最短与最长时间相同, 固定测速时长
+            task.setAdaptiveDuration(true, mDurationMillis, mDurationMillis);
+            if (mTestType == SpeedTestEngine.TEST_TYPE_UPLOAD) {
+                task.startUploadTask();
+            } else {
+                task.startTask();
+            }
+            if (!finished.await(mDurationMillis + FINISH_TIME_OUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                task.stopTask(false);
+            }
+            final long serverBytes = mTestType == SpeedTestEngine.TEST_TYPE_UPLOAD
+                    ? server.getReceivedBytes() : server.getSentBytes();
+            return new Result(this, task.getTransportName(), task.getLastResult(), serverBytes);
+        } finally {
+            task.shutdown(SHUTDOWN_TIME_OUT_MILLIS);
+            server.stop();
+        }
+    }
+
+    /**
+     * 依次尝试所有传输层的单连接和并发模式, 返回速率最高的一次
+     * @param testType {@link SpeedTestEngine#TEST_TYPE_DOWNLOAD} 或 {@link SpeedTestEngine#TEST_TYPE_UPLOAD}
+     * @param durationMillis 每次测速的时长
+     * @return 速率最高的{@link Result}
+     * @throws IOException 本地服务启动失败
+     * @throws InterruptedException 等待时线程被中断
+     */
+    public static Result findCeiling(int testType, long durationMillis)
+            throws IOException, InterruptedException {
+        Result best = null;
+        for (int transport : CEILING_TRANSPORTS) {
+            for (int testMode = SpeedTestEngine.TEST_MODE_SINGLE; testMode <= SpeedTestEngine.TEST_MODE_PARALLEL;
+                    testMode++) {
+                SpeedTestBenchmark benchmark = new SpeedTestBenchmark();
+                benchmark.setTestType(testType);
+                benchmark.setTransport(transport);
+                benchmark.setTestMode(testMode, CEILING_PARALLEL_COUNT);
+                benchmark.setDurationMillis(durationMillis);
+                Result result = benchmark.run();
+                if (best == null || result.getAvgSpeed() > best.getAvgSpeed()) {
+                    best = result;
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * 一次基准测试的结果
+     */
+    public static final class Result {
+        /** 测速类型 */
+        private final int mTestType;
+        /** 连接数 */
+        private final int mParallelCount;
+        /** 传输层名称 */
+        private final String mTransportName;
+        /** 服务端发送限速 */
+        private final long mRateLimit;
+        /** 引擎的测速结果 */
+        private final SpeedTestResult mResult;
+        /** 服务端实际收发的字节数 */
+        private final long mServerBytes;
+
+        Result(SpeedTestBenchmark benchmark, String transportName, SpeedTestResult result, long serverBytes) {
+            mTestType = benchmark.mTestType;
+            mParallelCount = benchmark.mTestMode == SpeedTestEngine.TEST_MODE_PARALLEL ? benchmark.mParallelCount : 1;
+            mTransportName = transportName;
+            mRateLimit = benchmark.mTestType == SpeedTestEngine.TEST_TYPE_UPLOAD ? 0 : benchmark.mRateLimit;
+            mResult = result;
+            mServerBytes = serverBytes;
+        }
+
+        /**
+         * 引擎的测速结果
+         * @return {@link SpeedTestResult}, 测速没有开始时为null
+         */
+        public SpeedTestResult getResult() {
+            return mResult;
+        }
+
+        /**
+         * 整个测速过程的平均速率, 按速率曲线的总字节数和总时长计算, 不受int速率上限的影响
+         * @return 字节/秒
+         */
+        public long getAvgSpeed() {
+            if (mResult == null || mResult.getDurationMillis() <= 0) {
+                return 0;
+            }
+            return (mResult.getTotalBytes() - mResult.getBytesAt(0)) * SpeedTestUtils.SECOND_IN_MILLIS
+                    / mResult.getDurationMillis();
+        }
+
+        /**
+         * 速率曲线上相邻样本之间的最高速率
+         * @return 字节/秒
+         */
+        public long getPeakSpeed() {
+            long peak = 0;
+            if (mResult != null) {
+                for (int i = 1; i < mResult.getSampleCount(); i++) {
+                    peak = Math.max(peak, mResult.getSpeedAt(i));
+                }
+            }
+            return peak;
+        }
+
+        /**
+         * 服务端实际收发的字节数, 与引擎统计的字节数对比可以发现漏算或多算
+         * @return 字节数
+         */
+        public long getServerBytes() {
+            return mServerBytes;
+        }
+
+        /**
+         * 限速时测得的平均速率相对限速值的偏差
+         * @return 偏差比例, 不限速时为0
+         */
+        public float getRateError() {
+            if (mRateLimit <= 0) {
+                return 0;
+            }
+            return (float) (getAvgSpeed() - mRateLimit) / mRateLimit;
+        }
+
+        /**
+         * 传输层名称
+         * @return 名称
+         */
+        public String getTransportName() {
+            return mTransportName;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(256);
+            sb.append(mTestType == SpeedTestEngine.TEST_TYPE_UPLOAD ? "upload" : "download");
+            sb.append(", transport=").append(mTransportName);
+            sb.append(", connections=").append(mParallelCount);
+            sb.append(String.format(Locale.US, ", avg=%.1fMB/s, peak=%.1fMB/s",
+                    toMegaBytes(getAvgSpeed()), toMegaBytes(getPeakSpeed())));
+            if (mResult != null) {
+                sb.append(String.format(Locale.US, ", p90=%.1fMB/s", toMegaBytes(mResult.getP90Speed())));
+                sb.append(", samples=").append(mResult.getSampleCount());
+                sb.append(", bytes=").append(mResult.getTotalBytes());
+            }
+            sb.append(", serverBytes=").append(mServerBytes);
+            if (mRateLimit > 0) {
+                sb.append(String.format(Locale.US, ", limit=%.1fMB/s, error=%.2f%%",
+                        toMegaBytes(mRateLimit), getRateError() * 100));
+            }
+            return sb.toString();
+        }
+
+        private static double toMegaBytes(long bytes) {
+            return bytes / (1024.0 * 1024.0);
+        }
+    }
+}
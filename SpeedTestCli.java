@@ -0,0 +1,627 @@
+/*
+ * Copyright (C) 2015 Zlianjie Inc. All rights reserved.
+ */
+package com.zlianjie.coolwifi.speedtest;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 无界面的批量测速命令行工具, 在纯JVM上用{@link SpeedTestEngine}对一组测速地址重复测速,
+ * 供探测机收集容量规划数据。
+ * <pre>
+ *     java com.zlianjie.coolwifi.speedtest.SpeedTestCli [选项] [地址...]
+ *
+ *     --endpoints FILE    测速地址列表, 每行一个, #开头为注释, 可以与命令行上的地址同时使用
+ *     --repeat N          每个地址的测速次数, 默认1
+ *     --concurrency N     同时进行的测速数, 默认1, 大于1时各测速共享带宽
+ *     --interval MS       同一线程两次测速之间的间隔, 默认0
+ *     --type TYPE         download(默认) 或 upload, 上传时地址为接收地址
+ *     --mode MODE         single(默认) 或 parallel
+ *     --connections N     并发模式下的连接数, 默认4
+ *     --transport NAME    raw(默认)、urlconnection 或 apache, apache需要classpath中有HttpClient, 否则使用raw
+ *     --duration MS       每次测速的时长, 默认10000
+ *     --ping N            下载前的延迟探测次数, 默认5, 0表示不探测
+ *     --format FORMAT     csv(默认) 或 jsonl
+ *     --output FILE       结果文件, 默认标准输出
+ *     --verbose           把引擎日志输出到标准错误
+ * </pre>
+ * 每次测速结束立即写出一条记录, 汇总只保留每个地址的计数和分位数估计, 内存占用与测速次数无关。
+ * 结束时输出每个地址的汇总表, 结果写到标准输出时汇总表写到标准错误, 以免混入结果。
+ * 中途按Ctrl-C会停止进行中的测速并输出已完成部分的汇总。
+ * 退出码: 0 全部成功, 1 有测速失败或取消, 2 参数错误
+ *
+ * @author kzw
+ * @since 2015-09-04
+ */
+public final class SpeedTestCli {
+
+    private static final String TAG = "SpeedTestCli";
+
+    /** 全部测速成功 */
+    private static final int EXIT_OK = 0;
+    /** 有测速失败或取消 */
+    private static final int EXIT_FAILED = 1;
+    /** 参数错误 */
+    private static final int EXIT_USAGE = 2;
+
+    /** 默认每次测速的时长 */
+    private static final long DEFAULT_DURATION_MILLIS = SpeedTestEngine.COUNT_DOWN_IN_MILLIS;
+    /** 最短测速时长 */
+    private static final long MIN_DURATION_MILLIS = SpeedTestUtils.SECOND_IN_MILLIS;
+    /** 默认延迟探测次数 */
+    private static final int DEFAULT_PING_COUNT = 5;
+    /** 默认并发连接数 */
+    private static final int DEFAULT_PARALLEL_COUNT = 4;
+    /** 每次延迟探测最多占用的时间, 用于计算等待测速结束的超时 */
+    private static final long PING_ALLOWANCE_MILLIS = SpeedTestUtils.SECOND_IN_MILLIS;
+    /** 超过测速时长多久仍未结束视为卡住 */
+    private static final long FINISH_TIME_OUT_MILLIS = 10 * SpeedTestUtils.SECOND_IN_MILLIS;
+    /** 结束后等待测速线程退出的时间 */
+    private static final long SHUTDOWN_TIME_OUT_MILLIS = 2 * SpeedTestUtils.SECOND_IN_MILLIS;
+    /** 汇总表中地址列的最大宽度 */
+    private static final int MAX_ENDPOINT_WIDTH = 60;
+
+    /** 测速地址, 按出现顺序 */
+    private final List<String> mEndpoints = new ArrayList<>();
+    /** 每个地址的测速次数 */
+    private int mRepeat = 1;
+    /** 同时进行的测速数 */
+    private int mConcurrency = 1;
+    /** 两次测速之间的间隔 */
+    private long mIntervalMillis;
+    /** 测速类型 */
+    private int mTestType = SpeedTestEngine.TEST_TYPE_DOWNLOAD;
+    /** 测速模式 */
+    private int mTestMode = SpeedTestEngine.TEST_MODE_SINGLE;
+    /** 并发模式下的连接数 */
+    private int mParallelCount = DEFAULT_PARALLEL_COUNT;
+    /** 传输层类型, 默认使用运行平台的默认传输层, 纯JVM上为raw socket, 不依赖HttpClient */
+    private int mTransport = SpeedTestEngine.TRANSPORT_DEFAULT;
+    /** 每次测速的时长 */
+    private long mDurationMillis = DEFAULT_DURATION_MILLIS;
+    /** 延迟探测次数 */
+    private int mPingCount = DEFAULT_PING_COUNT;
+    /** 输出格式 */
+    private String mFormat = SpeedTestRecordWriter.FORMAT_CSV;
+    /** 结果文件, null表示标准输出 */
+    private String mOutputPath;
+    /** 是否输出引擎日志 */
+    private boolean mVerbose;
+
+    /** 下一次测速的序号, 由所有测速线程共享 */
+    private final AtomicInteger mNextSeq = new AtomicInteger();
+    /** 地址 -> 汇总, 按地址出现的顺序 */
+    private final Map<String, Summary> mSummaries = new LinkedHashMap<>();
+    /** 所有地址的汇总 */
+    private final Summary mTotal = new Summary("total");
+    /** 是否已被中断 */
+    private volatile boolean isStopped = false;
+    /** 汇总表是否已经输出 */
+    private boolean isSummaryPrinted = false;
+
+    private SpeedTestCli() {
+    }
+
+    public static void main(String[] args) {
+        SpeedTestCli cli = new SpeedTestCli();
+        String error = cli.parseArgs(args);
+        if (error != null) {
+            System.err.println(error);
+            printUsage(System.err);
+            System.exit(EXIT_USAGE);
+            return;
+        }
+        System.exit(cli.run());
+    }
+
+    /**
+     * 解析命令行参数
+     * @param args 参数
+     * @return 错误信息, 成功时为null
+     */
+    private String parseArgs(String[] args) {
+        try {
+            for (int i = 0; i < args.length; i++) {
+                final String arg = args[i];
+                if (!arg.startsWith("--")) {
+                    mEndpoints.add(arg);
+                    continue;
+                }
+                if ("--verbose".equals(arg)) {
+                    mVerbose = true;
+                    continue;
+                }
+                if (i + 1 >= args.length) {
+                    return "missing value for " + arg;
+                }
+                final String value = args[++i];
+                switch (arg) {
+                    case "--endpoints":
+                        readEndpoints(value);
+                        break;
+                    case "--repeat":
+                        mRepeat = parsePositive(arg, value);
+                        break;
+                    case "--concurrency":
+                        mConcurrency = parsePositive(arg, value);
+                        break;
+                    case "--interval":
+                        mIntervalMillis = Long.parseLong(value);
+                        break;
+                    case "--type":
+                        mTestType = parseChoice(arg, value, "download", "upload");
+                        break;
+                    case "--mode":
+                        mTestMode = parseChoice(arg, value, "single", "parallel");
+                        break;
+                    case "--connections":
+                        mParallelCount = parsePositive(arg, value);
+                        break;
+                    case "--transport":
+                        mTransport = parseChoice(arg, value, "apache", "urlconnection", "raw");
+                        break;
+                    case "--duration":
+                        mDurationMillis = Math.max(MIN_DURATION_MILLIS, Long.parseLong(value));
+                        break;
+                    case "--ping":
+                        mPingCount = Math.max(0, Integer.parseInt(value));
+                        break;
+                    case "--format":
+                        parseChoice(arg, value, SpeedTestRecordWriter.FORMAT_CSV,
+                                SpeedTestRecordWriter.FORMAT_JSON_LINES);
+                        mFormat = value;
+                        break;
+                    case "--output":
+                        mOutputPath = value;
+                        break;
+                    default:
+                        return "unknown option " + arg;
+                }
+            }
+        } catch (NumberFormatException e) {
+            return "invalid number: " + e.getMessage();
+        } catch (IllegalArgumentException e) {
+            return e.getMessage();
+        } catch (IOException e) {
+            return "cannot read endpoints: " + e.getMessage();
+        }
+        if (mEndpoints.isEmpty()) {
+            return "no endpoints";
+        }
+        return null;
+    }
+
+    /**
+     * 读取地址列表文件
+     * @param path 文件路径
+     * @throws IOException 读取失败
+     */
+    private void readEndpoints(String path) throws IOException {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(path), "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() > 0 && !line.startsWith("#")) {
+                    mEndpoints.add(line);
+                }
+            }
+        } finally {
+            SpeedTestUtils.closeSafely(reader);
+        }
+    }
+
+    private static int parsePositive(String option, String value) {
+        int n = Integer.parseInt(value);
+        if (n <= 0) {
+            throw new IllegalArgumentException(option + " must be positive");
+        }
+        return n;
+    }
+
+    /**
+     * 解析枚举类型的参数
+     * @param option 选项名
+     * @param value 参数值
+     * @param choices 可选值
+     * @return 参数值在可选值中的下标
+     */
+    private static int parseChoice(String option, String value, String... choices) {
+        for (int i = 0; i < choices.length; i++) {
+            if (choices[i].equals(value)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("invalid " + option + ": " + value);
+    }
+
+    private static void printUsage(PrintStream out) {
+        out.println("usage: SpeedTestCli [options] [url...]");
+        out.println("  --endpoints FILE    url list, one per line, # for comments");
+        out.println("  --repeat N          runs per url (default 1)");
+        out.println("  --concurrency N     runs in flight at once (default 1)");
+        out.println("  --interval MS       pause between runs of a worker (default 0)");
+        out.println("  --type TYPE         download | upload (default download)");
+        out.println("  --mode MODE         single | parallel (default single)");
+        out.println("  --connections N     connections in parallel mode (default 4)");
+        out.println("  --transport NAME    raw | urlconnection | apache (default raw, apache needs httpclient)");
+        out.println("  --duration MS       duration of each run (default 10000)");
+        out.println("  --ping N            pings before each download, 0 to skip (default 5)");
+        out.println("  --format FORMAT     csv | jsonl (default csv)");
+        out.println("  --output FILE       result file (default stdout)");
+        out.println("  --verbose           log engine messages to stderr");
+    }
+
+    /**
+     * 执行所有测速, 阻塞到结束或被中断
+     * @return 退出码
+     */
+    private int run() {
+        if (mVerbose) {
+            SpeedTestLog.setLogger(new SpeedTestLog.Logger() {
+                @Override
+                public void log(int level, String tag, String msg, Throwable t) {
+                    System.err.println((level == WARN ? "W/" : "I/") + tag + ": " + msg);
+                    if (t != null) {
+                        t.printStackTrace();
+                    }
+                }
+            });
+        }
+        for (String endpoint : mEndpoints) {
+            if (!mSummaries.containsKey(endpoint)) {
+                mSummaries.put(endpoint, new Summary(endpoint));
+            }
+        }
+        final PrintStream summaryOut = mOutputPath != null ? System.out : System.err;
+        final SpeedTestRecordWriter writer;
+        try {
+            writer = SpeedTestRecordWriter.create(mFormat, new BufferedWriter(new OutputStreamWriter(
+                    mOutputPath != null ? new FileOutputStream(mOutputPath) : System.out, "UTF-8")));
+            writer.writeHeader();
+        } catch (IOException e) {
+            System.err.println("cannot open output: " + e.getMessage());
+            return EXIT_USAGE;
+        }
+
+        final int workerCount = Math.min(mConcurrency, mEndpoints.size() * mRepeat);
+        final Worker[] workers = new Worker[workerCount];
+        final Thread[] threads = new Thread[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new Worker(writer);
+            // 非守护线程, 测速线程池中的线程是守护线程, main返回后由工作线程维持进程
+            threads[i] = new Thread(workers[i], "speed_test_cli_" + i);
+        }
+        final Thread shutdownHook = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                isStopped = true;
+                for (Worker worker : workers) {
+                    worker.mEngine.stopTask(false);
+                }
+                join(threads, SHUTDOWN_TIME_OUT_MILLIS);
+                printSummary(summaryOut);
+            }
+        });
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        join(threads, 0);
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException e) {
+            // 已经在退出
+        }
+        SpeedTestUtils.closeSafely(writer);
+        printSummary(summaryOut);
+        return mTotal.mRuns > 0 && mTotal.mFailures == 0 ? EXIT_OK : EXIT_FAILED;
+    }
+
+    /**
+     * 等待线程结束
+     * @param threads 线程
+     * @param timeoutMillis 每个线程的最长等待时间, 0表示一直等待
+     */
+    private static void join(Thread[] threads, long timeoutMillis) {
+        for (Thread thread : threads) {
+            try {
+                thread.join(timeoutMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * 记录一次测速的结果
+     * @param run 测速记录
+     */
+    private void addToSummary(Run run) {
+        synchronized (mSummaries) {
+            mSummaries.get(run.mEndpoint).add(run);
+            mTotal.add(run);
+        }
+    }
+
+    /**
+     * 输出汇总表, 只输出一次
+     * @param out 输出
+     */
+    private void printSummary(PrintStream out) {
+        synchronized (mSummaries) {
+            if (isSummaryPrinted) {
+                return;
+            }
+            isSummaryPrinted = true;
+            int width = mTotal.mEndpoint.length();
+            for (String endpoint : mSummaries.keySet()) {
+                width = Math.max(width, Math.min(endpoint.length(), MAX_ENDPOINT_WIDTH));
+            }
+            final String rowFormat = "%-" + width + "s %6s %6s %9s %9s %9s %9s %9s %9s%n";
+            out.println();
+            out.printf(Locale.US, rowFormat, "endpoint", "runs", "failed",
+                    "mean", "min", "p50", "p90", "max", "ping");
+            for (Summary summary : mSummaries.values()) {
+                summary.print(out, rowFormat);
+            }
+            if (mSummaries.size() > 1) {
+                mTotal.print(out, rowFormat);
+            }
+            out.println("speeds in MB/s of the per-run average, ping is the mean median RTT in ms");
+            out.flush();
+        }
+    }
+
+    /**
+     * 测速状态的名称
+     * @param state {@link SpeedTestEngine#TASK_STATE_FINISHED}等
+     * @return 名称
+     */
+    static String stateName(int state) {
+        switch (state) {
+            case SpeedTestEngine.TASK_STATE_FINISHED:
+                return "finished";
+            case SpeedTestEngine.TASK_STATE_CANCEL:
+                return "cancel";
+            case SpeedTestEngine.TASK_STATE_FAIL:
+                return "fail";
+            default:
+                return "unknown";
+        }
+    }
+
+    private static String toMegaBytes(double bytes) {
+        return String.format(Locale.US, "%.2f", bytes / SpeedTestUtils.MB_IN_BYTES);
+    }
+
+    /**
+     * 测速线程, 持有一个{@link SpeedTestEngine}, 依次领取测速直到全部领完。
+     * 测速按先轮流各个地址、再重复的顺序分配, 同一地址的多次测速分散在整个运行期间
+     */
+    private final class Worker implements Runnable, SpeedTestEngine.SpeedTestTaskListener {
+        /** 测速引擎, 线程池和连接在多次测速间复用 */
+        private final SpeedTestEngine mEngine;
+        /** 结果输出 */
+        private final SpeedTestRecordWriter mWriter;
+        /** 本次测速结束的信号 */
+        private volatile CountDownLatch mFinished;
+        /** 本次测速的结束状态 */
+        private volatile int mState;
+        /** 本次测速的延迟探测结果 */
+        private volatile SpeedTestEngine.PingResult mPing;
+
+        Worker(SpeedTestRecordWriter writer) {
+            mWriter = writer;
+            mEngine = new SpeedTestEngine(new JvmSpeedTestPlatform(new String[] {mEndpoints.get(0)}, null), this);
+            mEngine.setTransport(mTransport);
+            mEngine.setTestMode(mTestMode, mParallelCount);
+            mEngine.setPingCount(mPingCount);
+            mEngine.setServerSelection(false, 1);
+            // 最短与最长时间相同, 固定测速时长, 各次结果可以直接比较
+            mEngine.setAdaptiveDuration(true, mDurationMillis, mDurationMillis);
+        }
+
+        @Override
+        public void run() {
+            final int total = mEndpoints.size() * mRepeat;
+            try {
+                int seq;
+                while (!isStopped && (seq = mNextSeq.getAndIncrement()) < total) {
+                    Run run = measure(seq);
+                    if (run == null) {
+                        break;
+                    }
+                    addToSummary(run);
+                    mWriter.write(run);
+                    if (mIntervalMillis > 0 && !isStopped) {
+                        Thread.sleep(mIntervalMillis);
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("cannot write result: " + e.getMessage());
+                isStopped = true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                mEngine.shutdown(SHUTDOWN_TIME_OUT_MILLIS);
+            }
+        }
+
+        /**
+         * 执行一次测速, 阻塞到结束
+         * @param seq 测速序号
+         * @return 测速记录, 被中断时返回null
+         * @throws InterruptedException 等待时线程被中断
+         */
+        private Run measure(int seq) throws InterruptedException {
+            final String endpoint = mEndpoints.get(seq % mEndpoints.size());
+            final SpeedTestResult previous = mEngine.getLastResult();
+            final CountDownLatch finished = new CountDownLatch(1);
+            mFinished = finished;
+            mPing = null;
+            mState = SpeedTestEngine.TASK_STATE_START;
+            final long startMillis = System.currentTimeMillis();
+            if (mTestType == SpeedTestEngine.TEST_TYPE_UPLOAD) {
+                mEngine.setUploadUrl(endpoint);
+                mEngine.startUploadTask();
+            } else {
+                mEngine.setSpeedUrls(new String[] {endpoint});
+                mEngine.startTask();
+            }
+            final long timeout = mDurationMillis + (mPingCount + 1) * PING_ALLOWANCE_MILLIS + FINISH_TIME_OUT_MILLIS;
+            if (!finished.await(timeout, TimeUnit.MILLISECONDS)) {
+                if (SpeedTestLog.isEnabled()) {
+                    SpeedTestLog.w(TAG, endpoint + " did not finish in " + timeout + "ms, stopping");
+                }
+                mEngine.stopTask(false);
+            }
+            if (isStopped && mState != SpeedTestEngine.TASK_STATE_FINISHED) {
+                return null;
+            }
+            final SpeedTestResult result = mEngine.getLastResult();
+            final Run run = new Run();
+            run.mSeq = seq;
+            run.mEndpoint = endpoint;
+            run.mRun = seq / mEndpoints.size();
+            run.mStartMillis = startMillis;
+            run.mTestType = mTestType;
+            run.mTransportName = mEngine.getTransportName();
+            run.mConnections = mTestMode == SpeedTestEngine.TEST_MODE_PARALLEL ? mParallelCount : 1;
+            run.mState = mState;
+            // 直接失败时不会生成新的结果
+            run.mResult = result != previous ? result : null;
+            run.mPing = mPing;
+            run.mFailedRequests = mEngine.getFailedRequestCount();
+            run.mNewConnections = mEngine.getNewConnectionCount();
+            run.mReusedConnections = mEngine.getReusedConnectionCount();
+            return run;
+        }
+
+        @Override
+        public void onPingFinished(SpeedTestEngine.PingResult ping) {
+            mPing = ping;
+        }
+
+        @Override
+        public void onStateChange(int newState) {
+            if (newState == SpeedTestEngine.TASK_STATE_START) {
+                return;
+            }
+            mState = newState;
+            CountDownLatch finished = mFinished;
+            if (finished != null) {
+                finished.countDown();
+            }
+        }
+    }
+
+    /**
+     * 一次测速的记录
+     */
+    static final class Run {
+        /** 测速序号, 从0开始 */
+        int mSeq;
+        /** 测速地址 */
+        String mEndpoint;
+        /** 该地址的第几次测速, 从0开始 */
+        int mRun;
+        /** 开始时间 */
+        long mStartMillis;
+        /** 测速类型 */
+        int mTestType;
+        /** 传输层名称 */
+        String mTransportName;
+        /** 连接数 */
+        int mConnections;
+        /** 结束状态 */
+        int mState;
+        /** 测速结果, 没有开始测速就失败时为null */
+        SpeedTestResult mResult;
+        /** 延迟探测结果, 没有探测或探测失败时为null */
+        SpeedTestEngine.PingResult mPing;
+        /** 失败的请求数 */
+        int mFailedRequests;
+        /** 新建的连接数 */
+        int mNewConnections;
+        /** 复用的连接数 */
+        int mReusedConnections;
+    }
+
+    /**
+     * 一个地址的汇总, 只保存计数、极值和分位数估计, 不保存每次的结果
+     */
+    private static final class Summary {
+        /** 地址 */
+        private final String mEndpoint;
+        /** 平均速率的分位数 */
+        private final SpeedPercentiles mPercentiles = new SpeedPercentiles();
+        /** 测速次数 */
+        private int mRuns;
+        /** 失败或取消的次数 */
+        private int mFailures;
+        /** 成功测速的平均速率之和 */
+        private double mSpeedSum;
+        /** 成功测速的最低平均速率 */
+        private long mMinSpeed = Long.MAX_VALUE;
+        /** 成功测速的最高平均速率 */
+        private long mMaxSpeed;
+        /** 延迟中位数之和 */
+        private long mPingSum;
+        /** 有延迟结果的次数 */
+        private int mPingCount;
+
+        Summary(String endpoint) {
+            mEndpoint = endpoint;
+        }
+
+        void add(Run run) {
+            mRuns++;
+            if (run.mPing != null) {
+                mPingSum += run.mPing.getMedianMillis();
+                mPingCount++;
+            }
+            if (run.mState != SpeedTestEngine.TASK_STATE_FINISHED || run.mResult == null) {
+                mFailures++;
+                return;
+            }
+            final long speed = run.mResult.getAvgSpeed();
+            mSpeedSum += speed;
+            mMinSpeed = Math.min(mMinSpeed, speed);
+            mMaxSpeed = Math.max(mMaxSpeed, speed);
+            mPercentiles.add(speed);
+        }
+
+        void print(PrintStream out, String rowFormat) {
+            final int succeeded = mRuns - mFailures;
+            String endpoint = mEndpoint;
+            if (endpoint.length() > MAX_ENDPOINT_WIDTH) {
+                endpoint = "..." + endpoint.substring(endpoint.length() - MAX_ENDPOINT_WIDTH + 3);
+            }
+            out.printf(Locale.US, rowFormat, endpoint, mRuns, mFailures,
+                    succeeded > 0 ? toMegaBytes(mSpeedSum / succeeded) : "-",
+                    succeeded > 0 ? toMegaBytes(mMinSpeed) : "-",
+                    succeeded > 0 ? toMegaBytes(mPercentiles.getP50()) : "-",
+                    succeeded > 0 ? toMegaBytes(mPercentiles.getP90()) : "-",
+                    succeeded > 0 ? toMegaBytes(mMaxSpeed) : "-",
+                    mPingCount > 0 ? String.valueOf(mPingSum / mPingCount) : "-");
+        }
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2015 Zlianjie Inc. All rights reserved.
+ */
+package com.zlianjie.coolwifi.speedtest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * 测速地址配置, 解析后不可变, 可以在线程间共享和缓存。
+ * 沿用properties格式, 只有地址的旧配置无需修改, 地址按在文件中出现的顺序排列, 轮换顺序稳定:
+ * <pre>
+ *     mirror1 = http://a.example.com/10m.bin
+ *     mirror1.weight = 2                       # 下载轮换中的权重, 默认1, 0表示不参与下载轮换
+ *     mirror1.capabilities = download,ping     # download/upload/ping的组合, 默认download,ping
+ *     mirror1.size = 10M                       # 文件大小, 支持K/M/G后缀, 默认未知
+ *     upload = http://u.example.com/upload
+ *     upload.capabilities = upload
+ * </pre>
+ *
+ * @author kzw
+ * @since 2015-09-05
+ */
+public final class SpeedTestConfig {
+    /** log tag */
+    private static final String TAG = "SpeedTestConfig";
+
+    /** 权重属性的后缀 */
+    private static final String SUFFIX_WEIGHT = ".weight";
+    /** 能力属性的后缀 */
+    private static final String SUFFIX_CAPABILITIES = ".capabilities";
+    /** 文件大小属性的后缀 */
+    private static final String SUFFIX_SIZE = ".size";
+    /** 权重上限, 限制一轮轮换的长度 */
+    static final int MAX_WEIGHT = 10;
+
+    /** 所有地址, 按配置顺序 */
+    private final List<SpeedTestEndpoint> mEndpoints;
+    /** url -> 地址 */
+    private final Map<String, SpeedTestEndpoint> mEndpointMap = new HashMap<>();
+    /** 参与下载轮换的地址, 按配置顺序, 不重复 */
+    private final String[] mDownloadUrls;
+    /** 上传地址, 没有时为null */
+    private final String mUploadUrl;
+
+    private SpeedTestConfig(List<SpeedTestEndpoint> endpoints) {
+        mEndpoints = Collections.unmodifiableList(endpoints);
+        List<String> downloadUrls = new ArrayList<>(endpoints.size());
+        String uploadUrl = null;
+        for (SpeedTestEndpoint endpoint : endpoints) {
+            mEndpointMap.put(endpoint.getUrl(), endpoint);
+            if (endpoint.hasCapability(SpeedTestEndpoint.CAPABILITY_DOWNLOAD) && endpoint.getWeight() > 0) {
+                downloadUrls.add(endpoint.getUrl());
+            }
+            if (uploadUrl == null && endpoint.hasCapability(SpeedTestEndpoint.CAPABILITY_UPLOAD)) {
+                uploadUrl = endpoint.getUrl();
+            }
+        }
+        mDownloadUrls = downloadUrls.toArray(new String[downloadUrls.size()]);
+        mUploadUrl = uploadUrl;
+    }
+
+    /**
+     * 解析配置, 不关闭输入流
+     * @param in properties格式的配置
+     * @return {@link SpeedTestConfig}
+     * @throws IOException 读取失败
+     */
+    public static SpeedTestConfig load(InputStream in) throws IOException {
+        OrderedProperties properties = new OrderedProperties();
+        properties.load(in);
+        // 先收集地址, 再把属性应用到对应的地址上, 属性可以写在地址之前
+        Map<String, String> urls = new LinkedHashMap<>();
+        for (String key : properties.mKeys) {
+            if (!key.endsWith(SUFFIX_WEIGHT) && !key.endsWith(SUFFIX_CAPABILITIES) && !key.endsWith(SUFFIX_SIZE)) {
+                String url = properties.getProperty(key).trim();
+                if (url.length() > 0 && !urls.containsValue(url)) {
+                    urls.put(key, url);
+                }
+            }
+        }
+        List<SpeedTestEndpoint> endpoints = new ArrayList<>(urls.size());
+        for (Map.Entry<String, String> entry : urls.entrySet()) {
+            final String name = entry.getKey();
+            int weight = SpeedTestEndpoint.DEFAULT_WEIGHT;
+            int capabilities = SpeedTestEndpoint.DEFAULT_CAPABILITIES;
+            long fileSize = 0;
+            try {
+                String value = properties.getProperty(name + SUFFIX_WEIGHT);
+                if (value != null) {
+                    weight = Math.max(0, Math.min(MAX_WEIGHT, Integer.parseInt(value.trim())));
+                }
+                value = properties.getProperty(name + SUFFIX_CAPABILITIES);
+                if (value != null) {
+                    capabilities = parseCapabilities(value);
+                }
+                value = properties.getProperty(name + SUFFIX_SIZE);
+                if (value != null) {
+                    fileSize = parseSize(value);
+                }
+            } catch (NumberFormatException e) {
+                // 属性写错时其余未解析的属性使用默认值, 地址仍然可用
+                if (SpeedTestLog.isEnabled()) {
+                    SpeedTestLog.w(TAG, "invalid attribute of " + name, e);
+                }
+            }
+            endpoints.add(new SpeedTestEndpoint(name, entry.getValue(), weight, capabilities, fileSize));
+        }
+        return new SpeedTestConfig(endpoints);
+    }
+
+    /**
+     * 由地址列表生成配置, 所有地址使用默认属性
+     * @param urls 下载地址
+     * @return {@link SpeedTestConfig}
+     */
+    public static SpeedTestConfig fromUrls(String... urls) {
+        List<SpeedTestEndpoint> endpoints = new ArrayList<>(urls.length);
+        List<String> added = new ArrayList<>(urls.length);
+        for (String url : urls) {
+            if (!SpeedTestUtils.isEmpty(url) && !added.contains(url)) {
+                added.add(url);
+                endpoints.add(new SpeedTestEndpoint(String.valueOf(endpoints.size()), url,
+                        SpeedTestEndpoint.DEFAULT_WEIGHT, SpeedTestEndpoint.DEFAULT_CAPABILITIES, 0));
+            }
+        }
+        return new SpeedTestConfig(endpoints);
+    }
+
+    private static int parseCapabilities(String value) {
+        int capabilities = 0;
+        for (String name : value.split(",")) {
+            name = name.trim();
+            if ("download".equals(name)) {
+                capabilities |= SpeedTestEndpoint.CAPABILITY_DOWNLOAD;
+            } else if ("upload".equals(name)) {
+                capabilities |= SpeedTestEndpoint.CAPABILITY_UPLOAD;
+            } else if ("ping".equals(name)) {
+                capabilities |= SpeedTestEndpoint.CAPABILITY_PING;
+            } else if (name.length() > 0 && SpeedTestLog.isEnabled()) {
+                SpeedTestLog.w(TAG, "unknown capability " + name);
+            }
+        }
+        return capabilities;
+    }
+
+    private static long parseSize(String value) {
+        value = value.trim();
+        long unit = 1;
+        char suffix = value.length() > 0 ? Character.toUpperCase(value.charAt(value.length() - 1)) : 0;
+        if (suffix == 'K') {
+            unit = SpeedTestUtils.KB_IN_BYTES;
+        } else if (suffix == 'M') {
+            unit = SpeedTestUtils.MB_IN_BYTES;
+        } else if (suffix == 'G') {
+            unit = 1024L * SpeedTestUtils.MB_IN_BYTES;
+        }
+        if (unit > 1) {
+            value = value.substring(0, value.length() - 1).trim();
+        }
+        return Math.max(0, Long.parseLong(value) * unit);
+    }
+
+    /**
+     * 所有地址, 按配置顺序
+     * @return 不可修改的列表
+     */
+    public List<SpeedTestEndpoint> getEndpoints() {
+        return mEndpoints;
+    }
+
+    /**
+     * 参与下载轮换的地址, 按配置顺序, 不重复, 不含权重展开
+     * @return 地址
+     */
+    public String[] getDownloadUrls() {
+        return mDownloadUrls.clone();
+    }
+
+    /**
+     * 第一个可用于上传的地址
+     * @return 地址, 没有时为null
+     */
+    public String getUploadUrl() {
+        return mUploadUrl;
+    }
+
+    /**
+     * 地址是否具有某项能力, 不在配置中的地址按默认能力判断
+     * @param url 地址
+     * @param capability {@link SpeedTestEndpoint#CAPABILITY_DOWNLOAD}等
+     * @return 是否具有
+     */
+    boolean hasCapability(String url, int capability) {
+        SpeedTestEndpoint endpoint = mEndpointMap.get(url);
+        return endpoint != null ? endpoint.hasCapability(capability)
+                : (SpeedTestEndpoint.DEFAULT_CAPABILITIES & capability) == capability;
+    }
+
+    /**
+     * 按权重展开为一轮的轮换顺序, 使用平滑加权轮询, 同一地址在一轮中尽量分散。
+     * 结果只取决于输入顺序和权重, 每次相同
+     * @param urls 参与轮换的地址, 如选择镜像后的结果
+     * @return 一轮的轮换顺序, 长度为权重之和
+     */
+    String[] getRotation(String[] urls) {
+        final int[] weights = new int[urls.length];
+        int total = 0;
+        for (int i = 0; i < urls.length; i++) {
+            SpeedTestEndpoint endpoint = mEndpointMap.get(urls[i]);
+            weights[i] = endpoint != null ? Math.max(1, endpoint.getWeight()) : SpeedTestEndpoint.DEFAULT_WEIGHT;
+            total += weights[i];
+        }
+        if (total == urls.length) {
+            return urls.clone();
+        }
+        final String[] rotation = new String[total];
+        final int[] current = new int[urls.length];
+        for (int n = 0; n < total; n++) {
+            int selected = 0;
+            for (int i = 0; i < urls.length; i++) {
+                current[i] += weights[i];
+                if (current[i] > current[selected]) {
+                    selected = i;
+                }
+            }
+            current[selected] -= total;
+            rotation[n] = urls[selected];
+        }
+        return rotation;
+    }
+
+    /**
+     * 记录键出现顺序的{@link Properties}, 加载时按文件顺序调用put
+     */
+    private static final class OrderedProperties extends Properties {
+        private static final long serialVersionUID = 1L;
+
+        /** 按出现顺序的键 */
+        private final List<String> mKeys = new ArrayList<>();
+
+        @Override
+        public synchronized Object put(Object key, Object value) {
+            Object previous = super.put(key, value);
+            if (previous == null) {
+                mKeys.add((String) key);
+            }
+            return previous;
+        }
+    }
+}
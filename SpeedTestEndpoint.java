@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2015 Zlianjie Inc. All rights reserved.
+ */
+package com.zlianjie.coolwifi.speedtest;
+
+/**
+ * 一个测速地址及其属性, 由{@link SpeedTestConfig}解析生成, 不可变
+ *
+ * @author kzw
+ * @since 2015-09-05
+ */
+public final class SpeedTestEndpoint {
+
+    /** 可用于下载测速 */
+    public static final int CAPABILITY_DOWNLOAD = 1;
+    /** 可用于上传测速, 接收端读完请求体并返回200 */
+    public static final int CAPABILITY_UPLOAD = 1 << 1;
+    /** 支持Range请求, 可用于延迟探测 */
+    public static final int CAPABILITY_PING = 1 << 2;
+    /** 未配置时的默认能力 */
+    static final int DEFAULT_CAPABILITIES = CAPABILITY_DOWNLOAD | CAPABILITY_PING;
+    /** 未配置时的默认权重 */
+    static final int DEFAULT_WEIGHT = 1;
+
+    /** 配置中的名称 */
+    private final String mName;
+    /** 地址 */
+    private final String mUrl;
+    /** 下载轮换中的权重, 0表示不参与下载轮换 */
+    private final int mWeight;
+    /** 能力, {@link #CAPABILITY_DOWNLOAD}等的组合 */
+    private final int mCapabilities;
+    /** 文件大小(字节), 0表示未知 */
+    private final long mFileSize;
+
+    SpeedTestEndpoint(String name, String url, int weight, int capabilities, long fileSize) {
+        mName = name;
+        mUrl = url;
+        mWeight = weight;
+        mCapabilities = capabilities;
+        mFileSize = fileSize;
+    }
+
+    /**
+     * 配置中的名称
+     * @return 名称
+     */
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * 地址
+     * @return url
+     */
+    public String getUrl() {
+        return mUrl;
+    }
+
+    /**
+     * 下载轮换中的权重, 权重为2的地址在一轮中出现2次
+     * @return 权重, 0表示不参与下载轮换
+     */
+    public int getWeight() {
+        return mWeight;
+    }
+
+    /**
+     * 是否具有某项能力
+     * @param capability {@link #CAPABILITY_DOWNLOAD}、{@link #CAPABILITY_UPLOAD} 或 {@link #CAPABILITY_PING}
+     * @return 是否具有
+     */
+    public boolean hasCapability(int capability) {
+        return (mCapabilities & capability) == capability;
+    }
+
+    /**
+     * 下载文件的大小, 可用于按网速选择文件
+     * @return 字节数, 0表示未知
+     */
+    public long getFileSize() {
+        return mFileSize;
+    }
+
+    @Override
+    public String toString() {
+        return mName + "=" + mUrl + ", weight=" + mWeight + ", capabilities=" + mCapabilities
+                + ", size=" + mFileSize;
+    }
+}
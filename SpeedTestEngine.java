@@ -0,0 +1,2043 @@
+package com.zlianjie.coolwifi.speedtest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 手动测试网速的引擎, 只依赖纯Java, 可以在单元测试、Linux探针机和压测环境中运行。
+ * 镜像地址、网卡流量、CPU时间等平台相关的能力由{@link SpeedTestPlatform}提供,
+ * 应用内使用SpeedTestTask
+ *
+ * @author kejunyao
+ * @since 2014年7月22日
+ */
+public class SpeedTestEngine {
+    /** log tag */
+    private static final String TAG = "SpeedTestEngine";
+    
+    /** 请求超时时间 */
+    private static final int TIME_OUT_MILLIS = 5000;
+    /** 读取不到测速地址配置时使用的下载地址 */
+    private static final String DEFAULT_SPEED_URL = "http://kuwifi.cn/download/coolwifi.apk";
+    
+    /** 任务执行失败状态 */
+    public static final int TASK_STATE_FAIL = -1;
+    /** 任务停止执行状态 */
+    public static final int TASK_STATE_CANCEL = 0;
+    /** 任务执行成功状态 */
+    public static final int TASK_STATE_FINISHED = 1;
+    /** 任务开始执行状态 */
+    public static final int TASK_STATE_START = 2;
+    
+    /** 单连接测速模式 */
+    public static final int TEST_MODE_SINGLE = 0;
+    /** 多连接并发测速模式 */
+    public static final int TEST_MODE_PARALLEL = 1;
+    /** 使用运行平台默认的传输层 */
+    public static final int TRANSPORT_DEFAULT = -1;
+    /** 使用Apache HttpClient传输, 运行平台没有HttpClient时使用默认传输层 */
+    public static final int TRANSPORT_APACHE = 0;
+    /** 使用系统HttpURLConnection传输 */
+    public static final int TRANSPORT_URL_CONNECTION = 1;
+    /** 直接在socket上收发HTTP/1.1请求 */
+    public static final int TRANSPORT_RAW_SOCKET = 2;
+    /** 默认并发连接数 */
+    private static final int DEFAULT_PARALLEL_COUNT = 4;
+    /** 最大并发连接数 */
+    private static final int MAX_PARALLEL_COUNT = 8;
+    /** 测速线程池的线程数, 所有并发连接加一个汇总线程 */
+    private static final int EXECUTOR_THREAD_COUNT = MAX_PARALLEL_COUNT + 1;
+    /** 测速线程池的等待队列长度 */
+    private static final int EXECUTOR_QUEUE_CAPACITY = 2 * EXECUTOR_THREAD_COUNT;
+    /** 测速线程空闲多久后退出(秒) */
+    private static final int EXECUTOR_KEEP_ALIVE_SECONDS = 30;
+    /** 释放Task时等待进行中的连接结束的时间 */
+    private static final long SHUTDOWN_TIME_OUT_MILLIS = 2 * SpeedTestUtils.SECOND_IN_MILLIS;
+    /** 请求失败后第一次重试的等待时间, 之后每次失败翻倍 */
+    private static final long BACKOFF_BASE_MILLIS = 100;
+    /** 请求失败后重试的最长等待时间 */
+    private static final long BACKOFF_MAX_MILLIS = 1600;
+    /** 镜像连续失败多少次后熔断 */
+    private static final int CIRCUIT_FAILURE_THRESHOLD = 3;
+    /** 镜像熔断后的冷却时长 */
+    private static final long CIRCUIT_OPEN_MILLIS = 3 * SpeedTestUtils.SECOND_IN_MILLIS;
+    
+    /** 缓存大小 */
+    private static final int BUFFER_SIZE = 512;
+    /** 批量读取时的最小缓存大小 */
+    private static final int MIN_CHANNEL_BUFFER_SIZE = 4 * 1024;
+    /** 批量读取时的最大缓存大小 */
+    private static final int MAX_CHANNEL_BUFFER_SIZE = 256 * 1024;
+    /** 缓存大小按多少毫秒的数据量调整 */
+    private static final int BUFFER_FILL_MILLIS = 10;
+    /** 每读多少次检查一次时间 */
+    private static final int CLOCK_CHECK_READS = 8;
+    
+    /** 上传数据块大小 */
+    private static final int UPLOAD_CHUNK_SIZE = 16 * 1024;
+    /** 上传的随机数据大小, 大于deflate的32K窗口, 重复发送也无法被压缩 */
+    private static final int UPLOAD_PAYLOAD_SIZE = 256 * 1024;
+    
+    /** 默认使用得分最高的镜像数 */
+    private static final int DEFAULT_SELECTED_SERVER_COUNT = 2;
+    /** 默认的延迟探测次数, 不含第一次建立连接的请求 */
+    private static final int DEFAULT_PING_COUNT = 5;
+    /** 延迟探测请求的超时时间 */
+    private static final int PING_TIME_OUT_MILLIS = 1000;
+    
+    /** 下载测速 */
+    public static final int TEST_TYPE_DOWNLOAD = 0;
+    /** 上传测速 */
+    public static final int TEST_TYPE_UPLOAD = 1;
+    
+    /** 不排除预热阶段 */
+    public static final int WARM_UP_NONE = 0;
+    /** 排除固定时长的预热阶段 */
+    public static final int WARM_UP_FIXED = 1;
+    /** 瞬时速率不再上升时认为预热(TCP慢启动)结束 */
+    public static final int WARM_UP_AUTO = 2;
+    /** 自动检测时瞬时速率增幅低于该比例视为不再上升 */
+    private static final double WARM_UP_RAMP_THRESHOLD = 0.1;
+    /** 自动检测时瞬时速率连续不再上升的次数 */
+    private static final int WARM_UP_FLAT_SAMPLES = 2;
+    /** 自动检测的最长预热时间 */
+    private static final long MAX_AUTO_WARM_UP_MILLIS = 3 * SpeedTestUtils.SECOND_IN_MILLIS;
+    
+    /** 按字节流读取, 每次读都检查时间 */
+    public static final int RECEIVE_PATH_STREAM = 0;
+    /** 按速率调整大小的复用缓存批量读取, 批量检查时间 */
+    public static final int RECEIVE_PATH_CHANNEL = 1;
+    
+    /** 刷新速率信息的时间间隔(秒) */
+    private static final float UPDATE_RATE_IN_SECOND = 0.2f;
+    /** 刷新速率信息的时间间隔(毫秒) */
+    private static final int UPDATE_RATE_IN_MILLIS = (int) (UPDATE_RATE_IN_SECOND * SpeedTestUtils.SECOND_IN_MILLIS);
+    /** 倒计时(秒) */
+    private static final int COUNT_DOWN_IN_SECOND = 10;
+    /** 倒计时(毫秒) */
+    public static final long COUNT_DOWN_IN_MILLIS = COUNT_DOWN_IN_SECOND * SpeedTestUtils.SECOND_IN_MILLIS;
+    /** 自适应时长的默认最短测速时间(毫秒) */
+    private static final long DEFAULT_MIN_ADAPTIVE_MILLIS = 3 * SpeedTestUtils.SECOND_IN_MILLIS;
+    /** 自适应时长的默认最长测速时间(毫秒) */
+    private static final long DEFAULT_MAX_ADAPTIVE_MILLIS = 15 * SpeedTestUtils.SECOND_IN_MILLIS;
+    /** 瞬时速率的计算窗口(毫秒) */
+    private static final long CURRENT_SPEED_WINDOW_MILLIS = SpeedTestUtils.SECOND_IN_MILLIS;
+    /** 瞬时速率采样器保留的样本数 */
+    private static final int SAMPLER_CAPACITY = 32;
+    /** 进度通道的容量, UI每帧读空, 足够缓冲界面卡顿数秒 */
+    private static final int PROGRESS_CHANNEL_CAPACITY = 64;
+    /** 完整采样记录在最长测速时间之外多预留的样本数 */
+    private static final int TIME_SERIES_EXTRA_CAPACITY = 8;
+    /** 判断速率稳定的瞬时速率样本窗口, 按刷新间隔约1.6秒 */
+    private static final int STABLE_WINDOW_SAMPLES = 8;
+    /** 判断速率稳定的变异系数阈值 */
+    private static final double STABLE_MAX_VARIATION = 0.03;
+    
+    /** 任务是否为正在运行 */
+    private volatile boolean isRunning = false;
+    /** 测速序号, 每次开始测速加1, 用于让上一次测速遗留的线程退出 */
+    private volatile int mTestId;
+    /** 停止任务时唤醒等待中的线程 */
+    private final Object mStopLock = new Object();
+    /** 线程池中还未退出的测速线程数 */
+    private final AtomicInteger mActiveWorkerCount = new AtomicInteger();
+    /** 停止任务的时间(纳秒), 0表示没有等待退出的线程 */
+    private final AtomicLong mStopRequestNanos = new AtomicLong();
+    /** 上一次停止任务到所有测速线程退出的耗时, -1表示还没有停止过 */
+    private volatile long mLastStopMillis = -1;
+    /** 任务执行的开始时间, 读取配置、选择镜像、延迟探测之后会重新设置为计时开始的时间 */
+    private long mTaskStartTime;
+    /** 是否已经开始计时, 之前为准备阶段, 先写mTaskStartTime再置为true, 界面线程据此读取 */
+    private volatile boolean isMeasuring = false;
+    /** 上一次刷新速率的时间, 只由负责刷新速率的线程读写, 跨请求保留 */
+    private long mLastUpdateTime;
+    /** 记录每次任务开始时的流量值 */
+    private long mStartTotalBytes;
+    /** 所有下载连接实际读到的字节数 */
+    private final AtomicLong mReceivedBytes = new AtomicLong();
+    /** 所有上传连接实际写出的字节数 */
+    private final AtomicLong mSentBytes = new AtomicLong();
+    /** 所有下载线程读取数据花费的CPU时间(纳秒) */
+    private final AtomicLong mReceiveCpuNanos = new AtomicLong();
+    /** 本次测速失败的请求数 */
+    private final AtomicInteger mFailedRequestCount = new AtomicInteger();
+    /** 镜像地址 -> 熔断器, 与Task同生命周期, 失效的镜像在下一次测速中同样被跳过 */
+    private final Map<String, CircuitBreaker> mCircuitBreakers = new HashMap<>();
+    /** 最近一次计算的平均速率, 用于调整缓存大小 */
+    private volatile int mLastAvgSpeed;
+    /** 读取数据的方式 */
+    private int mReceivePath = RECEIVE_PATH_CHANNEL;
+    /** 当前的测速类型 */
+    private volatile int mTestType = TEST_TYPE_DOWNLOAD;
+    /** 上传测速的接收地址, 没有设置时使用配置中的上传地址 */
+    private String mUploadUrl;
+    /** 本次测速使用的上传地址 */
+    private volatile String mTestUploadUrl;
+    /** 记录最大上传平均速率值 */
+    private volatile long mMaxUploadSpeed;
+    /** 上传的随机数据 */
+    private static byte[] sUploadPayload;
+    /** 下载前的延迟探测次数, 0表示不探测 */
+    private int mPingCount = DEFAULT_PING_COUNT;
+    /** 是否在下载前选择镜像 */
+    private boolean mServerSelection = true;
+    /** 选择的镜像数 */
+    private int mSelectedServerCount = DEFAULT_SELECTED_SERVER_COUNT;
+    /** 是否在速率稳定后提前结束 */
+    private boolean mAdaptiveDuration = false;
+    /** 自适应时长的最短测速时间 */
+    private long mMinDurationMillis = DEFAULT_MIN_ADAPTIVE_MILLIS;
+    /** 最长测速时间, 固定时长时即为倒计时时间 */
+    private long mMaxDurationMillis = COUNT_DOWN_IN_MILLIS;
+    /** 速率稳定检测 */
+    private final StableRateDetector mStableRateDetector =
+            new StableRateDetector(STABLE_WINDOW_SAMPLES, STABLE_MAX_VARIATION);
+    /** 速率是否已经稳定 */
+    private volatile boolean isRateStable = false;
+    /** 瞬时速率采样器, 只由刷新速率的线程写入 */
+    private final SpeedSampler mSpeedSampler = new SpeedSampler(SAMPLER_CAPACITY);
+    /** 本次测速的完整采样记录 */
+    private final SpeedTimeSeries mTimeSeries = new SpeedTimeSeries(getTimeSeriesCapacity(COUNT_DOWN_IN_MILLIS));
+    /** 测速进度通道, 由刷新速率的线程写入, UI线程读取 */
+    private final ProgressChannel mProgressChannel = new ProgressChannel(PROGRESS_CHANNEL_CAPACITY);
+    /** 刷新速率、重置采样和生成结果互斥: 遗留的线程可能与新测速同时刷新速率, 进度通道只允许一个生产者,
+     * 采样记录和分位数也不是线程安全的 */
+    private final Object mSpeedLock = new Object();
+    /** 本次测速瞬时速率的分位数, 预热阶段不计入 */
+    private final SpeedPercentiles mSpeedPercentiles = new SpeedPercentiles();
+    /** 上一次测速的结果 */
+    private volatile SpeedTestResult mLastResult;
+    /** 预热阶段的处理方式 */
+    private int mWarmUpMode = WARM_UP_AUTO;
+    /** 固定预热时长 */
+    private long mWarmUpMillis;
+    /** 预热是否已经结束, 以下预热相关字段只由刷新速率的线程写入 */
+    private volatile boolean isWarmedUp = false;
+    /** 预热结束的时间 */
+    private long mWarmUpEndTime;
+    /** 预热结束时的累计字节数 */
+    private long mWarmUpEndBytes;
+    /** 预热结束时已扣除的连接等待时间 */
+    private long mWarmUpWaitTime;
+    /** 自动检测时上一次的瞬时速率 */
+    private int mPrevCurrentSpeed;
+    /** 自动检测时瞬时速率连续不再上升的次数 */
+    private int mWarmUpFlatCount;
+    /*** 连接等待时间 */
+    private long mConnectionWaitTime;
+    /** 测速地址配置, 第一次测速时在测速线程中读取 */
+    private volatile SpeedTestConfig mConfig;
+    /** 本次测速使用的url地址, 选择镜像后为得分最高的几个 */
+    private volatile String[] mTestUrlArray;
+    /** 上一次的资源数据下标值 */
+    private int tempIndex = -1;
+    /** 任务的执行状态 */
+    private volatile int mTaskState;
+    /** 进行中且还未结束的测速序号, 0表示没有。结束时从本次的序号改为0, 界面取消和测速线程超时可能同时结束测速,
+     * 只有第一个通知; 上一次测速遗留的线程序号不同, 不会结束新的测速 */
+    private final AtomicInteger mActiveTestId = new AtomicInteger();
+    /** 记录最大平均速率值 */
+    private volatile long mMaxArvSpeed;
+    /** 最近一次下载测速瞬时速率的P90, 上报时优先使用 */
+    private volatile long mDownloadP90Speed;
+    /** 测速模式 */
+    private int mTestMode = TEST_MODE_SINGLE;
+    /** 并发模式下的连接数 */
+    private int mParallelCount = DEFAULT_PARALLEL_COUNT;
+    
+    /** 当前任务的测速连接 */
+    private volatile TestStream[] mStreams;
+    /** 正在进行的服务器选择 */
+    private volatile ServerSelector mServerSelector;
+    /** 正在进行的延迟探测请求 */
+    private volatile SpeedTestTransport.Request mPingRequest;
+    /** 传输层类型 */
+    private int mTransportType = TRANSPORT_DEFAULT;
+    /** 传输层, 与Task同生命周期, 镜像切换时复用已建立的keep-alive连接 */
+    private SpeedTestTransport mTransport;
+    /** 测速线程池, 与Task同生命周期, 线程在多次测速间复用 */
+    private ThreadPoolExecutor mExecutor;
+    /** 计入测速线程数的线程池入口, 供服务器选择的探测使用, 线程池已满时抛出{@link RejectedExecutionException} */
+    private final Executor mWorkerExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            submit(command);
+        }
+    };
+    /** 本次测速复用的连接数 */
+    private final AtomicInteger mReusedConnectionCount = new AtomicInteger();
+    /** 本次测速新建的连接数 */
+    private final AtomicInteger mNewConnectionCount = new AtomicInteger();
+    /** 接收外部传入的监听器(在UI线程中运行) */
+    private SpeedTestTaskListener mSpeedTestTaskListener;
+    /** 运行平台 */
+    private final SpeedTestPlatform mPlatform;
+    
+    /**
+     * 构造方法, 不读取配置, 可以在UI线程调用
+     * @param platform 运行平台
+     * @param speedTestTaskListener {@link SpeedTestTaskListener}
+     */
+    public SpeedTestEngine(SpeedTestPlatform platform, SpeedTestTaskListener speedTestTaskListener) {
+        mPlatform = platform;
+        mSpeedTestTaskListener = speedTestTaskListener;
+    }
+    
+    /**
+     * 设置测速模式, 任务运行中设置无效
+     * @param testMode {@link #TEST_MODE_SINGLE} 或 {@link #TEST_MODE_PARALLEL}
+     * @param parallelCount 并发模式下的连接数
+     */
+    public void setTestMode(int testMode, int parallelCount) {
+        if (isRunning) {
+            return;
+        }
+        mTestMode = testMode;
+        mParallelCount = Math.max(1, Math.min(parallelCount, MAX_PARALLEL_COUNT));
+    }
+    
+    /**
+     * 设置测速使用的HTTP传输层, 用于对比不同客户端的开销, 任务运行中设置无效
+     * @param transportType {@link #TRANSPORT_DEFAULT}、{@link #TRANSPORT_APACHE}、
+     *                      {@link #TRANSPORT_URL_CONNECTION} 或 {@link #TRANSPORT_RAW_SOCKET}
+     */
+    public void setTransport(int transportType) {
+        if (isRunning) {
+            return;
+        }
+        synchronized (this) {
+            if (transportType == mTransportType) {
+                return;
+            }
+            mTransportType = transportType;
+        }
+        // 切换后旧的连接池不再使用
+        releaseTransport();
+    }
+    
+    /**
+     * 设置读取数据的方式, 用于对比两种方式的CPU消耗, 任务运行中设置无效
+     * @param receivePath {@link #RECEIVE_PATH_STREAM} 或 {@link #RECEIVE_PATH_CHANNEL}
+     */
+    public void setReceivePath(int receivePath) {
+        if (isRunning) {
+            return;
+        }
+        mReceivePath = receivePath;
+    }
+    
+    /**
+     * 设置下载测速的镜像地址, 替换从配置文件读取的地址, 任务运行中设置无效
+     * @param urls 镜像地址
+     */
+    public void setSpeedUrls(String[] urls) {
+        if (isRunning || urls == null || urls.length == 0) {
+            return;
+        }
+        mConfig = SpeedTestConfig.fromUrls(urls);
+    }
+    
+    /**
+     * 设置测速地址配置, 替换从运行平台读取的配置, 任务运行中设置无效
+     * @param config {@link SpeedTestConfig}
+     */
+    public void setConfig(SpeedTestConfig config) {
+        if (isRunning || config == null) {
+            return;
+        }
+        mConfig = config;
+    }
+    
+    /**
+     * 设置上传测速的接收地址, 接收端只需读完请求体并返回200
+     * @param uploadUrl 上传地址
+     */
+    public void setUploadUrl(String uploadUrl) {
+        mUploadUrl = uploadUrl;
+    }
+    
+    /**
+     * 设置下载前的延迟探测次数, 任务运行中设置无效
+     * @param pingCount 探测次数, 0表示不探测
+     */
+    public void setPingCount(int pingCount) {
+        if (isRunning) {
+            return;
+        }
+        mPingCount = Math.max(0, pingCount);
+    }
+    
+    /**
+     * 设置测速时长, 任务运行中设置无效
+     * @param adaptive 是否在速率稳定后提前结束; false时固定为{@link #COUNT_DOWN_IN_MILLIS}
+     * @param minMillis 自适应时的最短测速时间
+     * @param maxMillis 自适应时的最长测速时间
+     */
+    public void setAdaptiveDuration(boolean adaptive, long minMillis, long maxMillis) {
+        if (isRunning) {
+            return;
+        }
+        mAdaptiveDuration = adaptive;
+        if (adaptive) {
+            mMaxDurationMillis = Math.max(maxMillis, UPDATE_RATE_IN_MILLIS);
+            mMinDurationMillis = Math.max(0, Math.min(minMillis, mMaxDurationMillis));
+        } else {
+            mMaxDurationMillis = COUNT_DOWN_IN_MILLIS;
+        }
+    }
+    
+    /**
+     * 设置测速时长, 使用默认的最短、最长时间
+     * @param adaptive 是否在速率稳定后提前结束
+     */
+    public void setAdaptiveDuration(boolean adaptive) {
+        setAdaptiveDuration(adaptive, DEFAULT_MIN_ADAPTIVE_MILLIS, DEFAULT_MAX_ADAPTIVE_MILLIS);
+    }
+    
+    /**
+     * 最长测速时间, 界面倒计时以此为总时长
+     * @return 毫秒
+     */
+    public long getMaxDurationMillis() {
+        return mMaxDurationMillis;
+    }
+    
+    /**
+     * 距离测速结束还剩的时间, 速率稳定提前结束时为0。
+     * 准备阶段(读取配置、选择镜像、延迟探测)不计时, 返回完整时长, 计时开始后只减不增, 界面进度不会回退
+     * @return 毫秒
+     */
+    public long getRemainingMillis() {
+        if (!isRunning || isRateStable) {
+            return 0;
+        }
+        if (!isMeasuring) {
+            return mMaxDurationMillis;
+        }
+        long remaining = mTaskStartTime + mMaxDurationMillis - System.currentTimeMillis();
+        return Math.max(0, Math.min(remaining, mMaxDurationMillis));
+    }
+    
+    /**
+     * 设置下载前是否并发探测所有镜像并只使用得分最高的几个, 任务运行中设置无效
+     * @param enabled 是否选择镜像
+     * @param serverCount 使用的镜像数
+     */
+    public void setServerSelection(boolean enabled, int serverCount) {
+        if (isRunning) {
+            return;
+        }
+        mServerSelection = enabled;
+        mSelectedServerCount = Math.max(1, serverCount);
+    }
+    
+    /**
+     * 设置预热阶段的处理方式, 预热阶段的流量不计入平均速率, 任务运行中设置无效
+     * @param warmUpMode {@link #WARM_UP_NONE}, {@link #WARM_UP_FIXED} 或 {@link #WARM_UP_AUTO}
+     * @param warmUpMillis {@link #WARM_UP_FIXED}时的预热时长
+     */
+    public void setWarmUp(int warmUpMode, long warmUpMillis) {
+        if (isRunning) {
+            return;
+        }
+        mWarmUpMode = warmUpMode;
+        mWarmUpMillis = Math.max(0, warmUpMillis);
+    }
+    
+    /**
+     * 本次测速被排除的预热时长
+     * @return 毫秒, 预热还未结束时返回-1
+     */
+    public long getWarmUpDurationMillis() {
+        return isWarmedUp ? mWarmUpEndTime - mTaskStartTime : -1;
+    }
+    
+    private void onPingFinished(PingResult ping) {
+        if (mSpeedTestTaskListener != null) {
+            mSpeedTestTaskListener.onPingFinished(ping);
+        }
+    }
+    
+    private void onTestStateChange(int newState) {
+        if (mSpeedTestTaskListener != null) {
+            mSpeedTestTaskListener.onStateChange(newState);
+        }
+    }
+    
+    /**
+     * 读取并丢弃下载的数据, 同时统计读取数据花费的CPU时间
+     * @param stream 下载连接
+     * @param inStream 输入流
+     * @throws IOException {@link IOException}
+     */
+    private void receive(TestStream stream, InputStream inStream) throws IOException {
+        final long cpuStartNanos = mPlatform.threadCpuTimeNanos();
+        try {
+            if (mReceivePath == RECEIVE_PATH_CHANNEL) {
+                readChannel(inStream, stream.mReceiveBuffer, stream.mSingle, stream.mTestId);
+            } else {
+                writeFile(inStream, new byte[BUFFER_SIZE], stream.mSingle, stream.mTestId);
+            }
+        } finally {
+            mReceiveCpuNanos.addAndGet(mPlatform.threadCpuTimeNanos() - cpuStartNanos);
+        }
+    }
+    
+    /**
+     * 直接从输入流读取数据到复用的缓存, 读到的数据直接丢弃。
+     * 传输层只提供输入流, 包装成通道读到直接缓存会多一次从堆数组的复制, 所以直接读到堆数组。
+     * 每{@link #CLOCK_CHECK_READS}次读取才检查一次时间, 缓存大小随速率增长
+     * @param inStream 输入流
+     * @param receiveBuffer 下载连接复用的缓存, 基准测试通过它指定初始缓存大小
+     * @param reportSpeed 是否由本连接负责刷新速率信息, 并发模式下由汇总线程负责
+     * @param testId 测速序号, 本次测速结束后立即退出
+     * @throws IOException {@link IOException}
+     */
+    void readChannel(InputStream inStream, ReceiveBuffer receiveBuffer, boolean reportSpeed, int testId)
+            throws IOException {
+        byte[] buffer = receiveBuffer.obtain(getBufferSize());
+        long preTime = System.currentTimeMillis();
+        int reads = 0;
+
+        while (inStream.read(buffer, 0, buffer.length) != -1) {
+            if (!isTestActive(testId)) {
+                break;
+            }
+            if (++reads < CLOCK_CHECK_READS) {
+                continue;
+            }
+            reads = 0;
+            
+            long currentTime = System.currentTimeMillis();
+            // 按上一次刷新的时间判断, 单个文件的下载时间短于刷新间隔时也能刷新
+            if (reportSpeed && (currentTime - mLastUpdateTime) >= UPDATE_RATE_IN_MILLIS) {
+                updateSpeed(testId, currentTime);
+            }
+            if ((currentTime - preTime) >= UPDATE_RATE_IN_MILLIS) {
+                preTime = currentTime;
+                // 速率变化后调整缓存大小
+                buffer = receiveBuffer.obtain(getBufferSize());
+            }
+            
+            if (reportSpeed && isTimeout(currentTime)) {
+                finishTask(testId);
+            }
+        }
+    }
+    
+    /**
+     * 根据当前速率计算缓存大小, 约为每路连接{@link #BUFFER_FILL_MILLIS}毫秒的数据量
+     * @return 缓存大小
+     */
+    private int getBufferSize() {
+        TestStream[] streams = mStreams;
+        int streamCount = streams != null ? streams.length : 1;
+        long bytes = (long) mLastAvgSpeed * BUFFER_FILL_MILLIS / SpeedTestUtils.SECOND_IN_MILLIS / streamCount;
+        if (bytes <= MIN_CHANNEL_BUFFER_SIZE) {
+            return MIN_CHANNEL_BUFFER_SIZE;
+        }
+        if (bytes >= MAX_CHANNEL_BUFFER_SIZE) {
+            return MAX_CHANNEL_BUFFER_SIZE;
+        }
+        return Integer.highestOneBit((int) bytes);
+    }
+    
+    /**
+     * 往本地写文件
+     * @param inStream
+     *            输入流
+     * @param buffer 读取缓存, 基准测试通过它比较不同缓存大小的开销
+     * @param reportSpeed 是否由本连接负责刷新速率信息, 并发模式下由汇总线程负责
+     * @param testId 测速序号, 本次测速结束后立即退出
+     * @throws IOException {@link IOException}
+     */
+    void writeFile(InputStream inStream, byte[] buffer, boolean reportSpeed, int testId) throws IOException {
+        while (inStream.read(buffer) != -1) {
+            // 抛异常退出线程
+            if (!isTestActive(testId)) {
+                break;
+            }
+            if (!reportSpeed) {
+                continue;
+            }
+            
+            // 获取当前时间, 用于计算是否间隔有200秒
+            long currentTime = System.currentTimeMillis();
+            if ((currentTime - mLastUpdateTime) >= UPDATE_RATE_IN_MILLIS) {
+                updateSpeed(testId, currentTime);
+            }
+            
+            // 时间等于或超过10秒了
+            if (isTimeout()) {
+                finishTask(testId);
+            }
+        }
+    }
+    
+    /**
+     * 计算并刷新平均速率, 所有连接的流量都计入其中。
+     * 判断测速是否进行中和写入采样在同一个锁内, 上一次测速遗留的线程不会写入新测速的采样和进度通道
+     * @param testId 测速序号
+     * @param currentTime 当前时间
+     */
+    private void updateSpeed(int testId, long currentTime) {
+        synchronized (mSpeedLock) {
+            if (isTestActive(testId)) {
+                updateSpeedLocked(currentTime);
+            }
+        }
+    }
+    
+    /**
+     * 计算并刷新平均速率, 持有{@link #mSpeedLock}时调用
+     * @param currentTime 当前时间
+     */
+    private void updateSpeedLocked(long currentTime) {
+        mLastUpdateTime = currentTime;
+        // 花了多少时间(秒)
+        float second = (float) (currentTime - mTaskStartTime - mConnectionWaitTime)
+                / (float) SpeedTestUtils.SECOND_IN_MILLIS;
+        final boolean upload = mTestType == TEST_TYPE_UPLOAD;
+        final long bytes = upload ? mSentBytes.get() : mReceivedBytes.get();
+        // 按本应用实际读写的字节数计算平均速率
+        int rawAvgSpeed = toIntRate(bytes / second);
+        // 最近1秒的瞬时速率
+        mSpeedSampler.add(currentTime, bytes);
+        mTimeSeries.add(currentTime, bytes);
+        int currentSpeed = toIntRate(mSpeedSampler.getRate(CURRENT_SPEED_WINDOW_MILLIS));
+        // 预热结束后, 平均速率只统计预热之后的流量
+        if (!isWarmedUp && isWarmUpEnd(currentTime, currentSpeed)) {
+            mWarmUpEndTime = currentTime;
+            mWarmUpEndBytes = bytes;
+            mWarmUpWaitTime = mConnectionWaitTime;
+            isWarmedUp = true;
+        }
+        if (isWarmedUp) {
+            mSpeedPercentiles.add(currentSpeed);
+        }
+        int avgSpeed = rawAvgSpeed;
+        if (mWarmUpMode != WARM_UP_NONE && isWarmedUp) {
+            float steadySecond = (float) (currentTime - mWarmUpEndTime - (mConnectionWaitTime - mWarmUpWaitTime))
+                    / (float) SpeedTestUtils.SECOND_IN_MILLIS;
+            if (steadySecond > 0) {
+                avgSpeed = toIntRate((bytes - mWarmUpEndBytes) / steadySecond);
+            }
+        }
+        // 按整个WiFi网卡的流量计算平均速率, 会包含其他应用的流量, 仅作参考
+        int interfaceAvgSpeed = toIntRate((mPlatform.getInterfaceTotalBytes() - mStartTotalBytes) / second);
+        // 保留最大的平均速率值
+        if (upload) {
+            mMaxUploadSpeed = mMaxUploadSpeed > avgSpeed ? mMaxUploadSpeed : avgSpeed;
+        } else {
+            mMaxArvSpeed = mMaxArvSpeed > avgSpeed ? mMaxArvSpeed : avgSpeed;
+        }
+        mLastAvgSpeed = avgSpeed;
+        // 自适应时长: 达到最短时间后瞬时速率稳定即可结束, 预热阶段速率还在上升, 不参与判断
+        if (isWarmedUp && mStableRateDetector.add(currentSpeed) && mAdaptiveDuration
+                && currentTime - mTaskStartTime >= mMinDurationMillis) {
+            isRateStable = true;
+        }
+
+        // 更新当前速率、平均速率信息, 由UI线程每帧从通道中读取
+        mProgressChannel.offer(currentTime, mTestType, mTaskState, currentSpeed, avgSpeed,
+                rawAvgSpeed, interfaceAvgSpeed, bytes);
+        if (SpeedTestLog.isEnabled()) {
+            SpeedTestLog.i(TAG, "avgSpeed=" + avgSpeed + ", rawAvgSpeed=" + rawAvgSpeed + ", currentSpeed=" + currentSpeed
+                    + ", interfaceAvgSpeed=" + interfaceAvgSpeed
+                    + ", second=" + second + ", currentTime=" + currentTime
+                    + ", mTaskStartTime=" + mTaskStartTime + ", mConnectionWaitTime=" + mConnectionWaitTime);
+        }
+    }
+    
+    /**
+     * 速率转换为int, 本机回环等超过2GB/s的速率取int最大值, 避免溢出为负数
+     * @param rate 速率
+     * @return 速率
+     */
+    private static int toIntRate(double rate) {
+        return rate >= Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) rate;
+    }
+    
+    /**
+     * 完整采样记录需要的容量, 每{@link #UPDATE_RATE_IN_MILLIS}最多刷新一次速率
+     * @param maxDurationMillis 最长测速时间
+     * @return 样本数
+     */
+    private static int getTimeSeriesCapacity(long maxDurationMillis) {
+        return (int) (maxDurationMillis / UPDATE_RATE_IN_MILLIS) + TIME_SERIES_EXTRA_CAPACITY;
+    }
+    
+    /**
+     * 预热阶段是否结束
+     * @param currentTime 当前时间
+     * @param currentSpeed 当前瞬时速率
+     * @return 是否结束
+     */
+    private boolean isWarmUpEnd(long currentTime, int currentSpeed) {
+        final long elapsed = currentTime - mTaskStartTime - mConnectionWaitTime;
+        switch (mWarmUpMode) {
+        case WARM_UP_FIXED:
+            return elapsed >= mWarmUpMillis;
+        case WARM_UP_AUTO:
+            if (currentSpeed > 0 && currentSpeed <= mPrevCurrentSpeed * (1 + WARM_UP_RAMP_THRESHOLD)) {
+                mWarmUpFlatCount++;
+            } else {
+                mWarmUpFlatCount = 0;
+            }
+            mPrevCurrentSpeed = currentSpeed;
+            return mWarmUpFlatCount >= WARM_UP_FLAT_SAMPLES || elapsed >= MAX_AUTO_WARM_UP_MILLIS;
+        default:
+            return true;
+        }
+    }
+    
+    /**
+     * 向网络发送异步请求
+     */
+    public void startTask() {
+        startTask(TEST_TYPE_DOWNLOAD);
+    }
+    
+    /**
+     * 开始上传测速, 接收地址通过{@link #setUploadUrl(String)}设置, 没有设置时使用配置中的上传地址
+     */
+    public void startUploadTask() {
+        startTask(TEST_TYPE_UPLOAD);
+    }
+    
+    /**
+     * 开始测速
+     * @param testType {@link #TEST_TYPE_DOWNLOAD} 或 {@link #TEST_TYPE_UPLOAD}
+     */
+    private void startTask(int testType) {
+        // 防止频繁请求
+        if (isRunning) {
+            if (SpeedTestLog.isEnabled()) {
+                SpeedTestLog.i(TAG, "Task is running...");
+            }
+            return;
+        }
+        mTaskState = TASK_STATE_START;
+        isMeasuring = false;
+        mTaskStartTime = System.currentTimeMillis();
+        mLastUpdateTime = mTaskStartTime;
+        mActiveTestId.set(++mTestId);
+        mTestType = testType;
+        mStartTotalBytes = mPlatform.getInterfaceTotalBytes();
+        mReceivedBytes.set(0);
+        mSentBytes.set(0);
+        mReceiveCpuNanos.set(0);
+        mFailedRequestCount.set(0);
+        mLastAvgSpeed = 0;
+        synchronized (mSpeedLock) {
+            mStableRateDetector.reset();
+            mTimeSeries.reset(getTimeSeriesCapacity(mMaxDurationMillis));
+        }
+        isRateStable = false;
+        isRunning = true;
+        mReusedConnectionCount.set(0);
+        mNewConnectionCount.set(0);
+        onTestStateChange(TASK_STATE_START);
+        request();
+    }
+    
+    /**
+     * 获取共享的传输层, 第一次使用或释放后由运行平台按当前类型创建
+     * @return {@link SpeedTestTransport}
+     */
+    private synchronized SpeedTestTransport getTransport() {
+        if (mTransport == null) {
+            mTransport = mPlatform.createTransport(mTransportType, MAX_PARALLEL_COUNT,
+                    TIME_OUT_MILLIS, 2 * TIME_OUT_MILLIS);
+            if (SpeedTestLog.isEnabled()) {
+                SpeedTestLog.i(TAG, "transport=" + mTransport.getName());
+            }
+        }
+        return mTransport;
+    }
+    
+    /**
+     * 当前使用的传输层名称
+     * @return 名称
+     */
+    public synchronized String getTransportName() {
+        return getTransport().getName();
+    }
+    
+    /**
+     * 获取测速线程池, 第一次使用或释放后重新创建。
+     * 线程数有上限, 空闲线程超时退出, 队列满时拒绝新的任务
+     * @return {@link ThreadPoolExecutor}
+     */
+    private synchronized ThreadPoolExecutor getExecutor() {
+        if (mExecutor == null || mExecutor.isShutdown()) {
+            mExecutor = new ThreadPoolExecutor(EXECUTOR_THREAD_COUNT, EXECUTOR_THREAD_COUNT,
+                    EXECUTOR_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(EXECUTOR_QUEUE_CAPACITY), new ThreadFactory() {
+                        private final AtomicInteger mCount = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            return SpeedTestUtils.newThread(r, "speed_test_" + mCount.getAndIncrement());
+                        }
+                    });
+            mExecutor.allowCoreThreadTimeOut(true);
+        }
+        return mExecutor;
+    }
+    
+    /**
+     * 释放Task: 中断所有连接, 关闭测速线程池并等待进行中的连接结束, 最后释放连接池。
+     * 会阻塞调用线程, 不要在UI线程调用
+     * @param timeoutMillis 等待进行中的连接结束的最长时间
+     * @return 所有线程是否都已结束
+     */
+    public boolean shutdown(long timeoutMillis) {
+        if (isRunning) {
+            killTask();
+        }
+        ThreadPoolExecutor executor;
+        synchronized (this) {
+            executor = mExecutor;
+            mExecutor = null;
+        }
+        boolean terminated = true;
+        if (executor != null) {
+            executor.shutdown();
+            try {
+                terminated = executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                terminated = false;
+            }
+            if (!terminated) {
+                executor.shutdownNow();
+            }
+        }
+        releaseTransport();
+        if (SpeedTestLog.isEnabled()) {
+            SpeedTestLog.i(TAG, "shutdown, terminated=" + terminated);
+        }
+        return terminated;
+    }
+    
+    /**
+     * 释放传输层的连接池
+     */
+    private synchronized void releaseTransport() {
+        if (mTransport != null) {
+            mTransport.release();
+            mTransport = null;
+        }
+    }
+    
+    /**
+     * 统计连接是复用的还是新建的
+     * @param response 本次请求的响应
+     */
+    private void countConnection(SpeedTestTransport.Response response) {
+        switch (response.getConnectionState()) {
+            case SpeedTestTransport.CONNECTION_REUSED:
+                mReusedConnectionCount.incrementAndGet();
+                break;
+            case SpeedTestTransport.CONNECTION_NEW:
+                mNewConnectionCount.incrementAndGet();
+                break;
+            default:
+                break;
+        }
+    }
+    
+    /**
+     * 发送网络请求
+     */
+    private void request() {
+        final int testId = mTestId;
+        execute(testId, new Runnable() {
+            @Override
+            public void run() {
+                // 第一次测速时需要读取配置
+                boolean prepared = mConfig == null;
+                final SpeedTestConfig config = getConfig();
+                if (!prepareUrls(config, testId)) {
+                    return;
+                }
+                if (mTestType == TEST_TYPE_DOWNLOAD) {
+                    if (mServerSelection && config.getDownloadUrls().length > 1) {
+                        selectServers(config, testId);
+                        prepared = true;
+                    }
+                    if (mPingCount > 0) {
+                        ping(testId);
+                        prepared = true;
+                    }
+                }
+                // 准备阶段已被停止, 不能再改动下一次测速的状态
+                if (!isTestActive(testId)) {
+                    return;
+                }
+                // 读取配置、选择镜像、延迟探测的时间和流量不计入测速
+                if (prepared) {
+                    mTaskStartTime = System.currentTimeMillis();
+                    mStartTotalBytes = mPlatform.getInterfaceTotalBytes();
+                }
+                isMeasuring = true;
+                // 以测速开始时刻作为第一个样本
+                synchronized (mSpeedLock) {
+                    mSpeedSampler.reset();
+                    mSpeedSampler.add(mTaskStartTime, 0);
+                    mTimeSeries.add(mTaskStartTime, 0);
+                    mSpeedPercentiles.reset();
+                }
+                isWarmedUp = false;
+                mPrevCurrentSpeed = 0;
+                mWarmUpFlatCount = 0;
+                final int streamCount = mTestMode == TEST_MODE_PARALLEL ? mParallelCount : 1;
+                final TestStream[] streams = new TestStream[streamCount];
+                for (int i = 0; i < streamCount; i++) {
+                    streams[i] = new TestStream(streamCount == 1, testId);
+                }
+                mStreams = streams;
+                if (streamCount == 1) {
+                    requestSingle(streams[0], testId);
+                } else {
+                    requestParallel(streams, testId);
+                }
+            }
+        });
+    }
+    
+    /**
+     * 获取测速地址配置, 第一次测速时从运行平台读取, 会执行I/O, 只在测速线程中调用
+     * @return {@link SpeedTestConfig}
+     */
+    private SpeedTestConfig getConfig() {
+        SpeedTestConfig config = mConfig;
+        if (config == null) {
+            config = mPlatform.loadConfig();
+            if (config == null) {
+                config = SpeedTestConfig.fromUrls(DEFAULT_SPEED_URL);
+            }
+            mConfig = config;
+            if (SpeedTestLog.isEnabled()) {
+                for (SpeedTestEndpoint endpoint : config.getEndpoints()) {
+                    SpeedTestLog.i(TAG, "endpoint " + endpoint);
+                }
+            }
+        }
+        return config;
+    }
+    
+    /**
+     * 确定本次测速使用的地址: 下载地址按权重展开为轮换顺序, 没有可下载的地址时使用默认地址;
+     * 上传时没有接收地址则本次测速失败
+     * @param config 测速地址配置
+     * @param testId 测速序号
+     * @return 是否继续测速
+     */
+    private boolean prepareUrls(SpeedTestConfig config, int testId) {
+        String[] urls = config.getDownloadUrls();
+        if (urls.length == 0) {
+            urls = new String[] {DEFAULT_SPEED_URL};
+        }
+        synchronized (this) {
+            mTestUrlArray = config.getRotation(urls);
+        }
+        if (mTestType != TEST_TYPE_UPLOAD) {
+            return true;
+        }
+        final String uploadUrl = SpeedTestUtils.isEmpty(mUploadUrl) ? config.getUploadUrl() : mUploadUrl;
+        if (!SpeedTestUtils.isEmpty(uploadUrl)) {
+            mTestUploadUrl = uploadUrl;
+            return true;
+        }
+        if (SpeedTestLog.isEnabled()) {
+            SpeedTestLog.w(TAG, "no upload url");
+        }
+        terminate(testId, TASK_STATE_FAIL);
+        return false;
+    }
+    
+    /**
+     * 在测速线程池中执行, 线程池已满时本次测速失败
+     * @param testId 测速序号
+     * @param runnable 任务
+     */
+    private void execute(int testId, Runnable runnable) {
+        try {
+            submit(runnable);
+        } catch (RejectedExecutionException e) {
+            if (SpeedTestLog.isEnabled()) {
+                SpeedTestLog.w(TAG, "speed test executor rejected, " + e);
+            }
+            terminate(testId, TASK_STATE_FAIL);
+        }
+    }
+    
+    /**
+     * 在测速线程池中执行, 计入测速线程数, 停止任务时统计所有线程的退出耗时
+     * @param runnable 任务
+     * @throws RejectedExecutionException 线程池已满
+     */
+    private void submit(final Runnable runnable) {
+        mActiveWorkerCount.incrementAndGet();
+        try {
+            getExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        runnable.run();
+                    } finally {
+                        onWorkerExit();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            onWorkerExit();
+            throw e;
+        }
+    }
+    
+    /**
+     * 测速线程退出, 最后一个线程退出时记录停止耗时
+     */
+    private void onWorkerExit() {
+        if (mActiveWorkerCount.decrementAndGet() > 0) {
+            return;
+        }
+        long stopRequestNanos = mStopRequestNanos.getAndSet(0);
+        if (stopRequestNanos != 0) {
+            mLastStopMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - stopRequestNanos);
+            if (SpeedTestLog.isEnabled()) {
+                SpeedTestLog.i(TAG, "all speed test threads stopped in " + mLastStopMillis + "ms");
+            }
+        }
+    }
+    
+    /**
+     * 等待指定的时间, 本次测速停止时立即返回
+     * @param millis 时长
+     * @param testId 测速序号
+     */
+    private void waitUnlessStopped(long millis, int testId) {
+        final long endTime = System.currentTimeMillis() + millis;
+        synchronized (mStopLock) {
+            long remaining;
+            while (isTestActive(testId) && (remaining = endTime - System.currentTimeMillis()) > 0) {
+                try {
+                    mStopLock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+    
+    /**
+     * 是否为当前测速且还未结束, 上一次测速遗留的线程通过测速序号退出
+     * @param testId 线程所属的测速序号
+     * @return 是否继续
+     */
+    private boolean isTestActive(int testId) {
+        return isRunning && mActiveTestId.get() == testId;
+    }
+    
+    /**
+     * 执行一次请求, 失败时按指数退避等待后再返回, 避免对失效的镜像连续重试
+     * @param stream 测速连接
+     * @param isMan 是否人为操作的
+     * @param testId 测速序号
+     */
+    private void executeWithBackoff(TestStream stream, boolean isMan, int testId) {
+        long startTime = System.currentTimeMillis();
+        if (stream.execute(isMan)) {
+            stream.mFailureCount = 0;
+            return;
+        }
+        mFailedRequestCount.incrementAndGet();
+        int failureCount = ++stream.mFailureCount;
+        long backoff = Math.min(BACKOFF_BASE_MILLIS << Math.min(failureCount - 1, 16), BACKOFF_MAX_MILLIS);
+        if (SpeedTestLog.isEnabled()) {
+            SpeedTestLog.i(TAG, "request failed " + failureCount + " times, retry after " + backoff + "ms");
+        }
+        waitUnlessStopped(startTime + backoff - System.currentTimeMillis(), testId);
+        if (stream.mSingle) {
+            // 失败和等待的时间没有数据, 与文件切换一样从测速时间中扣除
+            mConnectionWaitTime += (System.currentTimeMillis() - startTime);
+        }
+    }
+    
+    /**
+     * 测速时间到, 结束本次测速, 没有传输任何数据时为失败
+     * @param testId 测速序号, 上一次测速遗留的线程调用时不做任何事
+     */
+    private void finishTask(int testId) {
+        long bytes = mTestType == TEST_TYPE_UPLOAD ? mSentBytes.get() : mReceivedBytes.get();
+        terminate(testId, bytes > 0 ? TASK_STATE_FINISHED : TASK_STATE_FAIL);
+    }
+    
+    /**
+     * 获取镜像的熔断器
+     * @param url 镜像地址
+     * @return {@link CircuitBreaker}
+     */
+    private CircuitBreaker getCircuitBreaker(String url) {
+        synchronized (mCircuitBreakers) {
+            CircuitBreaker breaker = mCircuitBreakers.get(url);
+            if (breaker == null) {
+                breaker = new CircuitBreaker(CIRCUIT_FAILURE_THRESHOLD, CIRCUIT_OPEN_MILLIS);
+                mCircuitBreakers.put(url, breaker);
+            }
+            return breaker;
+        }
+    }
+    
+    /**
+     * 并发探测所有镜像, 只使用得分最高的几个, 排序结果按接入点缓存
+     * @param config 测速地址配置, 选择结果按其中的权重展开
+     * @param testId 测速序号
+     */
+    private void selectServers(SpeedTestConfig config, int testId) {
+        ServerSelector selector = new ServerSelector(getTransport(), mWorkerExecutor);
+        mServerSelector = selector;
+        String[] ranked;
+        try {
+            if (!isTestActive(testId)) {
+                return;
+            }
+            ranked = selector.rank(mPlatform.getNetworkKey(), config.getDownloadUrls());
+        } finally {
+            mServerSelector = null;
+        }
+        String[] selected = Arrays.copyOf(ranked, Math.min(mSelectedServerCount, ranked.length));
+        synchronized (this) {
+            mTestUrlArray = config.getRotation(selected);
+            tempIndex = -1;
+        }
+        if (SpeedTestLog.isEnabled()) {
+            SpeedTestLog.i(TAG, "selected servers: " + Arrays.toString(selected));
+        }
+    }
+    
+    /**
+     * 延迟探测, 在同一个keep-alive连接上连续发送只取1个字节的小请求, 统计往返时间。
+     * 第一次请求包含TCP握手, 不计入结果
+     * @param testId 测速序号
+     */
+    private void ping(int testId) {
+        final String urlStr = getPingUrl();
+        if (urlStr == null) {
+            return;
+        }
+        final long[] rtts = new long[mPingCount];
+        int count = 0;
+        for (int i = 0; i <= mPingCount && isTestActive(testId); i++) {
+            SpeedTestTransport.Request request = getTransport().get(urlStr);
+            request.setTimeout(PING_TIME_OUT_MILLIS, PING_TIME_OUT_MILLIS);
+            request.setHeader("Range", "bytes=0-0");
+            mPingRequest = request;
+            if (!isTestActive(testId)) {
+                break;
+            }
+            long startNanos = System.nanoTime();
+            SpeedTestTransport.Response response = null;
+            try {
+                response = request.execute();
+                long rtt = System.nanoTime() - startNanos;
+                // 读完响应体, 连接才能复用
+                consume(response.getBody());
+                if (i > 0) {
+                    rtts[count++] = rtt;
+                }
+            } catch (Exception e) {
+                request.abort();
+                if (SpeedTestLog.isEnabled()) {
+                    SpeedTestLog.w(TAG, "SpeedTestEngine.ping(), ", e);
+                }
+            } finally {
+                if (response != null) {
+                    response.close();
+                }
+            }
+        }
+        mPingRequest = null;
+        if (count == 0 || !isTestActive(testId)) {
+            return;
+        }
+        PingResult ping = new PingResult(Arrays.copyOf(rtts, count));
+        if (SpeedTestLog.isEnabled()) {
+            SpeedTestLog.i(TAG, "ping url=" + urlStr + ", min=" + ping.getMinMillis() + ", median="
+                    + ping.getMedianMillis() + ", jitter=" + ping.getJitterMillis());
+        }
+        onPingFinished(ping);
+    }
+    
+    /**
+     * 读完并丢弃响应体
+     * @param in 响应体
+     * @throws IOException 读取失败
+     */
+    private static void consume(InputStream in) throws IOException {
+        if (in == null) {
+            return;
+        }
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        while (in.read(buffer) != -1) {
+        }
+    }
+    
+    /**
+     * 单连接测速, 在当前线程中执行, 由下载线程自己刷新速率信息
+     * @param stream 测速连接
+     * @param testId 测速序号
+     */
+    private void requestSingle(final TestStream stream, int testId) {
+        boolean first = true;
+        while (true) {
+            if (!first && isTestActive(testId)) {
+                if (isTimeout()) {
+                    finishTask(testId);
+                }
+            }
+            //人为执行请求的
+            if (first) {
+                first = false;
+                executeWithBackoff(stream, true, testId);
+            } else if (isTestActive(testId)) { // 还没超过10秒钟的情况
+                // 继续下载
+                executeWithBackoff(stream, false, testId);
+            } else {
+                if (SpeedTestLog.isEnabled()) {
+                    SpeedTestLog.i(TAG, "Task is stop, and task state is " + mTaskState + ".");
+                }
+                break;
+            }
+        }
+    }
+    
+    /**
+     * 多连接并发测速, 每个连接各自轮换镜像下载, 由当前线程定时汇总刷新所有连接的总速率
+     * @param streams 测速连接
+     * @param testId 测速序号
+     */
+    private void requestParallel(final TestStream[] streams, final int testId) {
+        for (final TestStream stream : streams) {
+            execute(testId, new Runnable() {
+                @Override
+                public void run() {
+                    boolean first = true;
+                    while (isTestActive(testId)) {
+                        executeWithBackoff(stream, first, testId);
+                        first = false;
+                    }
+                }
+            });
+        }
+        while (isTestActive(testId)) {
+            waitUnlessStopped(UPDATE_RATE_IN_MILLIS, testId);
+            if (!isTestActive(testId) || Thread.currentThread().isInterrupted()) {
+                break;
+            }
+            updateSpeed(testId, System.currentTimeMillis());
+            if (isTimeout()) {
+                finishTask(testId);
+            }
+        }
+        // 汇总线程被中断(线程池关闭)时本次测速还没有结束
+        terminate(testId, TASK_STATE_CANCEL);
+        if (SpeedTestLog.isEnabled()) {
+            SpeedTestLog.i(TAG, "Task is stop, and task state is " + mTaskState + ".");
+        }
+    }
+    
+    /**
+     * 获取延迟探测的地址, 即下一次下载要使用的地址, 不改变轮换顺序。
+     * 跳过不支持延迟探测的地址和熔断中的镜像, 都在熔断中时使用第一个支持探测的地址
+     * @return url, 没有支持延迟探测的地址时返回null
+     */
+    private synchronized String getPingUrl() {
+        long currentTime = System.currentTimeMillis();
+        int length = mTestUrlArray.length;
+        int first = tempIndex + 1 < 0 || tempIndex + 1 >= length ? 0 : tempIndex + 1;
+        String fallback = null;
+        for (int i = 0; i < length; i++) {
+            String url = mTestUrlArray[(first + i) % length];
+            if (!mConfig.hasCapability(url, SpeedTestEndpoint.CAPABILITY_PING)) {
+                continue;
+            }
+            if (!getCircuitBreaker(url).isOpen(currentTime)) {
+                return url;
+            }
+            if (fallback == null) {
+                fallback = url;
+            }
+        }
+        return fallback;
+    }
+    
+    /**
+     * 按数组下标顺序取下一个地址, 跳过熔断中的镜像
+     * @return url, 所有镜像都在熔断中时返回null
+     */
+    private synchronized String getUrl4Test() {
+        long currentTime = System.currentTimeMillis();
+        for (int i = 0; i < mTestUrlArray.length; i++) {
+            // 按数组小标顺序取一个url地址
+            tempIndex++;
+            if (tempIndex < 0 || tempIndex >= mTestUrlArray.length) {
+                tempIndex = 0;
+            }
+            if (getCircuitBreaker(mTestUrlArray[tempIndex]).allowRequest(currentTime)) {
+                return mTestUrlArray[tempIndex];
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * 监测是否超时
+     * @return 是否超时
+     */
+    private boolean isTimeout() {
+        return isTimeout(System.currentTimeMillis());
+    }
+    
+    /**
+     * 监测是否超时, 自适应时长下速率稳定也视为超时
+     * @param currentTime 当前时间
+     * @return 是否超时
+     */
+    private boolean isTimeout(long currentTime) {
+        return isRateStable || (currentTime - mTaskStartTime) >= mMaxDurationMillis;
+    }
+    
+    /**
+     * 中断所有连接上的请求
+     */
+    private void closeClient() {
+        ServerSelector selector = mServerSelector;
+        if (selector != null) {
+            selector.abort();
+        }
+        SpeedTestTransport.Request pingRequest = mPingRequest;
+        if (pingRequest != null) {
+            pingRequest.abort();
+        }
+        TestStream[] streams = mStreams;
+        if (streams == null) {
+            return;
+        }
+        for (TestStream stream : streams) {
+            stream.close();
+        }
+    }
+    
+    /**
+     * 停止从网络上下载资源
+     * @param isUIExit 测速界面是否退出, 退出时在后台释放Task
+     */
+    public void stopTask(final boolean isUIExit) {
+        killTask();
+        if (isUIExit) {
+            onRelease();
+            mPlatform.executeInBackground(new Runnable() {
+                @Override
+                public void run() {
+                    shutdown(SHUTDOWN_TIME_OUT_MILLIS);
+                }
+            });
+        }
+    }
+    
+    /**
+     * 界面退出、释放Task之前调用, 此时本次测速已经停止, 子类可以在此上报结果
+     */
+    protected void onRelease() {
+    }
+    
+    /**
+     * 停止线程, 可以在任何线程调用, 不会阻塞, 重复调用时只有第一次生成结果并通知结束状态
+     */
+    public void killTask() {
+        stopConnections();
+        terminate(mTestId, TASK_STATE_CANCEL);
+    }
+    
+    /**
+     * 让所有测速线程退出: 唤醒等待中的线程并中断所有连接上的请求
+     */
+    private void stopConnections() {
+        isRunning = false;
+        if (mActiveWorkerCount.get() > 0) {
+            mStopRequestNanos.compareAndSet(0, System.nanoTime());
+        }
+        synchronized (mStopLock) {
+            mStopLock.notifyAll();
+        }
+        // 所有传输层的abort都不阻塞调用线程(UrlConnectionTransport在单独的线程中断开), 可以直接在UI线程执行。
+        // Apache和raw socket传输层阻塞在读写上的线程会立即抛出异常退出, HttpURLConnection在JDK上要等到读取超时
+        closeClient();
+    }
+    
+    /**
+     * 结束测速, 生成结果并通知结束状态。
+     * 只有本次测速还未结束时生效, 上一次测速遗留的线程或重复结束时不做任何事
+     * @param testId 测速序号
+     * @param taskState {@link #TASK_STATE_FINISHED}、{@link #TASK_STATE_FAIL}或{@link #TASK_STATE_CANCEL}
+     */
+    private void terminate(int testId, int taskState) {
+        if (!mActiveTestId.compareAndSet(testId, 0)) {
+            return;
+        }
+        mTaskState = taskState;
+        stopConnections();
+        mConnectionWaitTime = 0;
+        if (SpeedTestLog.isEnabled()) {
+            SpeedTestLog.i(TAG, "connections reused=" + mReusedConnectionCount.get()
+                    + ", opened=" + mNewConnectionCount.get());
+        }
+        // 测速线程可能还在刷新速率, 分位数和采样记录不是线程安全的, 在锁内生成结果
+        SpeedTestResult result;
+        synchronized (mSpeedLock) {
+            result = mTimeSeries.toResult(mTestType, mTaskState, mLastAvgSpeed, mSpeedPercentiles);
+        }
+        mLastResult = result;
+        if (mTestType == TEST_TYPE_DOWNLOAD && result.getP90Speed() > 0) {
+            mDownloadP90Speed = result.getP90Speed();
+        }
+        if (SpeedTestLog.isEnabled()) {
+            SpeedTestLog.i(TAG, "p10=" + result.getP10Speed() + ", p50=" + result.getP50Speed()
+                    + ", p90=" + result.getP90Speed() + ", p99=" + result.getP99Speed());
+        }
+        onTestStateChange(mTaskState);
+    }
+    
+    /**
+     * Task是否正在运行
+     * @return is running
+     */
+    public boolean isRunning() {
+        return isRunning;
+    }
+    
+    /**
+     * 本次测速失败的请求数, 包括非200响应、连接失败和所有镜像都熔断时跳过的请求
+     * @return 请求数
+     */
+    public int getFailedRequestCount() {
+        return mFailedRequestCount.get();
+    }
+    
+    /**
+     * 当前处于熔断中的镜像数
+     * @return 镜像数
+     */
+    public int getOpenCircuitCount() {
+        long currentTime = System.currentTimeMillis();
+        int count = 0;
+        synchronized (mCircuitBreakers) {
+            for (CircuitBreaker breaker : mCircuitBreakers.values()) {
+                if (breaker.isOpen(currentTime)) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+    
+    /**
+     * 上一次停止任务到所有测速线程退出的耗时, 包括因超时结束和界面退出
+     * @return 耗时(毫秒), -1表示还没有停止过
+     */
+    public long getLastStopMillis() {
+        return mLastStopMillis;
+    }
+    
+    /**
+     * 测速线程池中正在执行任务的线程数
+     * @return 线程数
+     */
+    public int getActiveThreadCount() {
+        ThreadPoolExecutor executor = mExecutor;
+        return executor != null ? executor.getActiveCount() : 0;
+    }
+    
+    /**
+     * 测速线程池中的线程数, 包括空闲等待复用的线程
+     * @return 线程数
+     */
+    public int getPoolThreadCount() {
+        ThreadPoolExecutor executor = mExecutor;
+        return executor != null ? executor.getPoolSize() : 0;
+    }
+    
+    /**
+     * 测速线程池中排队等待执行的任务数
+     * @return 任务数
+     */
+    public int getQueuedTaskCount() {
+        ThreadPoolExecutor executor = mExecutor;
+        return executor != null ? executor.getQueue().size() : 0;
+    }
+    
+    /**
+     * 本次测速所有连接实际读到的字节数
+     * @return 字节数
+     */
+    public long getReceivedBytes() {
+        return mReceivedBytes.get();
+    }
+    
+    /**
+     * 本次测速每读取1MB数据花费的CPU时间, 用于对比不同读取方式的开销
+     * @return CPU毫秒数/MB
+     */
+    public float getReceiveCpuMillisPerMB() {
+        long bytes = mReceivedBytes.get();
+        if (bytes <= 0) {
+            return 0;
+        }
+        return (float) mReceiveCpuNanos.get() / SpeedTestUtils.SECOND_IN_MILLIS / SpeedTestUtils.SECOND_IN_MILLIS
+                / ((float) bytes / SpeedTestUtils.MB_IN_BYTES);
+    }
+    
+    /**
+     * 测速进度通道, 只能在一个线程(通常是UI线程)中读取
+     * @return {@link ProgressChannel}
+     */
+    ProgressChannel getProgressChannel() {
+        return mProgressChannel;
+    }
+    
+    /**
+     * 上一次测速的结果, 包含每次刷新速率时记录的完整速率曲线, 在测速结束或停止时生成
+     * @return {@link SpeedTestResult}, 还没有测速结束时返回null
+     */
+    public SpeedTestResult getLastResult() {
+        return mLastResult;
+    }
+    
+    /**
+     * 本次上传测速的最大平均速率
+     * @return 上传速率
+     */
+    public long getMaxUploadSpeed() {
+        return mMaxUploadSpeed;
+    }
+    
+    /**
+     * 获取上传用的随机数据, 只生成一次
+     * @return 随机数据
+     */
+    private static synchronized byte[] getUploadPayload() {
+        if (sUploadPayload == null) {
+            sUploadPayload = new byte[UPLOAD_PAYLOAD_SIZE];
+            new Random().nextBytes(sUploadPayload);
+        }
+        return sUploadPayload;
+    }
+    
+    /**
+     * 本次测速中复用已有keep-alive连接的请求数
+     * @return 复用的连接数
+     */
+    public int getReusedConnectionCount() {
+        return mReusedConnectionCount.get();
+    }
+    
+    /**
+     * 本次测速中新建连接(TCP握手)的请求数
+     * @return 新建的连接数
+     */
+    public int getNewConnectionCount() {
+        return mNewConnectionCount.get();
+    }
+    
+    /**
+     * 上报用的下载速率, 使用最近一次下载测速瞬时速率的P90,
+     * 比平均速率的最大值更不受采样时机影响, 没有P90时使用平均速率的最大值
+     * @return 速率, 还没有下载测速时返回0
+     */
+    public long getReportSpeed() {
+        return mDownloadP90Speed > 0 ? mDownloadP90Speed : mMaxArvSpeed;
+    }
+    
+    /**
+     * 最近一次下载测速瞬时速率的P90
+     * @return 速率
+     */
+    public long getDownloadP90Speed() {
+        return mDownloadP90Speed;
+    }
+    
+    /**
+     * 下载测速平均速率的最大值
+     * @return 速率
+     */
+    public long getMaxAvgSpeed() {
+        return mMaxArvSpeed;
+    }
+    
+    /**
+     * 批量读取时复用的缓存, 只增大不缩小, 大小在{@link #MIN_CHANNEL_BUFFER_SIZE}
+     * 和{@link #MAX_CHANNEL_BUFFER_SIZE}之间随速率调整
+     */
+    static class ReceiveBuffer {
+        private byte[] mBuffer;
+
+        /**
+         * 获取复用的缓存
+         * @param size 需要的缓存大小
+         * @return 缓存, 长度不小于size
+         */
+        byte[] obtain(int size) {
+            if (mBuffer == null || mBuffer.length < size) {
+                mBuffer = new byte[size];
+            }
+            return mBuffer;
+        }
+    }
+
+    /**
+     * 一路测速连接, 所有连接共享同一个传输层
+     */
+    private class TestStream {
+        /** 是否为单连接模式, 单连接模式下由本连接刷新速率并扣除文件切换的连接等待时间 */
+        private final boolean mSingle;
+        /** 所属的测速序号 */
+        private final int mTestId;
+        /** 进行中的请求, 用于中断 */
+        private SpeedTestTransport.Request mRequest;
+        /** 批量读取时复用的缓存 */
+        private final ReceiveBuffer mReceiveBuffer = new ReceiveBuffer();
+        /** 连续失败的请求数, 用于计算退避时间, 只在本连接的线程中访问 */
+        private int mFailureCount;
+        
+        /**
+         * 构造方法
+         * @param single 是否为单连接模式
+         * @param testId 所属的测速序号
+         */
+        TestStream(boolean single, int testId) {
+            mSingle = single;
+            mTestId = testId;
+        }
+        
+        /**
+         * 按当前测速类型执行一次请求
+         * @param isMan 是否人为操作的
+         * @return 是否成功, 任务停止导致的中断不算失败
+         */
+        boolean execute(boolean isMan) {
+            if (mTestType == TEST_TYPE_UPLOAD) {
+                return upload(isMan);
+            } else {
+                return request(isMan);
+            }
+        }
+        
+        /**
+         * 向网络发送请求
+         * @param isMan 是否人为操作的
+         * @return 是否成功
+         */
+        boolean request(boolean isMan) {
+            String urlStr = getUrl4Test();
+            if (SpeedTestLog.isEnabled()) {
+                SpeedTestLog.i(TAG, "url=" + urlStr);
+            }
+            if (urlStr == null) {
+                // 所有镜像都在熔断中
+                return false;
+            }
+            final CircuitBreaker breaker = getCircuitBreaker(urlStr);
+            long connectionStartTime = System.currentTimeMillis();
+            SpeedTestTransport.Request request = getTransport().get(urlStr);
+            synchronized (this) {
+                mRequest = request;
+            }
+            // 设置请求之前任务已经停止, killTask没有中断到本次请求
+            if (!isTestActive(mTestId)) {
+                close();
+                return true;
+            }
+            SpeedTestTransport.Response response = null;
+            InputStream inStream = null;
+            try {
+                response = request.execute();
+                countConnection(response);
+                if (response.getStatusCode() == HttpURLConnection.HTTP_OK) {
+                    final InputStream content = response.getBody();
+                    if (content != null) {
+                        inStream = new CountingInputStream(content, mReceivedBytes);
+                    }
+                }
+                
+                if (inStream == null) {
+                    breaker.onFailure(System.currentTimeMillis());
+                    return false;
+                }
+                
+                //等到服务器响应之后才算时间
+                if (isMan) {
+                    mConnectionWaitTime = 0;
+                } else if (mSingle) {
+                    //文件切换时要减去连接等待时间, 并发模式下其他连接仍在下载, 不扣除
+                    mConnectionWaitTime += (System.currentTimeMillis() - connectionStartTime);
+                }
+                receive(this, inStream);
+                breaker.onSuccess();
+                return true;
+            } catch (Exception e) {
+                if (SpeedTestLog.isEnabled()) {
+                    SpeedTestLog.w(TAG, "SpeedTestEngine.request(), ", e);
+                }
+                if (!isTestActive(mTestId)) {
+                    return true;
+                }
+                breaker.onFailure(System.currentTimeMillis());
+                return false;
+            } finally {
+                release(response);
+            }
+        }
+        
+        /**
+         * 向接收地址上传随机数据, 直到任务停止
+         * @param isMan 是否人为操作的
+         * @return 是否成功
+         */
+        boolean upload(boolean isMan) {
+            if (SpeedTestLog.isEnabled()) {
+                SpeedTestLog.i(TAG, "upload url=" + mTestUploadUrl);
+            }
+            SpeedTestTransport.Request request = getTransport().post(mTestUploadUrl,
+                    new UploadBody(this, isMan, System.currentTimeMillis()));
+            synchronized (this) {
+                mRequest = request;
+            }
+            // 设置请求之前任务已经停止, killTask没有中断到本次请求
+            if (!isTestActive(mTestId)) {
+                close();
+                return true;
+            }
+            SpeedTestTransport.Response response = null;
+            try {
+                response = request.execute();
+                countConnection(response);
+                // 读完响应体, 连接才能复用
+                consume(response.getBody());
+                return response.getStatusCode() == HttpURLConnection.HTTP_OK;
+            } catch (Exception e) {
+                if (SpeedTestLog.isEnabled()) {
+                    SpeedTestLog.w(TAG, "SpeedTestEngine.upload(), ", e);
+                }
+                return !isTestActive(mTestId);
+            } finally {
+                release(response);
+            }
+        }
+        
+        /**
+         * 请求结束后释放连接, 响应体已读完时连接归还连接池, 否则断开
+         * @param response 响应, 请求失败时为null
+         */
+        void release(SpeedTestTransport.Response response) {
+            synchronized (this) {
+                mRequest = null;
+            }
+            if (response != null) {
+                response.close();
+            }
+        }
+        
+        /**
+         * 中断进行中的请求, 可以在其他线程中调用, 只在取出请求时持有锁, 不会阻塞
+         */
+        void close() {
+            SpeedTestTransport.Request request;
+            synchronized (this) {
+                request = mRequest;
+                mRequest = null;
+            }
+            if (request != null) {
+                try {
+                    request.abort();
+                } catch (Throwable t) {
+                }
+            }
+        }
+    }
+    
+    /**
+     * 上传测速的请求体, 以chunked方式循环写出随机数据直到任务停止
+     */
+    private class UploadBody implements SpeedTestTransport.BodyWriter {
+        /** 所属的测速连接 */
+        private final TestStream mStream;
+        /** 是否人为操作的 */
+        private final boolean mIsMan;
+        /** 开始建立连接的时间 */
+        private final long mConnectionStartTime;
+        
+        /**
+         * 构造方法
+         * @param stream 所属的测速连接
+         * @param isMan 是否人为操作的
+         * @param connectionStartTime 开始建立连接的时间
+         */
+        UploadBody(TestStream stream, boolean isMan, long connectionStartTime) {
+            mStream = stream;
+            mIsMan = isMan;
+            mConnectionStartTime = connectionStartTime;
+        }
+        
+        @Override
+        public void writeTo(OutputStream outStream) throws IOException {
+            // 开始写请求体时连接已经建立
+            if (mIsMan) {
+                mConnectionWaitTime = 0;
+            } else if (mStream.mSingle) {
+                mConnectionWaitTime += (System.currentTimeMillis() - mConnectionStartTime);
+            }
+            final byte[] payload = getUploadPayload();
+            final boolean reportSpeed = mStream.mSingle;
+            int offset = 0;
+            int writes = 0;
+            
+            while (isTestActive(mStream.mTestId)) {
+                outStream.write(payload, offset, UPLOAD_CHUNK_SIZE);
+                mSentBytes.addAndGet(UPLOAD_CHUNK_SIZE);
+                offset = (offset + UPLOAD_CHUNK_SIZE) % UPLOAD_PAYLOAD_SIZE;
+                if (++writes < CLOCK_CHECK_READS) {
+                    continue;
+                }
+                writes = 0;
+                
+                long currentTime = System.currentTimeMillis();
+                if (reportSpeed && (currentTime - mLastUpdateTime) >= UPDATE_RATE_IN_MILLIS) {
+                    updateSpeed(mStream.mTestId, currentTime);
+                }
+                if (reportSpeed && isTimeout(currentTime)) {
+                    finishTask(mStream.mTestId);
+                }
+            }
+            outStream.flush();
+        }
+    }
+    
+    /**
+     * 手动测速信息, 从{@link ProgressChannel}读取的一条进度记录, 由读取方复用
+     */
+    static class SpeedTest {
+        /** 记录时间 */
+        private long mTime;
+        /** 测速类型 */
+        private int mTestType;
+        /** 记录时的任务状态 */
+        private int mTaskState;
+        /** 当前速率 */
+        private int mCurrentSpeed;
+        /** 平均速率, 预热结束后不含预热阶段 */
+        private int mAvgSpeed;
+        /** 从第一个字节开始计算的平均速率 */
+        private int mRawAvgSpeed;
+        /** 按WiFi网卡总流量计算的平均速率 */
+        private int mInterfaceAvgSpeed;
+        /** 累计传输的字节数 */
+        private long mBytes;
+    
+        /**
+         * 设置记录内容
+         * @param time 记录时间
+         * @param testType 测速类型
+         * @param taskState 记录时的任务状态
+         * @param currentSpeed 当前速率
+         * @param avgSpeed 平均速率, 预热结束后不含预热阶段
+         * @param rawAvgSpeed 从第一个字节开始计算的平均速率
+         * @param interfaceAvgSpeed 按WiFi网卡总流量计算的平均速率
+         * @param bytes 累计传输的字节数
+         */
+        void set(long time, int testType, int taskState, int currentSpeed, int avgSpeed,
+                int rawAvgSpeed, int interfaceAvgSpeed, long bytes) {
+            this.mTime = time;
+            this.mTestType = testType;
+            this.mTaskState = taskState;
+            this.mCurrentSpeed = currentSpeed;
+            this.mAvgSpeed = avgSpeed;
+            this.mRawAvgSpeed = rawAvgSpeed;
+            this.mInterfaceAvgSpeed = interfaceAvgSpeed;
+            this.mBytes = bytes;
+        }
+
+        /**
+         * 获取记录时间
+         * @return 时间(毫秒)
+         */
+        long getTime() {
+            return mTime;
+        }
+
+        /**
+         * 获取记录时的任务状态
+         * @return 任务状态
+         */
+        int getTaskState() {
+            return mTaskState;
+        }
+
+        /**
+         * 获取累计传输的字节数
+         * @return 字节数
+         */
+        long getBytes() {
+            return mBytes;
+        }
+
+        /**
+         * 是否为上传测速的速率
+         * @return 是否为上传
+         */
+        boolean isUpload() {
+            return mTestType == TEST_TYPE_UPLOAD;
+        }
+
+        /**
+         * 获取当期速率
+         * @return 当前速率
+         */
+        int getCurrentSpeed() {
+            return mCurrentSpeed;
+        }
+
+        /**
+         * 获取当前平均速率, 预热结束后不含预热阶段
+         * @return 当前平均速率
+         */
+        int getAvgSpeed() {
+            return mAvgSpeed;
+        }
+
+        /**
+         * 获取从第一个字节开始计算的平均速率, 包含TCP慢启动阶段
+         * @return 原始平均速率
+         */
+        int getRawAvgSpeed() {
+            return mRawAvgSpeed;
+        }
+
+        /**
+         * 获取按WiFi网卡总流量计算的平均速率, 包含其他应用的流量
+         * @return 网卡平均速率
+         */
+        int getInterfaceAvgSpeed() {
+            return mInterfaceAvgSpeed;
+        }
+    }
+    
+    /**
+     * 延迟探测结果
+     */
+    static class PingResult {
+        /** 最小往返时间(毫秒) */
+        private int mMinMillis;
+        /** 往返时间中位数(毫秒) */
+        private int mMedianMillis;
+        /** 抖动, 相邻两次往返时间差的平均值(毫秒) */
+        private int mJitterMillis;
+        /** 成功的探测次数 */
+        private int mCount;
+
+        /**
+         * 构造方法
+         * @param rttNanos 每次探测的往返时间(纳秒), 按探测顺序排列
+         */
+        PingResult(long[] rttNanos) {
+            mCount = rttNanos.length;
+            long jitterNanos = 0;
+            for (int i = 1; i < rttNanos.length; i++) {
+                jitterNanos += Math.abs(rttNanos[i] - rttNanos[i - 1]);
+            }
+            if (rttNanos.length > 1) {
+                jitterNanos /= rttNanos.length - 1;
+            }
+            long[] sorted = rttNanos.clone();
+            Arrays.sort(sorted);
+            long medianNanos = sorted.length % 2 == 1 ? sorted[sorted.length / 2]
+                    : (sorted[sorted.length / 2 - 1] + sorted[sorted.length / 2]) / 2;
+            mMinMillis = toMillis(sorted[0]);
+            mMedianMillis = toMillis(medianNanos);
+            mJitterMillis = toMillis(jitterNanos);
+        }
+
+        private static int toMillis(long nanos) {
+            return (int) ((nanos + 500000) / 1000000);
+        }
+
+        /**
+         * 获取最小往返时间
+         * @return 毫秒
+         */
+        int getMinMillis() {
+            return mMinMillis;
+        }
+
+        /**
+         * 获取往返时间中位数
+         * @return 毫秒
+         */
+        int getMedianMillis() {
+            return mMedianMillis;
+        }
+
+        /**
+         * 获取抖动
+         * @return 毫秒
+         */
+        int getJitterMillis() {
+            return mJitterMillis;
+        }
+
+        /**
+         * 获取成功的探测次数
+         * @return 次数
+         */
+        int getCount() {
+            return mCount;
+        }
+    }
+    
+    /**
+     * 网速测试Task的监听器
+     */
+    interface SpeedTestTaskListener {
+        /**
+         * 下载前的延迟探测完成
+         * @param ping 延迟探测结果
+         */
+        void onPingFinished(final PingResult ping);
+
+        /**
+         * 监听任务执行状态的变化
+         *
+         * @param taskState
+         *            任务执行状态
+         */
+        void onStateChange(final int taskState);
+    }
+}
@@ -0,0 +1,592 @@
+/*
+ * Copyright (C) 2015 Zlianjie Inc. All rights reserved.
+ */
+package com.zlianjie.coolwifi.speedtest;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * 按接入点(BSSID)保存的测速历史, 只追加的二进制日志加紧凑索引:
+ * <pre>
+ *     history.dat: 文件头 + 记录, 每条记录为 长度(4) + CRC32(4) + 内容, 内容包含完整的速率曲线
+ *     history.idx: 文件头 + 每条记录一个定长项 BSSID哈希(8) + 偏移(8) + 时间(8) + 长度(4)
+ * </pre>
+ * 打开时只顺序读取索引, 在内存中按BSSID建立记录列表, 查询最近N条时只读取这N条记录, 与总记录数无关。
+ * 追加时先写数据再写索引, 写到一半崩溃时下次打开会校验并截掉不完整的记录、从数据文件补全索引。
+ * 数据文件超过上限时压缩: 从新到旧保留记录, 每个接入点最多保留固定条数, 直到达到上限的3/4,
+ * 写入临时文件后替换。
+ * 所有方法都会执行I/O, 不要在UI线程调用
+ *
+ * @author kzw
+ * @since 2015-09-06
+ */
+public final class SpeedTestHistory {
+    /** log tag */
+    private static final String TAG = "SpeedTestHistory";
+
+    /** 数据文件 */
+    private static final String DATA_FILE = "history.dat";
+    /** 索引文件 */
+    private static final String INDEX_FILE = "history.idx";
+    /** 压缩时临时文件的后缀 */
+    private static final String TEMP_SUFFIX = ".tmp";
+    /** 数据文件标识 */
+    private static final int DATA_MAGIC = 0x53544844;
+    /** 索引文件标识 */
+    private static final int INDEX_MAGIC = 0x53544849;
+    /** 文件格式版本 */
+    private static final int FORMAT_VERSION = 1;
+    /** 文件头大小: 标识 + 版本 */
+    private static final int FILE_HEADER_SIZE = 8;
+    /** 记录头大小: 长度 + CRC32 */
+    private static final int RECORD_HEADER_SIZE = 8;
+    /** 索引项大小 */
+    private static final int INDEX_ENTRY_SIZE = 28;
+    /** 单条记录内容的最大长度, 超过视为文件损坏 */
+    private static final int MAX_RECORD_SIZE = 1 << 20;
+    /** 默认的数据文件上限 */
+    public static final long DEFAULT_MAX_BYTES = 1024L * SpeedTestUtils.KB_IN_BYTES;
+    /** 默认每个接入点保留的记录数 */
+    public static final int DEFAULT_MAX_RECORDS_PER_AP = 100;
+    /** 压缩后的大小占上限的比例, 留出空间避免每次追加都压缩 */
+    private static final float COMPACT_TARGET_RATIO = 0.75f;
+    /** 索引数组的初始容量 */
+    private static final int INITIAL_CAPACITY = 64;
+
+    /** 存放文件的目录 */
+    private final File mDir;
+    /** 数据文件上限 */
+    private final long mMaxBytes;
+    /** 每个接入点保留的记录数 */
+    private final int mMaxRecordsPerAp;
+
+    /** 数据文件, 第一次使用时打开 */
+    private RandomAccessFile mData;
+    /** 索引文件 */
+    private RandomAccessFile mIndex;
+    /** 数据文件中有效数据的结束位置 */
+    private long mDataEnd;
+    /** 以下为索引项, 按追加顺序: BSSID哈希 */
+    private long[] mHashes = new long[INITIAL_CAPACITY];
+    /** 记录在数据文件中的偏移 */
+    private long[] mOffsets = new long[INITIAL_CAPACITY];
+    /** 记录的测速时间 */
+    private long[] mTimes = new long[INITIAL_CAPACITY];
+    /** 记录内容的长度 */
+    private int[] mLengths = new int[INITIAL_CAPACITY];
+    /** 索引项数 */
+    private int mCount;
+    /** BSSID哈希 -> 索引项下标, 按追加顺序 */
+    private final Map<Long, IntList> mEntriesByAp = new HashMap<>();
+
+    /**
+     * 构造方法, 不执行I/O, 第一次读写时打开文件
+     * @param dir 存放文件的目录, 不存在时创建
+     * @param maxBytes 数据文件上限
+     * @param maxRecordsPerAp 压缩时每个接入点保留的记录数
+     */
+    public SpeedTestHistory(File dir, long maxBytes, int maxRecordsPerAp) {
+        mDir = dir;
+        mMaxBytes = maxBytes;
+        mMaxRecordsPerAp = Math.max(1, maxRecordsPerAp);
+    }
+
+    /**
+     * 追加一次测速的结果, 超过上限时压缩
+     * @param bssid 接入点的BSSID
+     * @param timeMillis 测速时间
+     * @param result 测速结果
+     * @throws IOException 读写失败
+     */
+    public synchronized void append(String bssid, long timeMillis, SpeedTestResult result) throws IOException {
+        ensureOpen();
+        final byte[] payload = encode(bssid, timeMillis, result);
+        final CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteArrayOutputStream record = new ByteArrayOutputStream(RECORD_HEADER_SIZE + payload.length);
+        DataOutputStream out = new DataOutputStream(record);
+        out.writeInt(payload.length);
+        out.writeInt((int) crc.getValue());
+        out.write(payload);
+        final long offset = mDataEnd;
+        // 一次写入整条记录
+        mData.seek(offset);
+        mData.write(record.toByteArray());
+        mDataEnd = offset + record.size();
+        final long hash = hash(bssid);
+        writeIndexEntry(mIndex, hash, offset, timeMillis, payload.length);
+        addEntry(hash, offset, timeMillis, payload.length);
+        if (mDataEnd > mMaxBytes) {
+            compact();
+        }
+    }
+
+    /**
+     * 查询接入点最近的测速记录
+     * @param bssid 接入点的BSSID
+     * @param limit 最多返回的条数
+     * @return 从新到旧排列的记录, 没有时返回空列表
+     * @throws IOException 读取失败
+     */
+    public synchronized List<Record> query(String bssid, int limit) throws IOException {
+        ensureOpen();
+        final IntList entries = mEntriesByAp.get(hash(bssid));
+        if (entries == null || limit <= 0) {
+            return new ArrayList<>(0);
+        }
+        final List<Record> records = new ArrayList<>(Math.min(limit, entries.mSize));
+        for (int i = entries.mSize - 1; i >= 0 && records.size() < limit; i--) {
+            Record record = readRecord(entries.mValues[i]);
+            // 哈希冲突或记录损坏时跳过
+            if (record != null && record.mBssid.equals(bssid)) {
+                records.add(record);
+            }
+        }
+        return records;
+    }
+
+    /**
+     * 总记录数
+     * @return 记录数
+     * @throws IOException 打开失败
+     */
+    public synchronized int getRecordCount() throws IOException {
+        ensureOpen();
+        return mCount;
+    }
+
+    /**
+     * 数据文件的大小
+     * @return 字节数
+     * @throws IOException 打开失败
+     */
+    public synchronized long getDataSize() throws IOException {
+        ensureOpen();
+        return mDataEnd;
+    }
+
+    /**
+     * 关闭文件, 之后再读写时重新打开
+     */
+    public synchronized void close() {
+        SpeedTestUtils.closeSafely(mData);
+        SpeedTestUtils.closeSafely(mIndex);
+        mData = null;
+        mIndex = null;
+    }
+
+    /**
+     * 打开文件并加载索引
+     * @throws IOException 打开失败
+     */
+    private void ensureOpen() throws IOException {
+        if (mData != null) {
+            return;
+        }
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            throw new IOException("cannot create " + mDir);
+        }
+        try {
+            mData = new RandomAccessFile(new File(mDir, DATA_FILE), "rw");
+            mIndex = new RandomAccessFile(new File(mDir, INDEX_FILE), "rw");
+            load();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * 加载索引, 索引损坏时从数据文件重建, 再补全索引之后追加的记录
+     * @throws IOException 读写失败
+     */
+    private void load() throws IOException {
+        mCount = 0;
+        mEntriesByAp.clear();
+        if (!hasHeader(mData, DATA_MAGIC)) {
+            // 新文件或无法识别的格式, 重新开始
+            mData.setLength(0);
+            writeHeader(mData, DATA_MAGIC);
+            mIndex.setLength(0);
+            writeHeader(mIndex, INDEX_MAGIC);
+            mDataEnd = FILE_HEADER_SIZE;
+            return;
+        }
+        mDataEnd = FILE_HEADER_SIZE;
+        if (!loadIndex()) {
+            if (SpeedTestLog.isEnabled()) {
+                SpeedTestLog.w(TAG, "index corrupted, rebuilding");
+            }
+            mCount = 0;
+            mEntriesByAp.clear();
+            mDataEnd = FILE_HEADER_SIZE;
+            mIndex.setLength(0);
+            writeHeader(mIndex, INDEX_MAGIC);
+        }
+        recoverTail();
+    }
+
+    /**
+     * 读取索引文件, 校验每一项与数据文件的位置连续
+     * @return 索引是否有效
+     * @throws IOException 读取失败
+     */
+    private boolean loadIndex() throws IOException {
+        final long indexLength = mIndex.length();
+        if (!hasHeader(mIndex, INDEX_MAGIC) || (indexLength - FILE_HEADER_SIZE) % INDEX_ENTRY_SIZE != 0) {
+            return false;
+        }
+        final int count = (int) ((indexLength - FILE_HEADER_SIZE) / INDEX_ENTRY_SIZE);
+        final byte[] buffer = new byte[count * INDEX_ENTRY_SIZE];
+        mIndex.seek(FILE_HEADER_SIZE);
+        mIndex.readFully(buffer);
+        final long dataLength = mData.length();
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(buffer));
+        for (int i = 0; i < count; i++) {
+            long hash = in.readLong();
+            long offset = in.readLong();
+            long time = in.readLong();
+            int length = in.readInt();
+            long end = offset + RECORD_HEADER_SIZE + length;
+            if (offset != mDataEnd || length < 0 || length > MAX_RECORD_SIZE || end > dataLength) {
+                return false;
+            }
+            addEntry(hash, offset, time, length);
+            mDataEnd = end;
+        }
+        return true;
+    }
+
+    /**
+     * 扫描索引之后的记录, 校验通过的补入索引, 截掉第一条不完整或损坏的记录及其之后的数据
+     * @throws IOException 读写失败
+     */
+    private void recoverTail() throws IOException {
+        final long dataLength = mData.length();
+        while (mDataEnd + RECORD_HEADER_SIZE <= dataLength) {
+            mData.seek(mDataEnd);
+            int length = mData.readInt();
+            int checksum = mData.readInt();
+            if (length < 0 || length > MAX_RECORD_SIZE || mDataEnd + RECORD_HEADER_SIZE + length > dataLength) {
+                break;
+            }
+            byte[] payload = new byte[length];
+            mData.readFully(payload);
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            Record record;
+            try {
+                record = decode(payload);
+            } catch (IOException e) {
+                break;
+            }
+            long hash = hash(record.mBssid);
+            writeIndexEntry(mIndex, hash, mDataEnd, record.mTimeMillis, length);
+            addEntry(hash, mDataEnd, record.mTimeMillis, length);
+            mDataEnd += RECORD_HEADER_SIZE + length;
+        }
+        if (mDataEnd < dataLength) {
+            if (SpeedTestLog.isEnabled()) {
+                SpeedTestLog.w(TAG, "truncate " + (dataLength - mDataEnd) + " bytes of incomplete record");
+            }
+            mData.setLength(mDataEnd);
+        }
+    }
+
+    /**
+     * 压缩数据文件, 写入临时文件后替换, 完成后重新加载索引
+     * @throws IOException 读写失败
+     */
+    private void compact() throws IOException {
+        final long target = (long) (mMaxBytes * COMPACT_TARGET_RATIO);
+        final boolean[] keep = new boolean[mCount];
+        final Map<Long, Integer> keptPerAp = new HashMap<>();
+        long size = FILE_HEADER_SIZE;
+        for (int i = mCount - 1; i >= 0; i--) {
+            long recordSize = RECORD_HEADER_SIZE + mLengths[i];
+            if (size + recordSize > target) {
+                break;
+            }
+            Integer kept = keptPerAp.get(mHashes[i]);
+            int keptCount = kept != null ? kept : 0;
+            if (keptCount >= mMaxRecordsPerAp) {
+                continue;
+            }
+            keptPerAp.put(mHashes[i], keptCount + 1);
+            keep[i] = true;
+            size += recordSize;
+        }
+        final File dataTemp = new File(mDir, DATA_FILE + TEMP_SUFFIX);
+        final File indexTemp = new File(mDir, INDEX_FILE + TEMP_SUFFIX);
+        FileOutputStream dataStream = null;
+        FileOutputStream indexStream = null;
+        try {
+            dataStream = new FileOutputStream(dataTemp);
+            indexStream = new FileOutputStream(indexTemp);
+            DataOutputStream dataOut = new DataOutputStream(new BufferedOutputStream(dataStream));
+            DataOutputStream indexOut = new DataOutputStream(new BufferedOutputStream(indexStream));
+            dataOut.writeInt(DATA_MAGIC);
+            dataOut.writeInt(FORMAT_VERSION);
+            indexOut.writeInt(INDEX_MAGIC);
+            indexOut.writeInt(FORMAT_VERSION);
+            long offset = FILE_HEADER_SIZE;
+            byte[] buffer = new byte[0];
+            for (int i = 0; i < mCount; i++) {
+                if (!keep[i]) {
+                    continue;
+                }
+                int recordSize = RECORD_HEADER_SIZE + mLengths[i];
+                if (buffer.length < recordSize) {
+                    buffer = new byte[recordSize];
+                }
+                mData.seek(mOffsets[i]);
+                mData.readFully(buffer, 0, recordSize);
+                dataOut.write(buffer, 0, recordSize);
+                indexOut.writeLong(mHashes[i]);
+                indexOut.writeLong(offset);
+                indexOut.writeLong(mTimes[i]);
+                indexOut.writeInt(mLengths[i]);
+                offset += recordSize;
+            }
+            dataOut.flush();
+            indexOut.flush();
+            // 替换前落盘, 替换后崩溃时不会得到空文件
+            dataStream.getFD().sync();
+            indexStream.getFD().sync();
+        } finally {
+            SpeedTestUtils.closeSafely(dataStream);
+            SpeedTestUtils.closeSafely(indexStream);
+        }
+        final int before = mCount;
+        final long beforeBytes = mDataEnd;
+        close();
+        // 先替换数据再替换索引, 中间崩溃时旧索引与新数据不连续, 下次打开会重建索引
+        if (!dataTemp.renameTo(new File(mDir, DATA_FILE)) || !indexTemp.renameTo(new File(mDir, INDEX_FILE))) {
+            throw new IOException("cannot replace history files");
+        }
+        ensureOpen();
+        if (SpeedTestLog.isEnabled()) {
+            SpeedTestLog.i(TAG, "compacted " + before + " records/" + beforeBytes + " bytes to "
+                    + mCount + " records/" + mDataEnd + " bytes");
+        }
+    }
+
+    /**
+     * 读取一条记录并校验
+     * @param entry 索引项下标
+     * @return 记录, 校验失败时返回null
+     * @throws IOException 读取失败
+     */
+    private Record readRecord(int entry) throws IOException {
+        final int length = mLengths[entry];
+        final byte[] buffer = new byte[RECORD_HEADER_SIZE + length];
+        mData.seek(mOffsets[entry]);
+        mData.readFully(buffer);
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(buffer));
+        final int storedLength = in.readInt();
+        final int checksum = in.readInt();
+        final CRC32 crc = new CRC32();
+        crc.update(buffer, RECORD_HEADER_SIZE, length);
+        if (storedLength != length || (int) crc.getValue() != checksum) {
+            if (SpeedTestLog.isEnabled()) {
+                SpeedTestLog.w(TAG, "corrupted record at " + mOffsets[entry]);
+            }
+            return null;
+        }
+        return decode(Arrays.copyOfRange(buffer, RECORD_HEADER_SIZE, buffer.length));
+    }
+
+    /**
+     * 编码记录内容: BSSID、时间、测速类型和状态、平均速率和分位数、速率曲线,
+     * 曲线的第一个样本为绝对值, 之后为与前一个样本的差值
+     */
+    private static byte[] encode(String bssid, long timeMillis, SpeedTestResult result) throws IOException {
+        final int count = result.getSampleCount();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(64 + bssid.length() + count * 12);
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeUTF(bssid);
+        out.writeLong(timeMillis);
+        out.writeByte(result.getTestType());
+        out.writeByte(result.getTaskState());
+        out.writeLong(result.getAvgSpeed());
+        out.writeLong(result.getP10Speed());
+        out.writeLong(result.getP50Speed());
+        out.writeLong(result.getP90Speed());
+        out.writeLong(result.getP99Speed());
+        out.writeInt(count);
+        for (int i = 0; i < count; i++) {
+            if (i == 0) {
+                out.writeLong(result.getTimeAt(0));
+                out.writeLong(result.getBytesAt(0));
+            } else {
+                out.writeInt((int) (result.getTimeAt(i) - result.getTimeAt(i - 1)));
+                out.writeLong(result.getBytesAt(i) - result.getBytesAt(i - 1));
+            }
+        }
+        out.flush();
+        return buffer.toByteArray();
+    }
+
+    private static Record decode(byte[] payload) throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        final String bssid = in.readUTF();
+        final long timeMillis = in.readLong();
+        final int testType = in.readByte();
+        final int taskState = in.readByte();
+        final long avgSpeed = in.readLong();
+        final long p10 = in.readLong();
+        final long p50 = in.readLong();
+        final long p90 = in.readLong();
+        final long p99 = in.readLong();
+        final int count = in.readInt();
+        if (count < 0 || count > payload.length) {
+            throw new IOException("invalid sample count " + count);
+        }
+        final long[] times = new long[count];
+        final long[] bytes = new long[count];
+        for (int i = 0; i < count; i++) {
+            if (i == 0) {
+                times[0] = in.readLong();
+                bytes[0] = in.readLong();
+            } else {
+                times[i] = times[i - 1] + in.readInt();
+                bytes[i] = bytes[i - 1] + in.readLong();
+            }
+        }
+        return new Record(bssid, timeMillis, new SpeedTestResult(testType, taskState, avgSpeed,
+                p10, p50, p90, p99, times, bytes));
+    }
+
+    private static boolean hasHeader(RandomAccessFile file, int magic) throws IOException {
+        if (file.length() < FILE_HEADER_SIZE) {
+            return false;
+        }
+        file.seek(0);
+        return file.readInt() == magic && file.readInt() == FORMAT_VERSION;
+    }
+
+    private static void writeHeader(RandomAccessFile file, int magic) throws IOException {
+        file.seek(0);
+        file.writeInt(magic);
+        file.writeInt(FORMAT_VERSION);
+    }
+
+    private static void writeIndexEntry(RandomAccessFile index, long hash, long offset, long timeMillis,
+            int length) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(INDEX_ENTRY_SIZE);
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeLong(hash);
+        out.writeLong(offset);
+        out.writeLong(timeMillis);
+        out.writeInt(length);
+        index.seek(index.length());
+        index.write(buffer.toByteArray());
+    }
+
+    /**
+     * 在内存中添加一个索引项
+     */
+    private void addEntry(long hash, long offset, long timeMillis, int length) {
+        if (mCount == mOffsets.length) {
+            int capacity = mCount * 2;
+            mHashes = Arrays.copyOf(mHashes, capacity);
+            mOffsets = Arrays.copyOf(mOffsets, capacity);
+            mTimes = Arrays.copyOf(mTimes, capacity);
+            mLengths = Arrays.copyOf(mLengths, capacity);
+        }
+        mHashes[mCount] = hash;
+        mOffsets[mCount] = offset;
+        mTimes[mCount] = timeMillis;
+        mLengths[mCount] = length;
+        IntList entries = mEntriesByAp.get(hash);
+        if (entries == null) {
+            entries = new IntList();
+            mEntriesByAp.put(hash, entries);
+        }
+        entries.add(mCount);
+        mCount++;
+    }
+
+    /**
+     * BSSID的64位FNV-1a哈希, 冲突时读取记录后按BSSID过滤
+     */
+    private static long hash(String bssid) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < bssid.length(); i++) {
+            hash ^= bssid.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * 一条历史记录
+     */
+    public static final class Record {
+        /** 接入点的BSSID */
+        private final String mBssid;
+        /** 测速时间 */
+        private final long mTimeMillis;
+        /** 测速结果 */
+        private final SpeedTestResult mResult;
+
+        Record(String bssid, long timeMillis, SpeedTestResult result) {
+            mBssid = bssid;
+            mTimeMillis = timeMillis;
+            mResult = result;
+        }
+
+        /**
+         * @return 接入点的BSSID
+         */
+        public String getBssid() {
+            return mBssid;
+        }
+
+        /**
+         * @return 测速时间
+         */
+        public long getTimeMillis() {
+            return mTimeMillis;
+        }
+
+        /**
+         * @return 测速结果, 包含完整的速率曲线
+         */
+        public SpeedTestResult getResult() {
+            return mResult;
+        }
+    }
+
+    /**
+     * 不装箱的int列表
+     */
+    private static final class IntList {
+        private int[] mValues = new int[8];
+        private int mSize;
+
+        void add(int value) {
+            if (mSize == mValues.length) {
+                mValues = Arrays.copyOf(mValues, mSize * 2);
+            }
+            mValues[mSize++] = value;
+        }
+    }
+}
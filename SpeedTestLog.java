@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2015 Zlianjie Inc. All rights reserved.
+ */
+package com.zlianjie.coolwifi.speedtest;
+
+/**
+ * 测速引擎的日志入口, 不依赖Android。
+ * 没有设置{@link Logger}时不输出日志, {@link #isEnabled()}返回false, 调用方据此跳过日志字符串的拼接。
+ * Android上由SpeedTestTask在debug包中转发到系统日志, JVM上可以输出到标准错误等。
+ *
+ * @author kzw
+ * @since 2015-09-03
+ */
+public final class SpeedTestLog {
+
+    /** 当前的日志输出, null表示关闭日志 */
+    private static volatile Logger sLogger;
+
+    private SpeedTestLog() {
+    }
+
+    /**
+     * 设置日志输出
+     * @param logger {@link Logger}, null表示关闭日志
+     */
+    public static void setLogger(Logger logger) {
+        sLogger = logger;
+    }
+
+    /**
+     * 是否输出日志
+     * @return 是否输出
+     */
+    public static boolean isEnabled() {
+        return sLogger != null;
+    }
+
+    /**
+     * 输出info日志
+     * @param tag 标签
+     * @param msg 内容
+     */
+    public static void i(String tag, String msg) {
+        Logger logger = sLogger;
+        if (logger != null) {
+            logger.log(Logger.INFO, tag, msg, null);
+        }
+    }
+
+    /**
+     * 输出warn日志
+     * @param tag 标签
+     * @param msg 内容
+     */
+    public static void w(String tag, String msg) {
+        w(tag, msg, null);
+    }
+
+    /**
+     * 输出warn日志
+     * @param tag 标签
+     * @param msg 内容
+     * @param t 异常
+     */
+    public static void w(String tag, String msg, Throwable t) {
+        Logger logger = sLogger;
+        if (logger != null) {
+            logger.log(Logger.WARN, tag, msg, t);
+        }
+    }
+
+    /**
+     * 日志输出
+     */
+    public interface Logger {
+        /** info级别 */
+        int INFO = 0;
+        /** warn级别 */
+        int WARN = 1;
+
+        /**
+         * 输出一条日志
+         * @param level {@link #INFO}或{@link #WARN}
+         * @param tag 标签
+         * @param msg 内容
+         * @param t 异常, 可以为null
+         */
+        void log(int level, String tag, String msg, Throwable t);
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2015 Zlianjie Inc. All rights reserved.
+ */
+package com.zlianjie.coolwifi.speedtest;
+
+/**
+ * 测速引擎依赖的运行平台能力, 引擎本身只使用纯Java。
+ * <pre>
+ *     AndroidSpeedTestPlatform: 应用内, 从assets读取镜像, 按WiFi网卡统计流量, 默认使用Apache HttpClient
+ *     {@link JvmSpeedTestPlatform}: 单元测试、Linux探针机和压测环境, 默认使用{@link RawSocketTransport}
+ * </pre>
+ *
+ * @author kzw
+ * @since 2015-09-03
+ */
+public interface SpeedTestPlatform {
+
+    /**
+     * 读取测速地址配置, 在测速线程中调用, 可以执行I/O
+     * @return {@link SpeedTestConfig}, 读取失败时返回null, 引擎使用默认地址
+     */
+    SpeedTestConfig loadConfig();
+
+    /**
+     * 当前网络的标识, 镜像选择的结果按此缓存
+     * @return 标识(如WiFi的BSSID), 未知时返回null
+     */
+    String getNetworkKey();
+
+    /**
+     * 网卡累计收发的字节数, 用于计算包含其他应用流量的参考速率
+     * @return 字节数, 不支持时返回0
+     */
+    long getInterfaceTotalBytes();
+
+    /**
+     * 当前线程消耗的CPU时间
+     * @return 纳秒, 不支持时返回0
+     */
+    long threadCpuTimeNanos();
+
+    /**
+     * 在后台线程执行, 用于释放Task等会阻塞的操作
+     * @param runnable 任务
+     */
+    void executeInBackground(Runnable runnable);
+
+    /**
+     * 创建测速使用的传输层, 引擎不直接依赖任何HTTP客户端库
+     * @param transportType {@link SpeedTestEngine#TRANSPORT_DEFAULT}、{@link SpeedTestEngine#TRANSPORT_APACHE}、
+     *                      {@link SpeedTestEngine#TRANSPORT_URL_CONNECTION}或{@link SpeedTestEngine#TRANSPORT_RAW_SOCKET},
+     *                      平台不支持的类型使用平台默认的传输层
+     * @param maxConnections 同时进行的最大连接数
+     * @param connectTimeoutMillis 默认连接超时
+     * @param readTimeoutMillis 默认读取超时
+     * @return {@link SpeedTestTransport}
+     */
+    SpeedTestTransport createTransport(int transportType, int maxConnections, int connectTimeoutMillis,
+            int readTimeoutMillis);
+}
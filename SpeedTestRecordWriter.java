@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2015 Zlianjie Inc. All rights reserved.
+ */
+package com.zlianjie.coolwifi.speedtest;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * 批量测速结果的流式输出, 每次测速结束立即写出一条记录并刷新, 不在内存中保存结果。
+ * 支持CSV(首行为列名)和JSON Lines(每行一个对象)两种格式, 列的顺序固定, 见{@link #COLUMNS}。
+ * 可以由多个测速线程同时写入
+ *
+ * @author kzw
+ * @since 2015-09-04
+ */
+abstract class SpeedTestRecordWriter implements Closeable {
+
+    /** CSV格式 */
+    static final String FORMAT_CSV = "csv";
+    /** JSON Lines格式 */
+    static final String FORMAT_JSON_LINES = "jsonl";
+
+    /** 列名, 与{@link #toValues(SpeedTestCli.Run)}的顺序一致 */
+    static final String[] COLUMNS = {
+        "seq", "endpoint", "run", "start_millis", "test_type", "transport", "connections", "state",
+        "duration_ms", "total_bytes", "avg_speed", "p10_speed", "p50_speed", "p90_speed", "p99_speed",
+        "ping_min_ms", "ping_median_ms", "ping_jitter_ms", "failed_requests", "new_connections",
+        "reused_connections",
+    };
+
+    /** 输出 */
+    protected final Writer mWriter;
+
+    SpeedTestRecordWriter(Writer writer) {
+        mWriter = writer;
+    }
+
+    /**
+     * 按格式创建输出
+     * @param format {@link #FORMAT_CSV} 或 {@link #FORMAT_JSON_LINES}
+     * @param writer 输出
+     * @return {@link SpeedTestRecordWriter}, 不支持的格式返回null
+     */
+    static SpeedTestRecordWriter create(String format, Writer writer) {
+        if (FORMAT_CSV.equals(format)) {
+            return new CsvWriter(writer);
+        } else if (FORMAT_JSON_LINES.equals(format)) {
+            return new JsonLinesWriter(writer);
+        }
+        return null;
+    }
+
+    /**
+     * 写出表头, 在第一条记录之前调用
+     * @throws IOException 写入失败
+     */
+    synchronized void writeHeader() throws IOException {
+        onWriteHeader();
+        mWriter.flush();
+    }
+
+    /**
+     * 写出一次测速的记录并刷新
+     * @param run 测速记录
+     * @throws IOException 写入失败
+     */
+    synchronized void write(SpeedTestCli.Run run) throws IOException {
+        onWriteRecord(toValues(run));
+        mWriter.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        mWriter.close();
+    }
+
+    /**
+     * 写出表头
+     * @throws IOException 写入失败
+     */
+    protected abstract void onWriteHeader() throws IOException;
+
+    /**
+     * 写出一条记录
+     * @param values 与{@link #COLUMNS}对应的值, 字符串或数字, null表示没有该项
+     * @throws IOException 写入失败
+     */
+    protected abstract void onWriteRecord(Object[] values) throws IOException;
+
+    /**
+     * 把测速记录转换为与{@link #COLUMNS}对应的值
+     * @param run 测速记录
+     * @return 值
+     */
+    private static Object[] toValues(SpeedTestCli.Run run) {
+        final SpeedTestResult result = run.mResult;
+        final SpeedTestEngine.PingResult ping = run.mPing;
+        return new Object[] {
+            run.mSeq,
+            run.mEndpoint,
+            run.mRun,
+            run.mStartMillis,
+            run.mTestType == SpeedTestEngine.TEST_TYPE_UPLOAD ? "upload" : "download",
+            run.mTransportName,
+            run.mConnections,
+            SpeedTestCli.stateName(run.mState),
+            result != null ? result.getDurationMillis() : null,
+            result != null ? result.getTotalBytes() : null,
+            result != null ? result.getAvgSpeed() : null,
+            result != null ? result.getP10Speed() : null,
+            result != null ? result.getP50Speed() : null,
+            result != null ? result.getP90Speed() : null,
+            result != null ? result.getP99Speed() : null,
+            ping != null ? ping.getMinMillis() : null,
+            ping != null ? ping.getMedianMillis() : null,
+            ping != null ? ping.getJitterMillis() : null,
+            run.mFailedRequests,
+            run.mNewConnections,
+            run.mReusedConnections,
+        };
+    }
+
+    /**
+     * CSV, 按RFC 4180转义
+     */
+    private static final class CsvWriter extends SpeedTestRecordWriter {
+
+        CsvWriter(Writer writer) {
+            super(writer);
+        }
+
+        @Override
+        protected void onWriteHeader() throws IOException {
+            onWriteRecord(COLUMNS);
+        }
+
+        @Override
+        protected void onWriteRecord(Object[] values) throws IOException {
+            for (int i = 0; i < values.length; i++) {
+                if (i > 0) {
+                    mWriter.write(',');
+                }
+                if (values[i] instanceof String) {
+                    writeField((String) values[i]);
+                } else if (values[i] != null) {
+                    mWriter.write(values[i].toString());
+                }
+            }
+            mWriter.write('\n');
+        }
+
+        private void writeField(String value) throws IOException {
+            if (value.indexOf(',') < 0 && value.indexOf('"') < 0
+                    && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+                mWriter.write(value);
+                return;
+            }
+            mWriter.write('"');
+            mWriter.write(value.replace("\"", "\"\""));
+            mWriter.write('"');
+        }
+    }
+
+    /**
+     * JSON Lines, 没有的项输出null
+     */
+    private static final class JsonLinesWriter extends SpeedTestRecordWriter {
+
+        JsonLinesWriter(Writer writer) {
+            super(writer);
+        }
+
+        @Override
+        protected void onWriteHeader() {
+            // 每条记录自带字段名, 没有表头
+        }
+
+        @Override
+        protected void onWriteRecord(Object[] values) throws IOException {
+            mWriter.write('{');
+            for (int i = 0; i < values.length; i++) {
+                if (i > 0) {
+                    mWriter.write(',');
+                }
+                writeString(COLUMNS[i]);
+                mWriter.write(':');
+                if (values[i] instanceof String) {
+                    writeString((String) values[i]);
+                } else {
+                    mWriter.write(String.valueOf(values[i]));
+                }
+            }
+            mWriter.write("}\n");
+        }
+
+        private void writeString(String value) throws IOException {
+            mWriter.write('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                switch (c) {
+                    case '"':
+                        mWriter.write("\\\"");
+                        break;
+                    case '\\':
+                        mWriter.write("\\\\");
+                        break;
+                    case '\n':
+                        mWriter.write("\\n");
+                        break;
+                    case '\r':
+                        mWriter.write("\\r");
+                        break;
+                    case '\t':
+                        mWriter.write("\\t");
+                        break;
+                    default:
+                        if (c < 0x20) {
+                            mWriter.write(String.format("\\u%04x", (int) c));
+                        } else {
+                            mWriter.write(c);
+                        }
+                        break;
+                }
+            }
+            mWriter.write('"');
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2015 Zlianjie Inc. All rights reserved.
+ */
+package com.zlianjie.coolwifi.speedtest;
+
+/**
+ * 一次测速的最终结果, 包含完整的速率曲线, 用于离线分析和绘制图表。
+ * 创建后不可修改, 可以在线程间自由传递
+ *
+ * @author kzw
+ * @since 2015-08-26
+ */
+public final class SpeedTestResult {
+
+    /** 测速类型 */
+    private final int mTestType;
+    /** 测速结束时的状态 */
+    private final int mTaskState;
+    /** 最终的平均速率 */
+    private final long mAvgSpeed;
+    /** 瞬时速率的P10 */
+    private final long mP10Speed;
+    /** 瞬时速率的P50 */
+    private final long mP50Speed;
+    /** 瞬时速率的P90 */
+    private final long mP90Speed;
+    /** 瞬时速率的P99 */
+    private final long mP99Speed;
+    /** 样本时间(毫秒) */
+    private final long[] mTimes;
+    /** 样本对应的累计字节数 */
+    private final long[] mBytes;
+
+    /**
+     * 构造方法, 数组由调用方复制后传入, 不再修改
+     * @param testType 测速类型
+     * @param taskState 测速结束时的状态
+     * @param avgSpeed 最终的平均速率
+     * @param p10Speed 瞬时速率的P10
+     * @param p50Speed 瞬时速率的P50
+     * @param p90Speed 瞬时速率的P90
+     * @param p99Speed 瞬时速率的P99
+     * @param times 样本时间
+     * @param bytes 样本对应的累计字节数
+     */
+    SpeedTestResult(int testType, int taskState, long avgSpeed, long p10Speed, long p50Speed,
+            long p90Speed, long p99Speed, long[] times, long[] bytes) {
+        mTestType = testType;
+        mTaskState = taskState;
+        mAvgSpeed = avgSpeed;
+        mP10Speed = p10Speed;
+        mP50Speed = p50Speed;
+        mP90Speed = p90Speed;
+        mP99Speed = p99Speed;
+        mTimes = times;
+        mBytes = bytes;
+    }
+
+    /**
+     * 测速类型
+     * @return {@link SpeedTestEngine#TEST_TYPE_DOWNLOAD}或{@link SpeedTestEngine#TEST_TYPE_UPLOAD}
+     */
+    public int getTestType() {
+        return mTestType;
+    }
+
+    /**
+     * 测速结束时的状态
+     * @return {@link SpeedTestEngine#TASK_STATE_FINISHED}、{@link SpeedTestEngine#TASK_STATE_CANCEL}
+     *         或{@link SpeedTestEngine#TASK_STATE_FAIL}
+     */
+    public int getTaskState() {
+        return mTaskState;
+    }
+
+    /**
+     * 最终的平均速率, 与界面上显示的一致
+     * @return 平均速率(字节/秒)
+     */
+    public long getAvgSpeed() {
+        return mAvgSpeed;
+    }
+
+    /**
+     * 瞬时速率的P10, 预热阶段不计入, 反映速率较差时的水平
+     * @return 速率(字节/秒)
+     */
+    public long getP10Speed() {
+        return mP10Speed;
+    }
+
+    /**
+     * 瞬时速率的中位数
+     * @return 速率(字节/秒)
+     */
+    public long getP50Speed() {
+        return mP50Speed;
+    }
+
+    /**
+     * 瞬时速率的P90, 上报的速率使用该值
+     * @return 速率(字节/秒)
+     */
+    public long getP90Speed() {
+        return mP90Speed;
+    }
+
+    /**
+     * 瞬时速率的P99
+     * @return 速率(字节/秒)
+     */
+    public long getP99Speed() {
+        return mP99Speed;
+    }
+
+    /**
+     * 样本数
+     * @return 样本数
+     */
+    public int getSampleCount() {
+        return mTimes.length;
+    }
+
+    /**
+     * 第index个样本的时间
+     * @param index 样本下标
+     * @return 时间(毫秒)
+     */
+    public long getTimeAt(int index) {
+        return mTimes[index];
+    }
+
+    /**
+     * 第index个样本时的累计字节数
+     * @param index 样本下标
+     * @return 字节数
+     */
+    public long getBytesAt(int index) {
+        return mBytes[index];
+    }
+
+    /**
+     * 第index个样本与前一个样本之间的速率, 第一个样本为0
+     * @param index 样本下标
+     * @return 速率(字节/秒)
+     */
+    public long getSpeedAt(int index) {
+        if (index <= 0) {
+            return 0;
+        }
+        long duration = mTimes[index] - mTimes[index - 1];
+        if (duration <= 0) {
+            return 0;
+        }
+        return (mBytes[index] - mBytes[index - 1]) * SpeedTestUtils.SECOND_IN_MILLIS / duration;
+    }
+
+    /**
+     * 测速总时长, 从第一个样本到最后一个样本
+     * @return 时长(毫秒)
+     */
+    public long getDurationMillis() {
+        int count = mTimes.length;
+        return count > 1 ? mTimes[count - 1] - mTimes[0] : 0;
+    }
+
+    /**
+     * 测速传输的总字节数
+     * @return 字节数
+     */
+    public long getTotalBytes() {
+        int count = mBytes.length;
+        return count > 0 ? mBytes[count - 1] : 0;
+    }
+
+    /**
+     * 所有样本的时间, 返回副本
+     * @return 时间数组
+     */
+    public long[] getTimes() {
+        return mTimes.clone();
+    }
+
+    /**
+     * 所有样本的累计字节数, 返回副本
+     * @return 字节数数组
+     */
+    public long[] getBytes() {
+        return mBytes.clone();
+    }
+}
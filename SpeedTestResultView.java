@@ -8,6 +8,7 @@ import android.support.v4.view.animation.FastOutLinearInInterpolator;
 import android.util.AttributeSet;
 import android.view.LayoutInflater;
 import android.view.View;
+import android.view.ViewGroup;
 import android.view.animation.Animation;
 import android.view.animation.ScaleAnimation;
 import android.widget.LinearLayout;
@@ -52,7 +53,7 @@ public class SpeedTestResultView extends RelativeLayout {
 
     /** 隐藏进度条动画时长 */
     private static final int HIDE_PROGRESS_DURATION = 16;
-    /** 进度条最大值 */
+    /** 进度条默认最大值 */
     private static final int MAX_PROGRESS = (int)SpeedTestTask.COUNT_DOWN_IN_MILLIS;
 
     /** 检测中的view */
@@ -64,6 +65,8 @@ public class SpeedTestResultView extends RelativeLayout {
     private TextView mSpeedTextView;
     /** 测速状态textview */
     private TextView mSpeedStatusTextView;
+    /** 延迟textview */
+    private TextView mPingTextView;
     /** 测速进度条 */
     private ProgressBar mProgressBar;
 
@@ -78,6 +81,9 @@ public class SpeedTestResultView extends RelativeLayout {
     /** 是否是网络不通 */
     private boolean mConnFail = false;
 
+    /** 进度条最大值, 与测速的最长时间一致 */
+    private int mMaxProgress = MAX_PROGRESS;
+
     /**
      * 运行状态机
      */
@@ -102,6 +108,9 @@ public class SpeedTestResultView extends RelativeLayout {
         case RUNNING:
             mConnFail = false;
             clearUpAnimator();
+            if (mPingTextView != null) {
+                mPingTextView.setVisibility(INVISIBLE);
+            }
             updateResultIconsVisibility(INVISIBLE);
             mSpeedStatusTextView.setTextColor(UIUtils.getColor(R.color.speed_test_running));
             mSpeedStatusTextView.setText(UIUtils.getString(R.string.speed_test_running));
@@ -152,6 +161,11 @@ public class SpeedTestResultView extends RelativeLayout {
                 (TextView) root.findViewById(R.id.video_text)
         };
         mSpeedTextView.setTypeface(TypefaceUtils.getNumberTypeface(getContext()));
+        // 延迟信息插入到速度文本之后
+        ViewGroup speedParent = (ViewGroup) mSpeedTextView.getParent();
+        mPingTextView = (TextView) LayoutInflater.from(context).inflate(
+                R.layout.speed_test_ping_text, speedParent, false);
+        speedParent.addView(mPingTextView, speedParent.indexOfChild(mSpeedTextView) + 1);
         mProgressBar = (ProgressBar) root.findViewById(R.id.speed_test_progress);
         mProgressBar.setMax(MAX_PROGRESS);
     }
@@ -166,6 +180,28 @@ public class SpeedTestResultView extends RelativeLayout {
         }
     }
 
+    /**
+     * 设置延迟信息, 显示在速度旁边
+     * @param minMillis 最小往返时间
+     * @param medianMillis 往返时间中位数
+     * @param jitterMillis 抖动
+     */
+    void setPingInfo(int minMillis, int medianMillis, int jitterMillis) {
+        if (mPingTextView != null) {
+            mPingTextView.setText(UIUtils.getString(R.string.speed_test_ping, medianMillis, minMillis, jitterMillis));
+            mPingTextView.setVisibility(VISIBLE);
+        }
+    }
+
+    /**
+     * 设置进度条最大值
+     * @param maxProgress 测速的最长时间(毫秒)
+     */
+    void setProgressMax(int maxProgress) {
+        mMaxProgress = maxProgress;
+        mProgressBar.setMax(maxProgress);
+    }
+
     /**
      * 设置进度
      * @param progress
@@ -187,7 +223,7 @@ public class SpeedTestResultView extends RelativeLayout {
      * @param speed
      */
     void hideProgress(final long speed) {
-        setProgress(MAX_PROGRESS);
+        setProgress(mMaxProgress);
         EasyAnimationHelper.fadeOut(mProgressBar, HIDE_PROGRESS_DURATION, new AnimatorListenerAdapter() {
 
             @Override
@@ -449,7 +485,7 @@ public class SpeedTestResultView extends RelativeLayout {
      * @param speed 单位字节
      * @return
      */
-    private static double normalize(long speed) {
+    static double normalize(long speed) {
         int lower = SPEED_SECTION.length;
         int upper = lower;
         for (int i = 0; i < SPEED_SECTION.length; i++) {
@@ -489,7 +525,7 @@ public class SpeedTestResultView extends RelativeLayout {
      * @param x value
      * @return Cumulative probability
      */
-    private static double cumulativeNormalDistribution(double x) {
+    static double cumulativeNormalDistribution(double x) {
         int neg = (x < 0d) ? 1 : 0;
         if (neg == 1) {
             x *= -1d;
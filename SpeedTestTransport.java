@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2015 Zlianjie Inc. All rights reserved.
+ */
+package com.zlianjie.coolwifi.speedtest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * 测速使用的HTTP传输层, 屏蔽具体的HTTP客户端实现, 便于对比不同客户端在高吞吐下的开销。
+ * <pre>
+ *     ApacheTransport: cz.msebera的Apache HttpClient, 带连接池, 只在依赖HttpClient的应用内编译
+ *     {@link UrlConnectionTransport}: 系统的HttpURLConnection
+ *     {@link RawSocketTransport}: 直接在socket上收发最简单的HTTP/1.1请求
+ * </pre>
+ * 由{@link SpeedTestPlatform#createTransport}创建, 引擎本身不依赖任何HTTP客户端库。
+ * 实现需要线程安全, 同一个实例被所有测速连接共享。
+ *
+ * @author kzw
+ * @since 2015-08-31
+ */
+interface SpeedTestTransport {
+
+    /** 无法判断连接是否复用 */
+    int CONNECTION_UNKNOWN = 0;
+    /** 本次请求新建了连接 */
+    int CONNECTION_NEW = 1;
+    /** 本次请求复用了keep-alive连接 */
+    int CONNECTION_REUSED = 2;
+
+    /**
+     * 传输层名称, 用于日志和测试结果
+     * @return 名称
+     */
+    String getName();
+
+    /**
+     * 创建GET请求
+     * @param url 地址
+     * @return {@link Request}
+     */
+    Request get(String url);
+
+    /**
+     * 创建以chunked方式发送请求体的POST请求
+     * @param url 地址
+     * @param body 请求体
+     * @return {@link Request}
+     */
+    Request post(String url, BodyWriter body);
+
+    /**
+     * 释放所有连接, 之后不能再使用
+     */
+    void release();
+
+    /**
+     * 一次HTTP请求
+     */
+    interface Request {
+        /**
+         * 设置请求头, 在{@link #execute()}之前调用
+         * @param name 名称
+         * @param value 值
+         */
+        void setHeader(String name, String value);
+
+        /**
+         * 设置本次请求的超时时间, 不设置时使用传输层的默认值
+         * @param connectTimeoutMillis 连接超时
+         * @param readTimeoutMillis 读取超时
+         */
+        void setTimeout(int connectTimeoutMillis, int readTimeoutMillis);
+
+        /**
+         * 发送请求并读取响应头, POST请求会先写完请求体
+         * @return {@link Response}
+         * @throws IOException 请求失败或已被中断
+         */
+        Response execute() throws IOException;
+
+        /**
+         * 中断请求, 可以在其他线程中调用, 所有实现都不会阻塞调用线程。
+         * 阻塞在读写上的线程何时退出取决于实现: ApacheTransport和{@link RawSocketTransport}
+         * 直接关闭socket, 读写立即抛出异常; {@link UrlConnectionTransport}在JDK上要等到读取超时。
+         * 在{@link #execute()}之前调用时请求不会发出; 响应已经读完并释放连接后调用没有影响
+         */
+        void abort();
+    }
+
+    /**
+     * HTTP响应
+     */
+    interface Response {
+        /**
+         * 响应状态码
+         * @return 状态码
+         */
+        int getStatusCode();
+
+        /**
+         * 响应体
+         * @return 输入流, 没有响应体时返回null
+         * @throws IOException 读取失败
+         */
+        InputStream getBody() throws IOException;
+
+        /**
+         * 本次请求的连接是否为复用的
+         * @return {@link #CONNECTION_NEW}、{@link #CONNECTION_REUSED}或{@link #CONNECTION_UNKNOWN}
+         */
+        int getConnectionState();
+
+        /**
+         * 关闭响应, 响应体已读完时连接归还连接池, 否则直接断开
+         */
+        void close();
+    }
+
+    /**
+     * 请求体
+     */
+    interface BodyWriter {
+        /**
+         * 写出请求体
+         * @param out 输出流
+         * @throws IOException 写入失败
+         */
+        void writeTo(OutputStream out) throws IOException;
+    }
+}
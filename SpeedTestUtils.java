@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2015 Zlianjie Inc. All rights reserved.
+ */
+package com.zlianjie.coolwifi.speedtest;
+
+import java.io.Closeable;
+
+/**
+ * 测速引擎使用的工具方法和常量, 代替Android的DateUtils、TextUtils和应用的Utility, 使引擎可以在JVM上运行
+ *
+ * @author kzw
+ * @since 2015-09-03
+ */
+final class SpeedTestUtils {
+
+    /** 1秒的毫秒数 */
+    static final long SECOND_IN_MILLIS = 1000;
+    /** 1分钟的毫秒数 */
+    static final long MINUTE_IN_MILLIS = 60 * SECOND_IN_MILLIS;
+    /** 1KB的字节数 */
+    static final int KB_IN_BYTES = 1024;
+    /** 1MB的字节数 */
+    static final int MB_IN_BYTES = 1024 * KB_IN_BYTES;
+
+    private SpeedTestUtils() {
+    }
+
+    /**
+     * 字符串是否为null或空
+     * @param str 字符串
+     * @return 是否为空
+     */
+    static boolean isEmpty(CharSequence str) {
+        return str == null || str.length() == 0;
+    }
+
+    /**
+     * 关闭, 忽略所有异常
+     * @param closeable 可以为null
+     */
+    static void closeSafely(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (Throwable t) {
+            }
+        }
+    }
+
+    /**
+     * 创建后台线程, 不阻止JVM退出
+     * @param runnable 线程执行的任务
+     * @param name 线程名
+     * @return 未启动的线程
+     */
+    static Thread newThread(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+}
@@ -36,13 +36,17 @@ public class SpeedTestView extends RelativeLayout implements View.OnClickListene
     private static final int MSG_PROGRESS_UPDATE = 3;
     /** 指针刷新 */
     private static final int MSG_POINTER_UPDATE = 4;
+    /** 延迟探测完成 */
+    private static final int MSG_PING_FINISHED = 5;
+    /** 读取测速进度 */
+    private static final int MSG_DRAIN_PROGRESS = 6;
 
     /** 每次减去200毫秒 */
     private static final int COUNT_DOWN_SUB_IN_MILLIS = 200;
     /** 每次更新进度条的时间 */
     private static final int UPDATE_PROGRESS_SUB_IN_MILLIS = 50;
-    /** 进度条每次增加进度 */
-    private static final float PROGRESS_INCREASE = UPDATE_PROGRESS_SUB_IN_MILLIS * 1.3f;
+    /** 每帧读取一次测速进度 */
+    private static final long PROGRESS_FRAME_DURATION = 16;
     /** 指针刷新每帧的时长 */
     private static final long EACH_FRAME_DURATION = 10;
     /** 指针刷新帧数 */
@@ -66,8 +70,14 @@ public class SpeedTestView extends RelativeLayout implements View.OnClickListene
     /** 接收外部传入的手动测速监听器 */
     private OnSpeedTestListener mSpeedTestListener;
 
+    /** 从进度通道读取进度用的记录, 只在UI线程中使用 */
+    private final SpeedTestTask.SpeedTest mSpeedRecord = new SpeedTestTask.SpeedTest();
     /** 当前平均速率 */
     private int mAvgSpeed;
+    /** 当前瞬时速率 */
+    private int mCurrentSpeed;
+    /** 指针是否跟随瞬时速率, 否则跟随平均速率 */
+    private boolean mPointerFollowCurrentSpeed = true;
     /** 记录最大速率 */
     private int mMaxSpeed;
     /** 当前进度 */
@@ -100,6 +110,12 @@ public class SpeedTestView extends RelativeLayout implements View.OnClickListene
             case MSG_POINTER_UPDATE:
                 handlePointerUpdate();
                 break;
+            case MSG_PING_FINISHED:
+                handlePingFinished((SpeedTestTask.PingResult) msg.obj);
+                break;
+            case MSG_DRAIN_PROGRESS:
+                handleDrainProgress();
+                break;
             default:
                 break;
             }
@@ -109,10 +125,8 @@ public class SpeedTestView extends RelativeLayout implements View.OnClickListene
     /** 手动测速信息变化监听器 */
     private SpeedTestTask.SpeedTestTaskListener mSpeedTestTaskListener = new SpeedTestTask.SpeedTestTaskListener () {
         @Override
-        public void onSpeedChange(final SpeedTestTask.SpeedTest speedTest) {
-            mAvgSpeed = speedTest.getAvgSpeed();
-            //保存最大速率
-            mMaxSpeed = Math.max(mMaxSpeed, mAvgSpeed);
+        public void onPingFinished(final SpeedTestTask.PingResult ping) {
+            mHandler.obtainMessage(MSG_PING_FINISHED, ping).sendToTarget();
         }
 
         @Override
@@ -154,6 +168,8 @@ public class SpeedTestView extends RelativeLayout implements View.OnClickListene
      * 初始化
      */
     private void init() {
+        SpeedTestTask.preloadConfig();
+        SpeedTestTask.resumePendingUploads();
         mSpeedTestTask = new SpeedTestTask(mSpeedTestTaskListener);
     }
     
@@ -169,6 +185,22 @@ public class SpeedTestView extends RelativeLayout implements View.OnClickListene
         getSpeedPrefKey();
         setTestButtonEnable(false);
     }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        // 测速过程中重新显示时恢复读取进度
+        if (mSpeedTestTask.isRunning()) {
+            startDrainProgress();
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        // 不显示时不再读取进度, 进度通道只保留最新的进度, 重新显示时读到的是最新速率
+        stopDrainProgress();
+        super.onDetachedFromWindow();
+    }
     
     @Override
     public void onClick(View v) {
@@ -203,14 +235,19 @@ public class SpeedTestView extends RelativeLayout implements View.OnClickListene
      * 开始任务
      */
     public void startTask() {
+        // 丢弃上一次测速未读的进度
+        mSpeedTestTask.getProgressChannel().clear();
         mSpeedTestTask.startTask();
         mAvgSpeed = 0;
+        mCurrentSpeed = 0;
         //更新速率文字
         setSpeedInfo(mAvgSpeed);
-        //开始倒计时
-        mCountDownMillis = SpeedTestTask.COUNT_DOWN_IN_MILLIS;
+        //开始倒计时, 总时长以Task的最长测速时间为准
+        mCountDownMillis = mSpeedTestTask.getMaxDurationMillis();
+        mSpeedTestResultView.setProgressMax((int) mCountDownMillis);
         mHandler.sendEmptyMessageDelayed(MSG_PROGRESS_UPDATE, UPDATE_PROGRESS_SUB_IN_MILLIS);
         mHandler.sendEmptyMessageDelayed(MSG_COUNT_DOWN_SUB, COUNT_DOWN_SUB_IN_MILLIS);
+        startDrainProgress();
     }
     
     /**
@@ -222,6 +259,7 @@ public class SpeedTestView extends RelativeLayout implements View.OnClickListene
         setTestButtonEnable(true);
         mCountDownMillis = 0;
         mSpeedTestTask.stopTask(isUIExit);
+        stopDrainProgress();
         mChartView.clearUp();
         if (isUIExit) {
             mHandler.removeCallbacksAndMessages(null);
@@ -260,7 +298,7 @@ public class SpeedTestView extends RelativeLayout implements View.OnClickListene
     }
 
     /**
-     * 保存最大测速速率
+     * 保存最大测速速率, 应用其他模块按ESSID读取, 与按BSSID保存的测速历史互不影响
      */
     private void saveSpeed() {
         if (!TextUtils.isEmpty(mSpeedPrefKey)) {
@@ -300,7 +338,7 @@ public class SpeedTestView extends RelativeLayout implements View.OnClickListene
      * @param speed
      */
     private void updateChartView(int speed) {
-        mPointerTargetAngle = mChartView.calculateAngle(speed);
+        mPointerTargetAngle = DialChartView.calculateAngle(speed);
         updatePointer(mPointerTargetAngle);
     }
 
@@ -320,7 +358,8 @@ public class SpeedTestView extends RelativeLayout implements View.OnClickListene
      * 处理倒计时
      */
     private void handleCountDown() {
-        mCountDownMillis -= COUNT_DOWN_SUB_IN_MILLIS;
+        // 跟随Task实际的结束时间, 自适应时长下可能提前结束
+        mCountDownMillis = mSpeedTestTask.getRemainingMillis();
         // 倒计时完成
         if (mCountDownMillis <= 0 || mSpeedTestResultView.getRunState() == SpeedTestResultView.RunState.END) {
             return;
@@ -328,9 +367,9 @@ public class SpeedTestView extends RelativeLayout implements View.OnClickListene
         // 更新速率文字
         setSpeedInfo(mAvgSpeed);
         // 更新指针
-        updateChartView(mAvgSpeed);
+        updateChartView(mPointerFollowCurrentSpeed ? mCurrentSpeed : mAvgSpeed);
         if (mSpeedTestListener != null) {
-            mSpeedTestListener.onCountDownTimeChange(mCountDownMillis, SpeedTestTask.COUNT_DOWN_IN_MILLIS);
+            mSpeedTestListener.onCountDownTimeChange(mCountDownMillis, mSpeedTestTask.getMaxDurationMillis());
         }
         mHandler.sendEmptyMessageDelayed(MSG_COUNT_DOWN_SUB, COUNT_DOWN_SUB_IN_MILLIS);
     }
@@ -340,6 +379,12 @@ public class SpeedTestView extends RelativeLayout implements View.OnClickListene
      * @param msg
      */
     private void handleTaskStateChange(Message msg) {
+        // 先读完结束前的进度, 结束view显示的是最终的平均速率
+        drainProgress();
+        if (msg.arg1 != SpeedTestTask.TASK_STATE_START) {
+            // Task已结束, 不会再有新的进度
+            stopDrainProgress();
+        }
         switch (msg.arg1) {
         case SpeedTestTask.TASK_STATE_START:
             break;
@@ -352,15 +397,25 @@ public class SpeedTestView extends RelativeLayout implements View.OnClickListene
             break;
 
         case SpeedTestTask.TASK_STATE_FINISHED:
+            mSpeedTestTask.saveLastResult();
+            saveSpeed();
             if (mSpeedTestListener != null) {
                 mSpeedTestListener.onSpeedTaskFinished();
             }
+            // 进度条还在更新说明还没切换到结束view, 自适应时长下Task会提前结束
+            if (mHandler.hasMessages(MSG_PROGRESS_UPDATE)) {
+                switchToEndView();
+            }
             break;
 
         case SpeedTestTask.TASK_STATE_FAIL:
             if (mSpeedTestListener != null) {
                 mSpeedTestListener.onSpeedTaskFail();
             }
+            // 所有请求都失败时Task提前结束, 不再等待进度条走完
+            if (mHandler.hasMessages(MSG_PROGRESS_UPDATE)) {
+                switchToEndView();
+            }
             break;
 
         default:
@@ -368,18 +423,64 @@ public class SpeedTestView extends RelativeLayout implements View.OnClickListene
         }
     }
 
+    /**
+     * 开始每帧读取测速进度
+     */
+    private void startDrainProgress() {
+        mHandler.removeMessages(MSG_DRAIN_PROGRESS);
+        mHandler.sendEmptyMessageDelayed(MSG_DRAIN_PROGRESS, PROGRESS_FRAME_DURATION);
+    }
+
+    /**
+     * 停止读取测速进度
+     */
+    private void stopDrainProgress() {
+        mHandler.removeMessages(MSG_DRAIN_PROGRESS);
+    }
+
+    /**
+     * 每帧读取一次测速进度, Task结束后停止
+     */
+    private void handleDrainProgress() {
+        drainProgress();
+        if (mSpeedTestTask.isRunning()) {
+            mHandler.sendEmptyMessageDelayed(MSG_DRAIN_PROGRESS, PROGRESS_FRAME_DURATION);
+        }
+    }
+
+    /**
+     * 读取进度通道中所有的进度, 只保留最新的速率
+     */
+    private void drainProgress() {
+        final ProgressChannel channel = mSpeedTestTask.getProgressChannel();
+        while (channel.poll(mSpeedRecord)) {
+            mAvgSpeed = mSpeedRecord.getAvgSpeed();
+            mCurrentSpeed = mSpeedRecord.getCurrentSpeed();
+            //保存最大速率
+            mMaxSpeed = Math.max(mMaxSpeed, mAvgSpeed);
+        }
+    }
+
+    /**
+     * 处理延迟探测结果
+     * @param ping 延迟探测结果
+     */
+    private void handlePingFinished(SpeedTestTask.PingResult ping) {
+        mSpeedTestResultView.setPingInfo(ping.getMinMillis(), ping.getMedianMillis(), ping.getJitterMillis());
+    }
+
     /**
      * 处理进度条进度更新
      */
     private void handleProgressUpdate() {
-        if (mProgress >= SpeedTestTask.COUNT_DOWN_IN_MILLIS) {
+        final long totalMillis = mSpeedTestTask.getMaxDurationMillis();
+        mProgress = (int) (totalMillis - mSpeedTestTask.getRemainingMillis());
+        if (mProgress >= totalMillis) {
             switchToEndView();
             return;
         }
-        if (mProgress < SpeedTestTask.COUNT_DOWN_IN_MILLIS) {
-            mSpeedTestResultView.setProgress(mProgress += PROGRESS_INCREASE);
-            mHandler.sendEmptyMessageDelayed(MSG_PROGRESS_UPDATE, UPDATE_PROGRESS_SUB_IN_MILLIS);
-        }
+        mSpeedTestResultView.setProgress(mProgress);
+        mHandler.sendEmptyMessageDelayed(MSG_PROGRESS_UPDATE, UPDATE_PROGRESS_SUB_IN_MILLIS);
     }
 
     /**
@@ -402,6 +503,14 @@ public class SpeedTestView extends RelativeLayout implements View.OnClickListene
         mHandler.sendEmptyMessageDelayed(MSG_POINTER_UPDATE, EACH_FRAME_DURATION);
     }
 
+    /**
+     * 设置指针跟随的速率
+     * @param followCurrentSpeed true跟随最近1秒的瞬时速率, false跟随平均速率
+     */
+    public void setPointerFollowCurrentSpeed(boolean followCurrentSpeed) {
+        mPointerFollowCurrentSpeed = followCurrentSpeed;
+    }
+
     /**
      * 设置监听器
      * @param speedTestListener {@link OnSpeedTestListener}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2015 Zlianjie Inc. All rights reserved.
+ */
+package com.zlianjie.coolwifi.speedtest;
+
+/**
+ * 一次测速的完整采样记录, 按时间顺序保存每次刷新速率时的(时间, 累计字节数)。
+ * 数组在测速开始前按最长测速时间分配好, 记录样本不分配内存, 只能由一个线程写入;
+ * 写满后丢弃后面的样本, 不扩容, 保证其他线程随时可以安全地读取已记录的部分
+ *
+ * @author kzw
+ * @since 2015-08-26
+ */
+class SpeedTimeSeries {
+
+    /** 样本时间(毫秒) */
+    private long[] mTimes;
+    /** 样本对应的累计字节数 */
+    private long[] mBytes;
+    /** 已记录的样本数, 写入数组元素之后再更新, 读线程据此读取已完成的样本 */
+    private volatile int mCount;
+
+    /**
+     * 构造方法
+     * @param capacity 初始容量
+     */
+    SpeedTimeSeries(int capacity) {
+        mTimes = new long[capacity];
+        mBytes = new long[capacity];
+    }
+
+    /**
+     * 清空样本, 容量不足时重新分配, 只能在测速开始前调用
+     * @param capacity 本次测速最多的样本数
+     */
+    void reset(int capacity) {
+        if (mTimes.length < capacity) {
+            mTimes = new long[capacity];
+            mBytes = new long[capacity];
+        }
+        mCount = 0;
+    }
+
+    /**
+     * 记录一个样本
+     * @param time 时间(毫秒)
+     * @param totalBytes 累计字节数
+     * @return 是否记录, 已写满时返回false
+     */
+    boolean add(long time, long totalBytes) {
+        int count = mCount;
+        if (count >= mTimes.length) {
+            return false;
+        }
+        mTimes[count] = time;
+        mBytes[count] = totalBytes;
+        mCount = count + 1;
+        return true;
+    }
+
+    /**
+     * 已记录的样本数
+     * @return 样本数
+     */
+    int size() {
+        return mCount;
+    }
+
+    /**
+     * 生成不可变的测速结果, 复制已记录的样本
+     * @param testType 测速类型
+     * @param taskState 测速结束时的状态
+     * @param avgSpeed 最终的平均速率
+     * @param percentiles 瞬时速率的分位数
+     * @return {@link SpeedTestResult}
+     */
+    SpeedTestResult toResult(int testType, int taskState, long avgSpeed, SpeedPercentiles percentiles) {
+        int count = mCount;
+        long[] times = new long[count];
+        long[] bytes = new long[count];
+        System.arraycopy(mTimes, 0, times, 0, count);
+        System.arraycopy(mBytes, 0, bytes, 0, count);
+        return new SpeedTestResult(testType, taskState, avgSpeed, percentiles.getP10(), percentiles.getP50(),
+                percentiles.getP90(), percentiles.getP99(), times, bytes);
+    }
+}
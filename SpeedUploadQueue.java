@@ -0,0 +1,687 @@
+/*
+ * Copyright (C) 2015 Zlianjie Inc. All rights reserved.
+ */
+package com.zlianjie.coolwifi.speedtest;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 测速结果的上报队列, 把一段时间内的多条结果合并为一批上报:
+ * <pre>
+ *     第一条结果入队后等待{@link #DEFAULT_MAX_DELAY_MILLIS}, 或者条数、字节数达到上限时立即上报
+ *     每批结果一次拼接为JSON数组, 交给可替换的{@link Backend}发送, 发送端需要时才做gzip压缩
+ *     未上报的结果按行追加到文件, 进程被杀后下次创建队列时立即继续上报, 发送中被杀时可能重复上报
+ *     失败时按指数退避重试
+ * </pre>
+ * 所有读写文件和发送都在队列自己的线程中执行, 可以在任何线程入队
+ *
+ * @author kzw
+ * @since 2015-09-07
+ */
+public class SpeedUploadQueue {
+    /** log tag */
+    private static final String TAG = "SpeedUploadQueue";
+
+    /** 默认的合并时间窗口 */
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 5 * SpeedTestUtils.MINUTE_IN_MILLIS;
+    /** 默认每批的最大条数 */
+    public static final int DEFAULT_MAX_ITEMS = 50;
+    /** 默认每批未压缩的最大字节数 */
+    public static final int DEFAULT_MAX_BYTES = 64 * SpeedTestUtils.KB_IN_BYTES;
+    /** 失败重试的最长间隔 */
+    private static final long MAX_RETRY_DELAY_MILLIS = 60 * SpeedTestUtils.MINUTE_IN_MILLIS;
+    /** 文件编码 */
+    private static final String CHARSET = "UTF-8";
+    /** 重写文件时的临时文件后缀 */
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /** 保存未上报结果的文件 */
+    private final File mFile;
+    /** 合并时间窗口 */
+    private final long mMaxDelayMillis;
+    /** 每批的最大条数 */
+    private final int mMaxItems;
+    /** 每批未压缩的最大字节数 */
+    private final int mMaxBytes;
+    /** 发送端 */
+    private volatile Backend mBackend;
+    /** 队列线程 */
+    private final ScheduledExecutorService mExecutor;
+    /** 统计 */
+    private final Stats mStats = new Stats();
+
+    /** 以下字段只在队列线程中访问: 未上报的结果, 按入队顺序 */
+    private final List<String> mPending = new ArrayList<>();
+    /** 未上报结果在文件中的字节数, 与上限比较 */
+    private long mPendingBytes;
+    /** 已安排的上报 */
+    private ScheduledFuture<?> mScheduledSend;
+    /** 连续失败次数 */
+    private int mFailureCount;
+    /** 失败后下次重试的时间, 在此之前入队只写文件, 不立即上报; 0表示没有在退避 */
+    private long mRetryAtMillis;
+
+    /**
+     * 构造方法, 不在调用线程执行I/O; 队列线程随即读取上次未上报的结果并安排上报
+     * @param file 保存未上报结果的文件
+     * @param backend 发送端
+     * @param maxDelayMillis 合并时间窗口
+     * @param maxItems 每批的最大条数
+     * @param maxBytes 每批未压缩的最大字节数
+     */
+    public SpeedUploadQueue(File file, Backend backend, long maxDelayMillis, int maxItems, int maxBytes) {
+        mFile = file;
+        mBackend = backend;
+        mMaxDelayMillis = maxDelayMillis;
+        mMaxItems = Math.max(1, maxItems);
+        mMaxBytes = Math.max(1, maxBytes);
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return SpeedTestUtils.newThread(r, "speed_upload_queue");
+            }
+        });
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        mExecutor = executor;
+        // 单线程按提交顺序执行, 读取完成之前不会处理入队和flush
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                load();
+            }
+        });
+    }
+
+    /**
+     * 替换发送端, 如本地调试时换成{@link StubBackend}
+     * @param backend 发送端
+     */
+    public void setBackend(Backend backend) {
+        mBackend = backend;
+    }
+
+    /**
+     * 入队一条结果
+     * @param item 一条结果的JSON对象
+     */
+    public void enqueue(final String item) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                add(item);
+            }
+        });
+    }
+
+    /**
+     * 立即上报所有未上报的结果, 不等待时间窗口, 也不等待失败后的退避
+     * @return 上报完成的{@link Future}, 结果为是否全部上报成功
+     */
+    public Future<Boolean> flush() {
+        return mExecutor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                while (!mPending.isEmpty()) {
+                    if (!sendBatch()) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        });
+    }
+
+    /**
+     * 停止队列线程, 未上报的结果保留在文件中
+     * @param timeoutMillis 等待进行中的发送结束的最长时间
+     * @return 队列线程是否已经结束
+     */
+    public boolean shutdown(long timeoutMillis) {
+        mExecutor.shutdown();
+        try {
+            return mExecutor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * 上报统计的快照
+     * @return {@link Stats}
+     */
+    public Stats getStats() {
+        synchronized (mStats) {
+            return mStats.copy();
+        }
+    }
+
+    private void execute(Runnable runnable) {
+        try {
+            mExecutor.execute(runnable);
+        } catch (RejectedExecutionException e) {
+            if (SpeedTestLog.isEnabled()) {
+                SpeedTestLog.w(TAG, "queue is shut down, " + e);
+            }
+        }
+    }
+
+    /**
+     * 读取上次未上报的结果, 这些结果已经等待过时间窗口, 有结果时立即安排上报
+     */
+    private void load() {
+        if (!mFile.exists()) {
+            return;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(mFile), CHARSET));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() > 0) {
+                    mPending.add(line);
+                    mPendingBytes += lineBytes(line);
+                }
+            }
+        } catch (IOException e) {
+            if (SpeedTestLog.isEnabled()) {
+                SpeedTestLog.w(TAG, "load pending items error", e);
+            }
+        } finally {
+            SpeedTestUtils.closeSafely(reader);
+        }
+        if (SpeedTestLog.isEnabled()) {
+            SpeedTestLog.i(TAG, "loaded " + mPending.size() + " pending items");
+        }
+        if (!mPending.isEmpty()) {
+            schedule(0);
+        }
+    }
+
+    /**
+     * 添加一条结果并写入文件, 达到上限时立即上报, 否则在时间窗口结束时上报;
+     * 上次发送失败、正在退避时只写文件, 由已安排的重试上报
+     * @param item 一条结果
+     */
+    private void add(String item) {
+        // 每行一条, JSON中不应有换行, 保险起见替换掉
+        item = item.replace('\n', ' ').replace('\r', ' ');
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter(new FileOutputStream(mFile, true), CHARSET);
+            writer.write(item);
+            writer.write('\n');
+        } catch (IOException e) {
+            // 写文件失败时仍然上报, 只是不能跨进程保留
+            if (SpeedTestLog.isEnabled()) {
+                SpeedTestLog.w(TAG, "persist item error", e);
+            }
+        } finally {
+            SpeedTestUtils.closeSafely(writer);
+        }
+        mPending.add(item);
+        mPendingBytes += lineBytes(item);
+        if (System.currentTimeMillis() < mRetryAtMillis) {
+            return;
+        }
+        if (mPending.size() >= mMaxItems || mPendingBytes >= mMaxBytes) {
+            sendBatch();
+        } else if (mScheduledSend == null) {
+            schedule(mMaxDelayMillis);
+        }
+    }
+
+    /**
+     * 安排一次上报, 已经安排时不重复安排
+     * @param delayMillis 延迟
+     */
+    private void schedule(long delayMillis) {
+        if (mScheduledSend != null || mExecutor.isShutdown()) {
+            return;
+        }
+        mScheduledSend = mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                mScheduledSend = null;
+                while (!mPending.isEmpty()) {
+                    if (!sendBatch()) {
+                        break;
+                    }
+                }
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 取出不超过上限的一批结果上报, 成功后从文件中删除, 失败时退避后重试
+     * @return 是否上报成功
+     */
+    private boolean sendBatch() {
+        if (mScheduledSend != null) {
+            mScheduledSend.cancel(false);
+            mScheduledSend = null;
+        }
+        if (mPending.isEmpty()) {
+            return true;
+        }
+        // 至少一条, 单条超过字节上限时单独成批
+        int count = 0;
+        long bytes = 0;
+        while (count < mPending.size() && count < mMaxItems
+                && (count == 0 || bytes + lineBytes(mPending.get(count)) <= mMaxBytes)) {
+            bytes += lineBytes(mPending.get(count));
+            count++;
+        }
+        final List<String> items = mPending.subList(0, count);
+        boolean sent;
+        Batch batch = null;
+        try {
+            batch = Batch.build(items);
+            sent = mBackend.send(batch);
+        } catch (IOException e) {
+            if (SpeedTestLog.isEnabled()) {
+                SpeedTestLog.w(TAG, "send batch error", e);
+            }
+            sent = false;
+        }
+        if (!sent) {
+            mFailureCount++;
+            synchronized (mStats) {
+                mStats.mFailedBatches++;
+            }
+            long delay = Math.min(mMaxDelayMillis << Math.min(mFailureCount - 1, 16), MAX_RETRY_DELAY_MILLIS);
+            if (SpeedTestLog.isEnabled()) {
+                SpeedTestLog.i(TAG, "send failed " + mFailureCount + " times, retry after " + delay + "ms");
+            }
+            mRetryAtMillis = System.currentTimeMillis() + delay;
+            schedule(delay);
+            return false;
+        }
+        mFailureCount = 0;
+        mRetryAtMillis = 0;
+        items.clear();
+        mPendingBytes -= bytes;
+        rewriteFile();
+        synchronized (mStats) {
+            mStats.add(batch);
+        }
+        if (SpeedTestLog.isEnabled()) {
+            SpeedTestLog.i(TAG, "sent " + batch.getItemCount() + " items, " + batch.getRawBytes() + " -> "
+                    + batch.getSentBytes() + " bytes, " + mPending.size() + " pending");
+        }
+        return true;
+    }
+
+    /**
+     * 一条结果在文件中的字节数, 按UTF-8计算, 不复制字符串
+     * @param item 一条结果
+     * @return 字节数, 含换行
+     */
+    static int lineBytes(String item) {
+        int bytes = 1;
+        final int length = item.length();
+        for (int i = 0; i < length; i++) {
+            final char c = item.charAt(i);
+            if (c < 0x80) {
+                bytes += 1;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(item.charAt(i + 1))) {
+                // 代理对共4字节
+                bytes += 4;
+                i++;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * 用剩余的结果重写文件, 先写临时文件再替换
+     */
+    private void rewriteFile() {
+        if (mPending.isEmpty()) {
+            if (mFile.exists() && !mFile.delete() && SpeedTestLog.isEnabled()) {
+                SpeedTestLog.w(TAG, "cannot delete " + mFile);
+            }
+            return;
+        }
+        final File temp = new File(mFile.getPath() + TEMP_SUFFIX);
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter(new FileOutputStream(temp), CHARSET);
+            for (String item : mPending) {
+                writer.write(item);
+                writer.write('\n');
+            }
+            writer.close();
+            writer = null;
+            if (!temp.renameTo(mFile)) {
+                throw new IOException("cannot rename " + temp);
+            }
+        } catch (IOException e) {
+            // 文件中残留已上报的结果, 下次启动会重复上报
+            if (SpeedTestLog.isEnabled()) {
+                SpeedTestLog.w(TAG, "rewrite pending items error", e);
+            }
+        } finally {
+            SpeedTestUtils.closeSafely(writer);
+        }
+    }
+
+    /**
+     * 上报的发送端
+     */
+    public interface Backend {
+        /**
+         * 发送一批结果, 在队列线程中调用, 可以阻塞
+         * @param batch 一批结果
+         * @return 是否成功, 失败时稍后重试同一批
+         * @throws IOException 发送失败, 同返回false
+         */
+        boolean send(Batch batch) throws IOException;
+    }
+
+    /**
+     * 一批结果: JSON数组, 发送端调用{@link #getBody()}时才压缩, 只有实际发送压缩内容的批次计入压缩节省的字节数
+     */
+    public static final class Batch {
+        /** 条数 */
+        private final int mItemCount;
+        /** JSON数组 */
+        private final String mJson;
+        /** JSON数组的UTF-8编码 */
+        private final byte[] mRaw;
+        /** gzip压缩后的内容, 未压缩时为null */
+        private byte[] mBody;
+
+        private Batch(int itemCount, String json, byte[] raw) {
+            mItemCount = itemCount;
+            mJson = json;
+            mRaw = raw;
+        }
+
+        /**
+         * 把结果一次拼接为JSON数组
+         * @param items 每条结果的JSON对象
+         * @return {@link Batch}
+         * @throws IOException 编码失败
+         */
+        static Batch build(List<String> items) throws IOException {
+            int length = 2;
+            for (String item : items) {
+                length += item.length() + 1;
+            }
+            StringBuilder sb = new StringBuilder(length);
+            sb.append('[');
+            for (int i = 0; i < items.size(); i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append(items.get(i));
+            }
+            sb.append(']');
+            final String json = sb.toString();
+            return new Batch(items.size(), json, json.getBytes(CHARSET));
+        }
+
+        /**
+         * @return 条数
+         */
+        public int getItemCount() {
+            return mItemCount;
+        }
+
+        /**
+         * @return JSON数组, 用于只接受文本的发送端
+         */
+        public String getJson() {
+            return mJson;
+        }
+
+        /**
+         * @return 未压缩的字节数
+         */
+        public int getRawBytes() {
+            return mRaw.length;
+        }
+
+        /**
+         * gzip压缩后的内容, 第一次调用时压缩, 用于以Content-Encoding: gzip发送的发送端
+         * @return 压缩后的内容, 不要修改
+         * @throws IOException 压缩失败
+         */
+        public synchronized byte[] getBody() throws IOException {
+            if (mBody == null) {
+                ByteArrayOutputStream body = new ByteArrayOutputStream(mRaw.length / 4 + 64);
+                GZIPOutputStream gzip = new GZIPOutputStream(body);
+                gzip.write(mRaw);
+                gzip.close();
+                mBody = body.toByteArray();
+            }
+            return mBody;
+        }
+
+        /**
+         * 实际发送的字节数, 发送端没有取压缩内容时为未压缩的字节数
+         * @return 字节数
+         */
+        public synchronized int getSentBytes() {
+            return mBody != null ? mBody.length : mRaw.length;
+        }
+    }
+
+    /**
+     * 上报统计
+     */
+    public static final class Stats {
+        /** 成功的批数 */
+        private int mBatches;
+        /** 失败的次数 */
+        private int mFailedBatches;
+        /** 上报的条数 */
+        private int mItems;
+        /** 未压缩的字节数 */
+        private long mRawBytes;
+        /** 实际发送的字节数 */
+        private long mSentBytes;
+        /** 最近一批的条数 */
+        private int mLastBatchItems;
+
+        void add(Batch batch) {
+            mBatches++;
+            mItems += batch.getItemCount();
+            mRawBytes += batch.getRawBytes();
+            mSentBytes += batch.getSentBytes();
+            mLastBatchItems = batch.getItemCount();
+        }
+
+        Stats copy() {
+            Stats stats = new Stats();
+            stats.mBatches = mBatches;
+            stats.mFailedBatches = mFailedBatches;
+            stats.mItems = mItems;
+            stats.mRawBytes = mRawBytes;
+            stats.mSentBytes = mSentBytes;
+            stats.mLastBatchItems = mLastBatchItems;
+            return stats;
+        }
+
+        /**
+         * @return 成功上报的批数
+         */
+        public int getBatches() {
+            return mBatches;
+        }
+
+        /**
+         * @return 发送失败的次数
+         */
+        public int getFailedBatches() {
+            return mFailedBatches;
+        }
+
+        /**
+         * @return 上报的条数
+         */
+        public int getItems() {
+            return mItems;
+        }
+
+        /**
+         * @return 平均每批的条数
+         */
+        public float getAverageBatchSize() {
+            return mBatches > 0 ? (float) mItems / mBatches : 0;
+        }
+
+        /**
+         * @return 最近一批的条数
+         */
+        public int getLastBatchItems() {
+            return mLastBatchItems;
+        }
+
+        /**
+         * @return 未压缩的字节数
+         */
+        public long getRawBytes() {
+            return mRawBytes;
+        }
+
+        /**
+         * @return 实际发送的字节数, 未压缩发送的批次按未压缩的字节数计
+         */
+        public long getSentBytes() {
+            return mSentBytes;
+        }
+
+        /**
+         * @return 压缩节省的字节数
+         */
+        public long getBytesSaved() {
+            return mRawBytes - mSentBytes;
+        }
+
+        @Override
+        public String toString() {
+            return "batches=" + mBatches + ", failed=" + mFailedBatches + ", items=" + mItems
+                    + ", raw=" + mRawBytes + ", sent=" + mSentBytes + ", saved=" + getBytesSaved();
+        }
+    }
+
+    /**
+     * 以Content-Encoding: gzip把压缩后的JSON数组POST到指定地址, 返回2xx视为成功
+     */
+    public static class HttpBackend implements Backend {
+        /** 连接和读取超时 */
+        private static final int TIME_OUT_MILLIS = 10000;
+        /** 上报地址 */
+        private final String mUrl;
+
+        /**
+         * 构造方法
+         * @param url 上报地址
+         */
+        public HttpBackend(String url) {
+            mUrl = url;
+        }
+
+        @Override
+        public boolean send(Batch batch) throws IOException {
+            HttpURLConnection conn = (HttpURLConnection) new URL(mUrl).openConnection();
+            try {
+                conn.setConnectTimeout(TIME_OUT_MILLIS);
+                conn.setReadTimeout(TIME_OUT_MILLIS);
+                conn.setDoOutput(true);
+                conn.setRequestMethod("POST");
+                conn.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+                conn.setRequestProperty("Content-Encoding", "gzip");
+                conn.setFixedLengthStreamingMode(batch.getBody().length);
+                OutputStream out = conn.getOutputStream();
+                try {
+                    out.write(batch.getBody());
+                } finally {
+                    out.close();
+                }
+                final int code = conn.getResponseCode();
+                // 读完响应体, 连接才能复用
+                InputStream in = code < HttpURLConnection.HTTP_BAD_REQUEST ? conn.getInputStream() : conn.getErrorStream();
+                if (in != null) {
+                    try {
+                        byte[] buffer = new byte[1024];
+                        while (in.read(buffer) != -1) {
+                            // 丢弃
+                        }
+                    } finally {
+                        in.close();
+                    }
+                }
+                return code / 100 == 2;
+            } finally {
+                conn.disconnect();
+            }
+        }
+    }
+
+    /**
+     * 本地桩, 代替{@link HttpBackend}, 不发送, 只记录收到的批次, 用于调试和测试
+     */
+    public static class StubBackend implements Backend {
+        /** 收到的批次 */
+        private final List<Batch> mBatches = new ArrayList<>();
+        /** 是否模拟失败 */
+        private volatile boolean isFailing = false;
+
+        /**
+         * 设置是否模拟发送失败
+         * @param failing 是否失败
+         */
+        public void setFailing(boolean failing) {
+            isFailing = failing;
+        }
+
+        @Override
+        public synchronized boolean send(Batch batch) throws IOException {
+            if (isFailing) {
+                return false;
+            }
+            // 与HttpBackend一样取压缩内容, 统计结果与实际上报时一致
+            batch.getBody();
+            mBatches.add(batch);
+            return true;
+        }
+
+        /**
+         * @return 收到的批次, 按收到顺序
+         */
+        public synchronized List<Batch> getBatches() {
+            return new ArrayList<>(mBatches);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2015 Zlianjie Inc. All rights reserved.
+ */
+package com.zlianjie.coolwifi.speedtest;
+
+/**
+ * 速率稳定检测, 最近一个窗口内速率的变异系数(标准差/均值)小于阈值即认为已稳定。
+ * 样本应为瞬时速率, 累计平均速率随样本增多自然趋于平缓, 即使链路波动很大也会被误判为稳定
+ *
+ * @author kzw
+ * @since 2015-08-14
+ */
+class StableRateDetector {
+
+    /** 窗口内的速率样本 */
+    private final double[] mSamples;
+    /** 变异系数阈值 */
+    private final double mMaxVariation;
+    /** 已记录的样本数 */
+    private int mCount;
+    /** 下一个样本写入的位置 */
+    private int mIndex;
+
+    /**
+     * 构造方法
+     * @param windowSize 窗口内的样本数
+     * @param maxVariation 变异系数阈值, 如0.03表示标准差不超过均值的3%
+     */
+    StableRateDetector(int windowSize, double maxVariation) {
+        mSamples = new double[windowSize];
+        mMaxVariation = maxVariation;
+    }
+
+    /**
+     * 清空样本
+     */
+    void reset() {
+        mCount = 0;
+        mIndex = 0;
+    }
+
+    /**
+     * 记录一个速率样本
+     * @param rate 速率
+     * @return 窗口已满且速率已稳定
+     */
+    boolean add(double rate) {
+        mSamples[mIndex] = rate;
+        mIndex = (mIndex + 1) % mSamples.length;
+        if (mCount < mSamples.length) {
+            mCount++;
+        }
+        // 填满窗口的这个样本就开始判断
+        if (mCount < mSamples.length) {
+            return false;
+        }
+        double sum = 0;
+        for (double sample : mSamples) {
+            sum += sample;
+        }
+        double mean = sum / mSamples.length;
+        if (mean <= 0) {
+            return false;
+        }
+        double variance = 0;
+        for (double sample : mSamples) {
+            variance += (sample - mean) * (sample - mean);
+        }
+        variance /= mSamples.length;
+        return Math.sqrt(variance) / mean <= mMaxVariation;
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2015 Zlianjie Inc. All rights reserved.
+ */
+package com.zlianjie.coolwifi.speedtest;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 基于系统{@link HttpURLConnection}的传输层, keep-alive连接由系统管理。
+ * {@link HttpURLConnection}不提供底层socket, 中断时只能disconnect: Android上会直接关闭socket,
+ * JDK上会等进行中的read返回, 阻塞在读取上的线程要到读取超时才会退出
+ *
+ * @author kzw
+ * @since 2015-08-31
+ */
+class UrlConnectionTransport implements SpeedTestTransport {
+
+    /** 默认连接超时 */
+    private final int mConnectTimeoutMillis;
+    /** 默认读取超时 */
+    private final int mReadTimeoutMillis;
+
+    /**
+     * 构造方法
+     * @param connectTimeoutMillis 默认连接超时
+     * @param readTimeoutMillis 默认读取超时
+     */
+    UrlConnectionTransport(int connectTimeoutMillis, int readTimeoutMillis) {
+        mConnectTimeoutMillis = connectTimeoutMillis;
+        mReadTimeoutMillis = readTimeoutMillis;
+    }
+
+    @Override
+    public String getName() {
+        return "urlconnection";
+    }
+
+    @Override
+    public Request get(String url) {
+        return new UrlRequest(url, null);
+    }
+
+    @Override
+    public Request post(String url, BodyWriter body) {
+        return new UrlRequest(url, body);
+    }
+
+    @Override
+    public void release() {
+        // 连接池由系统管理
+    }
+
+    /**
+     * 一次{@link HttpURLConnection}请求
+     */
+    private class UrlRequest implements Request {
+        /** 地址 */
+        private final String mUrl;
+        /** 请求体, GET请求为null */
+        private final BodyWriter mBody;
+        /** 请求头, 名称和值交替保存 */
+        private final List<String> mHeaders = new ArrayList<>();
+        /** 连接超时 */
+        private int mConnectTimeoutMillis = UrlConnectionTransport.this.mConnectTimeoutMillis;
+        /** 读取超时 */
+        private int mReadTimeoutMillis = UrlConnectionTransport.this.mReadTimeoutMillis;
+        /** 连接 */
+        private volatile HttpURLConnection mConnection;
+        /** 是否已中断 */
+        private volatile boolean isAborted = false;
+        /** 响应是否已关闭, 关闭后不再断开连接, 以便系统复用 */
+        private volatile boolean isReleased = false;
+
+        UrlRequest(String url, BodyWriter body) {
+            mUrl = url;
+            mBody = body;
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+            mHeaders.add(name);
+            mHeaders.add(value);
+        }
+
+        @Override
+        public void setTimeout(int connectTimeoutMillis, int readTimeoutMillis) {
+            mConnectTimeoutMillis = connectTimeoutMillis;
+            mReadTimeoutMillis = readTimeoutMillis;
+        }
+
+        @Override
+        public Response execute() throws IOException {
+            HttpURLConnection connection = (HttpURLConnection) new URL(mUrl).openConnection();
+            mConnection = connection;
+            if (isAborted) {
+                throw new IOException("request aborted");
+            }
+            connection.setConnectTimeout(mConnectTimeoutMillis);
+            connection.setReadTimeout(mReadTimeoutMillis);
+            connection.setUseCaches(false);
+            // 不使用gzip, 统计的是实际传输的数据
+            connection.setRequestProperty("Accept-Encoding", "identity");
+            for (int i = 0; i + 1 < mHeaders.size(); i += 2) {
+                connection.setRequestProperty(mHeaders.get(i), mHeaders.get(i + 1));
+            }
+            if (mBody != null) {
+                connection.setRequestMethod("POST");
+                connection.setDoOutput(true);
+                connection.setChunkedStreamingMode(0);
+                connection.setRequestProperty("Content-Type", "application/octet-stream");
+                OutputStream out = connection.getOutputStream();
+                try {
+                    mBody.writeTo(out);
+                } finally {
+                    SpeedTestUtils.closeSafely(out);
+                }
+            }
+            return new UrlResponse(this, connection.getResponseCode());
+        }
+
+        @Override
+        public void abort() {
+            isAborted = true;
+            final HttpURLConnection connection = mConnection;
+            if (connection == null || isReleased) {
+                return;
+            }
+            // JDK的disconnect会等到进行中的read返回(最长为读取超时)才关闭连接, 在单独的线程中断开, 调用线程不阻塞
+            SpeedTestUtils.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    connection.disconnect();
+                }
+            }, "speed_test_disconnect").start();
+        }
+
+        /**
+         * 在当前线程断开连接, 只在读取响应的线程中调用, 此时没有进行中的read
+         */
+        void disconnect() {
+            isAborted = true;
+            HttpURLConnection connection = mConnection;
+            if (connection != null && !isReleased) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    /**
+     * {@link HttpURLConnection}的响应
+     */
+    private static class UrlResponse implements Response {
+        /** 所属的请求 */
+        private final UrlRequest mRequest;
+        /** 状态码 */
+        private final int mStatusCode;
+        /** 响应体, 只能获取一次 */
+        private EofSensorInputStream mBody;
+
+        UrlResponse(UrlRequest request, int statusCode) {
+            mRequest = request;
+            mStatusCode = statusCode;
+        }
+
+        @Override
+        public int getStatusCode() {
+            return mStatusCode;
+        }
+
+        @Override
+        public InputStream getBody() throws IOException {
+            if (mBody == null) {
+                HttpURLConnection connection = mRequest.mConnection;
+                InputStream in = mStatusCode < HttpURLConnection.HTTP_BAD_REQUEST
+                        ? connection.getInputStream() : connection.getErrorStream();
+                mBody = in != null ? new EofSensorInputStream(in) : null;
+            }
+            return mBody;
+        }
+
+        @Override
+        public int getConnectionState() {
+            return CONNECTION_UNKNOWN;
+        }
+
+        @Override
+        public void close() {
+            // 关闭读完的流时系统会复用连接, 未读完的直接断开, 避免关闭时把剩余的数据读完
+            if (mBody != null && mBody.isEof()) {
+                mRequest.isReleased = true;
+            } else {
+                mRequest.disconnect();
+            }
+            SpeedTestUtils.closeSafely(mBody);
+        }
+    }
+
+    /**
+     * 记录是否已读到流末尾
+     */
+    private static class EofSensorInputStream extends FilterInputStream {
+        /** 是否已读到流末尾 */
+        private boolean isEof = false;
+
+        EofSensorInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b == -1) {
+                isEof = true;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int n = super.read(buffer, offset, count);
+            if (n == -1) {
+                isEof = true;
+            }
+            return n;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        boolean isEof() {
+            return isEof;
+        }
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2015 Zlianjie Inc. All rights reserved.
+ */
+package com.zlianjie.coolwifi.speedtest;
+
+import com.zlianjie.coolwifi.CoolWifi;
+import com.zlianjie.coolwifi.jobs.WifiSpeedUploadJob;
+
+/**
+ * 通过应用的任务队列上报测速结果, 每批提交一个{@link WifiSpeedUploadJob}。
+ * 任务只接受JSON文本, 所以不取压缩内容, 这一发送端的批次不计入压缩节省的字节数;
+ * 任务被任务队列接受后由任务自己负责网络请求和重试, 提交失败时返回false, 由上报队列退避后重试
+ *
+ * @author kzw
+ * @since 2015-09-07
+ */
+class WifiSpeedUploadBackend implements SpeedUploadQueue.Backend {
+    /** log tag */
+    private static final String TAG = "WifiSpeedUploadBackend";
+
+    @Override
+    public boolean send(SpeedUploadQueue.Batch batch) {
+        try {
+            CoolWifi.addJob(new WifiSpeedUploadJob(batch.getJson()));
+            return true;
+        } catch (RuntimeException e) {
+            // 任务队列未初始化或已关闭
+            if (SpeedTestLog.isEnabled()) {
+                SpeedTestLog.w(TAG, "add upload job error", e);
+            }
+            return false;
+        }
+    }
+}
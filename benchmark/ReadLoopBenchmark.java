@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2015 Zlianjie Inc. All rights reserved.
+ */
+package com.zlianjie.coolwifi.speedtest;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link SpeedTestEngine}下载读取循环的基准测试, 从内存流读取, 不涉及网络。
+ * 每次调用读完{@link #DATA_SIZE}字节, 比较每次read的固定开销(volatile检查、取时间、超时判断)所占的比例:
+ * <pre>
+ *     {@link #readChannel}: 线上默认的{@link SpeedTestEngine#RECEIVE_PATH_CHANNEL}, 读到复用的缓存,
+ *                           缓存大小取引擎实际使用的4K到256K
+ *     {@link #writeFile}: {@link SpeedTestEngine#RECEIVE_PATH_STREAM}, 固定512字节的缓存, 作为对照
+ * </pre>
+ *
+ * @author kzw
+ * @since 2015-09-02
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms256m", "-Xmx256m"})
+public class ReadLoopBenchmark {
+
+    /** 每次调用读取的数据量 */
+    private static final int DATA_SIZE = 4 * 1024 * 1024;
+    /** 生成数据的随机种子, 固定以保证结果可复现 */
+    private static final long SEED = 0x5eed;
+    /** 字节流读取的缓存大小, 与{@link SpeedTestEngine}的字节流路径相同 */
+    private static final int STREAM_BUFFER_SIZE = 512;
+    /** 读取循环所属的测速序号 */
+    private static final int TEST_ID = 1;
+
+    @Benchmark
+    public long readChannel(ChannelState state) throws IOException {
+        state.mInput.rewind();
+        state.mTask.readChannel(state.mInput, state.mReceiveBuffer, state.reportSpeed, TEST_ID);
+        return state.mInput.position();
+    }
+
+    @Benchmark
+    public long writeFile(StreamState state) throws IOException {
+        state.mInput.rewind();
+        state.mTask.writeFile(state.mInput, state.mBuffer, state.reportSpeed, TEST_ID);
+        return state.mInput.position();
+    }
+
+    /**
+     * 两种读取路径共用的准备工作
+     */
+    @State(Scope.Thread)
+    public abstract static class ReadState {
+        /** 是否由读取线程刷新速率, 对应单连接模式 */
+        @Param({"false", "true"})
+        public boolean reportSpeed;
+
+        SpeedTestEngine mTask;
+        MemoryInputStream mInput;
+
+        void setUpTask() {
+            byte[] data = new byte[DATA_SIZE];
+            new Random(SEED).nextBytes(data);
+            mInput = new MemoryInputStream(data);
+            mTask = new SpeedTestEngine(new JvmSpeedTestPlatform(), null);
+            mTask.setAdaptiveDuration(false);
+        }
+
+        /**
+         * 每轮迭代前把Task置为运行中并重新计时, 迭代时长远小于测速时长, 读取中不会超时结束
+         * @throws ReflectiveOperationException 字段不存在
+         */
+        @Setup(Level.Iteration)
+        public void setUpIteration() throws ReflectiveOperationException {
+            ((AtomicInteger) getField("mActiveTestId").get(mTask)).set(TEST_ID);
+            getField("isRunning").set(mTask, true);
+            getField("mTaskStartTime").set(mTask, System.currentTimeMillis());
+        }
+
+        private static Field getField(String name) throws ReflectiveOperationException {
+            Field field = SpeedTestEngine.class.getDeclaredField(name);
+            field.setAccessible(true);
+            return field;
+        }
+    }
+
+    /**
+     * 批量读取, 缓存大小为引擎按速率选择的范围; 刷新速率时引擎会按实测速率增大缓存, 与线上一致
+     */
+    public static class ChannelState extends ReadState {
+        /** 初始缓存大小 */
+        @Param({"4096", "16384", "65536", "262144"})
+        public int bufferSize;
+
+        SpeedTestEngine.ReceiveBuffer mReceiveBuffer;
+
+        @Setup(Level.Trial)
+        public void setUpTrial() {
+            setUpTask();
+            mReceiveBuffer = new SpeedTestEngine.ReceiveBuffer();
+            mReceiveBuffer.obtain(bufferSize);
+        }
+    }
+
+    /**
+     * 字节流读取
+     */
+    public static class StreamState extends ReadState {
+        byte[] mBuffer;
+
+        @Setup(Level.Trial)
+        public void setUpTrial() {
+            setUpTask();
+            mBuffer = new byte[STREAM_BUFFER_SIZE];
+        }
+    }
+
+    /**
+     * 不加锁的内存输入流, 避免{@link java.io.ByteArrayInputStream}的同步开销干扰结果
+     */
+    static final class MemoryInputStream extends InputStream {
+        private final byte[] mData;
+        private int mPosition;
+
+        MemoryInputStream(byte[] data) {
+            mData = data;
+        }
+
+        void rewind() {
+            mPosition = 0;
+        }
+
+        int position() {
+            return mPosition;
+        }
+
+        @Override
+        public int read() {
+            return mPosition < mData.length ? mData[mPosition++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) {
+            if (mPosition >= mData.length) {
+                return -1;
+            }
+            int n = Math.min(count, mData.length - mPosition);
+            System.arraycopy(mData, mPosition, buffer, offset, n);
+            mPosition += n;
+            return n;
+        }
+    }
+}
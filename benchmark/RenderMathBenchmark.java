@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2015 Zlianjie Inc. All rights reserved.
+ */
+package com.zlianjie.coolwifi.speedtest;
+
+import com.zlianjie.coolwifi.util.TrafficStatsUtils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 每帧、每个采样都会执行的界面计算的基准测试:
+ * <pre>
+ *     {@link DialScale#calculateAngle(int)}: 每帧计算指针角度
+ *     {@link SpeedTestResultView#normalize(long)}和{@link SpeedTestResultView#cumulativeNormalDistribution(double)}: 计算排名
+ *     {@link TrafficStatsUtils#getRateString(long)}: setSpeedInfo中的速率格式化
+ * </pre>
+ * 输入是固定种子生成的{@link #SAMPLE_COUNT}个速率, 覆盖从0到超出表盘的所有区间, 结果按单次调用计。
+ *
+ * @author kzw
+ * @since 2015-09-02
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms256m", "-Xmx256m"})
+public class RenderMathBenchmark {
+
+    /** 每次调用计算的速率个数 */
+    private static final int SAMPLE_COUNT = 1024;
+    /** 生成速率的随机种子, 固定以保证结果可复现 */
+    private static final long SEED = 0x5eed;
+    /** 生成速率的上限, 超出表盘最大刻度 */
+    private static final int MAX_SPEED = 16 * 1024 * 1024;
+
+    private int[] mSpeeds;
+    private double[] mNormalized;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(SEED);
+        mSpeeds = new int[SAMPLE_COUNT];
+        mNormalized = new double[SAMPLE_COUNT];
+        for (int i = 0; i < SAMPLE_COUNT; i++) {
+            // 按对数均匀分布, 每个刻度区间的样本数相近
+            mSpeeds[i] = (int) Math.min(MAX_SPEED, Math.pow(2, random.nextDouble() * 24));
+            mNormalized[i] = SpeedTestResultView.normalize(mSpeeds[i]);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLE_COUNT)
+    public void calculateAngle(Blackhole blackhole) {
+        for (int speed : mSpeeds) {
+            blackhole.consume(DialScale.calculateAngle(speed));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLE_COUNT)
+    public void normalize(Blackhole blackhole) {
+        for (int speed : mSpeeds) {
+            blackhole.consume(SpeedTestResultView.normalize(speed));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLE_COUNT)
+    public void cumulativeNormalDistribution(Blackhole blackhole) {
+        for (double x : mNormalized) {
+            blackhole.consume(SpeedTestResultView.cumulativeNormalDistribution(x));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLE_COUNT)
+    public void rank(Blackhole blackhole) {
+        for (int speed : mSpeeds) {
+            blackhole.consume(SpeedTestResultView.cumulativeNormalDistribution(
+                    SpeedTestResultView.normalize(speed)));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLE_COUNT)
+    public void formatRate(Blackhole blackhole) {
+        for (int speed : mSpeeds) {
+            blackhole.consume(TrafficStatsUtils.getRateString(speed));
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2015 Zlianjie Inc. All rights reserved.
+ */
+package com.zlianjie.coolwifi.speedtest;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * {@link SpeedResultCodec}与org.json的对比, 内容相同: 接入点、位置、分位数和完整的速率曲线。
+ * JSON沿用AccessPointSpeed.toJSON()的写法, 逐个put后toString, 解析时逐个get。
+ * 分别测量编码、解码和往返的耗时; 编码后的大小(含gzip后的大小)在每组参数结束时输出一次,
+ * 大小只取决于输入, 不需要多次测量。
+ *
+ * @author kzw
+ * @since 2015-09-08
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms256m", "-Xmx256m"})
+public class WireFormatBenchmark {
+
+    /** 生成样本的随机种子, 固定以保证结果可复现 */
+    private static final long SEED = 0x5eed;
+    /** 采样间隔, 与测速时刷新速率的间隔相同 */
+    private static final int SAMPLE_INTERVAL_MILLIS = 100;
+    /** 生成速率的中心值, 10MB/s */
+    private static final long BASE_SPEED = 10L * 1024 * 1024;
+
+    /** 样本数: 只上报分位数、一次默认时长的测速、一次最长时长的测速 */
+    @Param({"0", "100", "600"})
+    public int sampleCount;
+
+    private SpeedResultCodec.Report mReport;
+    private byte[] mBinary;
+    private String mJson;
+
+    @Setup(Level.Trial)
+    public void setUp() throws JSONException {
+        Random random = new Random(SEED);
+        long[] times = new long[sampleCount];
+        long[] bytes = new long[sampleCount];
+        long time = 1441700000000L;
+        long total = 0;
+        for (int i = 0; i < sampleCount; i++) {
+            // 采样间隔有几毫秒的抖动, 速率在中心值上下波动
+            time += SAMPLE_INTERVAL_MILLIS + random.nextInt(7) - 3;
+            total += (long) (BASE_SPEED * (0.5 + random.nextDouble())) * SAMPLE_INTERVAL_MILLIS / 1000;
+            times[i] = time;
+            bytes[i] = total;
+        }
+        SpeedTestResult result = new SpeedTestResult(SpeedTestEngine.TEST_TYPE_DOWNLOAD,
+                SpeedTestEngine.TASK_STATE_FINISHED, 10485760, 6291456, 10485760, 14680064, 15623782, times, bytes);
+        mReport = new SpeedResultCodec.Report("a4:56:02:3b:c1:7e", "CoolWifi-5G", 31.230416, 121.473701,
+                1441700000000L, result);
+        mBinary = SpeedResultCodec.encode(mReport);
+        mJson = toJson(mReport);
+    }
+
+    @TearDown(Level.Trial)
+    public void printSizes() throws IOException {
+        final byte[] json = mJson.getBytes("UTF-8");
+        System.out.println("samples=" + sampleCount + ", json=" + json.length + ", json.gz=" + gzipSize(json)
+                + ", binary=" + mBinary.length + ", binary.gz=" + gzipSize(mBinary));
+    }
+
+    @Benchmark
+    public byte[] encodeBinary() {
+        return SpeedResultCodec.encode(mReport);
+    }
+
+    @Benchmark
+    public String encodeJson() throws JSONException {
+        return toJson(mReport);
+    }
+
+    @Benchmark
+    public SpeedResultCodec.Report decodeBinary() throws IOException {
+        return SpeedResultCodec.decode(mBinary);
+    }
+
+    @Benchmark
+    public SpeedResultCodec.Report decodeJson() throws JSONException {
+        return fromJson(mJson);
+    }
+
+    @Benchmark
+    public SpeedResultCodec.Report roundTripBinary() throws IOException {
+        return SpeedResultCodec.decode(SpeedResultCodec.encode(mReport));
+    }
+
+    @Benchmark
+    public SpeedResultCodec.Report roundTripJson() throws JSONException {
+        return fromJson(toJson(mReport));
+    }
+
+    private static String toJson(SpeedResultCodec.Report report) throws JSONException {
+        final SpeedTestResult result = report.getResult();
+        JSONObject json = new JSONObject();
+        json.put("bssid", report.getBssid());
+        json.put("ssid", report.getSsid());
+        json.put("lat", report.getLatitude());
+        json.put("lng", report.getLongitude());
+        json.put("time", report.getTimeMillis());
+        json.put("type", result.getTestType());
+        json.put("state", result.getTaskState());
+        json.put("speed", result.getAvgSpeed());
+        json.put("p10", result.getP10Speed());
+        json.put("p50", result.getP50Speed());
+        json.put("p90", result.getP90Speed());
+        json.put("p99", result.getP99Speed());
+        JSONArray times = new JSONArray();
+        JSONArray bytes = new JSONArray();
+        for (int i = 0; i < result.getSampleCount(); i++) {
+            times.put(result.getTimeAt(i));
+            bytes.put(result.getBytesAt(i));
+        }
+        json.put("times", times);
+        json.put("bytes", bytes);
+        return json.toString();
+    }
+
+    private static SpeedResultCodec.Report fromJson(String text) throws JSONException {
+        JSONObject json = new JSONObject(text);
+        JSONArray timeArray = json.getJSONArray("times");
+        JSONArray byteArray = json.getJSONArray("bytes");
+        final int count = timeArray.length();
+        long[] times = new long[count];
+        long[] bytes = new long[count];
+        for (int i = 0; i < count; i++) {
+            times[i] = timeArray.getLong(i);
+            bytes[i] = byteArray.getLong(i);
+        }
+        SpeedTestResult result = new SpeedTestResult(json.getInt("type"), json.getInt("state"),
+                json.getLong("speed"), json.getLong("p10"), json.getLong("p50"), json.getLong("p90"),
+                json.getLong("p99"), times, bytes);
+        return new SpeedResultCodec.Report(json.getString("bssid"), json.getString("ssid"),
+                json.getDouble("lat"), json.getDouble("lng"), json.getLong("time"), result);
+    }
+
+    private static int gzipSize(byte[] data) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(buffer);
+        gzip.write(data);
+        gzip.close();
+        return buffer.size();
+    }
+}